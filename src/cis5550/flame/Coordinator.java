@@ -115,9 +115,8 @@ class Coordinator extends cis5550.generic.Coordinator {
             // in which case we'll get an InvocationTargetException. We'll extract the underlying cause and report it
             // back to the user in the HTTP response, to help with debugging.
 
-            FlameContextImpl flameContext;
+            FlameContextImpl flameContext = new FlameContextImpl(jarName);
             try {
-                flameContext = new FlameContextImpl(jarName);
                 Loader.invokeRunMethod(jarFile, className, flameContext, argVector);
             } catch (IllegalAccessException iae) {
                 response.status(400, "Bad request");
@@ -131,6 +130,8 @@ class Coordinator extends cis5550.generic.Coordinator {
                 ite.getCause().printStackTrace(new PrintWriter(sw));
                 response.status(500, "Job threw an exception");
                 return sw.toString();
+            } finally {
+                flameContext.close();
             }
 
             return flameContext.output;
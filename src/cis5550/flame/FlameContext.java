@@ -2,6 +2,7 @@ package cis5550.flame;
 
 import cis5550.kvs.KVSClient;
 import cis5550.kvs.Row;
+import cis5550.kvs.RowFilter;
 
 import java.io.Serializable;
 import java.util.List;
@@ -33,6 +34,18 @@ public interface FlameContext {
     // added to the RDD for these Rows. This method should run in parallel on all the
     // workers, just like the RDD/PairRDD operations.
 
+    FlameRDD fromTable(String tableName, RowFilter filter, List<String> columns, RowToString lambda) throws Exception;
+
+    // Like fromTable() above, but rows that the filter rejects are dropped by the KVS workers
+    // before they are sent anywhere, and the rows passed to the lambda only carry the listed
+    // columns. Either the filter or the columns may be null.
+
+    FlameRDD fromSnapshot(String tableName, String snapshotId, RowToString lambda) throws Exception;
+
+    // Like fromTable() above, but reads a persistent table as it was when the snapshot
+    // with the given ID was taken (see KVSClient.snapshot()), so rows that are written
+    // while the job runs do not show up in it.
+
     void setConcurrencyLevel(int keyRangesPerWorker);
 
     // This function should control how many separate key ranges each worker should
@@ -1,26 +1,52 @@
 package cis5550.flame;
 
 import cis5550.kvs.KVSClient;
+import cis5550.kvs.Row;
+import cis5550.kvs.RowFilter;
 import cis5550.tools.HTTP;
 import cis5550.tools.Hasher;
+import cis5550.tools.Logger;
 import cis5550.tools.Partitioner;
 import cis5550.tools.Serializer;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.net.URLEncoder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Base64;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class FlameContextImpl implements FlameContext, Serializable {
 
+    // how many keys of the input table each KVS worker contributes as points at which partitions can be split
+    private static final int SPLIT_SAMPLES_PER_KVS_WORKER = 32;
+    /*
+     * Intermediate tables are dropped by the KVS workers this long after the job last refreshed their TTL, which it
+     * does every INTERMEDIATE_TABLE_REFRESH_IN_S while it runs, so that a job that dies leaves nothing behind for long
+     */
+    private static final int INTERMEDIATE_TABLE_TTL_IN_S = 600;
+    private static final int INTERMEDIATE_TABLE_REFRESH_IN_S = 120;
+    private static final Logger logger = Logger.getLogger(FlameContextImpl.class);
+
     private final File myJAR;
     public String output;
+    // the intermediate tables that have been neither saved nor destroyed yet
+    private transient Set<String> intermediateTables = ConcurrentHashMap.newKeySet();
+    // started with the first intermediate table; it has a KVSClient of its own, since the job's is not thread-safe
+    private transient ScheduledExecutorService heartbeat;
+    private transient boolean closed;
 
     public FlameContextImpl(String jarName) {
         this.output = "";
@@ -28,6 +54,48 @@ public class FlameContextImpl implements FlameContext, Serializable {
         this.myJAR = new File(jarAbsolutePath);
     }
 
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        this.intermediateTables = ConcurrentHashMap.newKeySet();
+    }
+
+    /* Called once the job has finished; the intermediate tables it left behind then expire */
+    public synchronized void close() {
+        this.closed = true;
+        if (this.heartbeat != null) {
+            this.heartbeat.shutdownNow();
+        }
+    }
+
+    private synchronized void startHeartbeat() {
+        if (this.heartbeat != null || this.closed) {
+            return;
+        }
+        KVSClient kvs = new KVSClient(getKVS().getCoordinator());
+        this.heartbeat = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "flame-table-heartbeat");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.heartbeat.scheduleWithFixedDelay(() -> refreshIntermediateTables(kvs),
+                INTERMEDIATE_TABLE_REFRESH_IN_S, INTERMEDIATE_TABLE_REFRESH_IN_S, TimeUnit.SECONDS);
+    }
+
+    /* The table has been saved under another name or destroyed, and its TTL must no longer be refreshed */
+    void released(String tableName) {
+        this.intermediateTables.remove(tableName);
+    }
+
+    private void refreshIntermediateTables(KVSClient kvs) {
+        for (String tableName : this.intermediateTables) {
+            try {
+                kvs.setTableTTL(tableName, INTERMEDIATE_TABLE_TTL_IN_S);
+            } catch (IOException e) {
+                logger.error("Failed to refresh the TTL of table '" + tableName + "'", e);
+            }
+        }
+    }
+
     @Override
     public KVSClient getKVS() {
         return Coordinator.kvs;
@@ -43,11 +111,15 @@ public class FlameContextImpl implements FlameContext, Serializable {
         String tableName = this.createTableName();
         KVSClient kvsClient = getKVS();
 
+        List<Row> rows = new ArrayList<>(list.size());
         int i = 1;
         for (String value : list) {
-            kvsClient.put(tableName, Hasher.hash(String.valueOf(i)), "value", value);
+            Row row = new Row(Hasher.hash(String.valueOf(i)));
+            row.put("value", value);
+            rows.add(row);
             i++;
         }
+        kvsClient.putRows(tableName, rows);
 
         return new FlameRDDImpl(this, tableName);
     }
@@ -60,6 +132,29 @@ public class FlameContextImpl implements FlameContext, Serializable {
         return new FlameRDDImpl(this, outputTableName);
     }
 
+    @Override
+    public FlameRDD fromTable(String tableName, RowFilter filter, List<String> columns, RowToString lambda) throws Exception {
+        String operationName = "/context/fromTable";
+        byte[] lambdaInBytes = Serializer.objectToByteArray(lambda);
+        List<String> args = new ArrayList<>();
+        if (filter != null) {
+            args.add("filter=" + Base64.getUrlEncoder().encodeToString(Serializer.objectToByteArray(filter)));
+        }
+        if (columns != null) {
+            args.add("columns=" + String.join(",", columns));
+        }
+        String outputTableName = this.invokeOperation(operationName, lambdaInBytes, tableName, args.toArray(new String[0]));
+        return new FlameRDDImpl(this, outputTableName);
+    }
+
+    @Override
+    public FlameRDD fromSnapshot(String tableName, String snapshotId, RowToString lambda) throws Exception {
+        String operationName = "/context/fromTable";
+        byte[] lambdaInBytes = Serializer.objectToByteArray(lambda);
+        String outputTableName = this.invokeOperation(operationName, lambdaInBytes, tableName, "snapshot=" + snapshotId);
+        return new FlameRDDImpl(this, outputTableName);
+    }
+
     @Override
     public void setConcurrencyLevel(int keyRangesPerWorker) {
 
@@ -84,6 +179,13 @@ public class FlameContextImpl implements FlameContext, Serializable {
             partitioner.addKVSWorker(workerAddress, workerId, nextWorkerId);
         }
 
+        if (inputTableName != null) {
+            // split at keys the table actually has, so that partitions get similar numbers of rows
+            for (KVSClient.TableStats stats : kvsClient.tableStats(inputTableName, SPLIT_SAMPLES_PER_KVS_WORKER)) {
+                partitioner.addSplitCandidates(stats.samples);
+            }
+        }
+
         List<String> workers = Coordinator.getWorkers();
         for (String worker : workers) {
             partitioner.addFlameWorker(worker);
@@ -166,7 +268,11 @@ public class FlameContextImpl implements FlameContext, Serializable {
         return outputTableName;
     }
 
-    private String createTableName() {
-        return System.currentTimeMillis() + String.valueOf(Coordinator.nextJobID);
+    private String createTableName() throws IOException {
+        String tableName = System.currentTimeMillis() + String.valueOf(Coordinator.nextJobID);
+        getKVS().setTableTTL(tableName, INTERMEDIATE_TABLE_TTL_IN_S);
+        this.intermediateTables.add(tableName);
+        startHeartbeat();
+        return tableName;
     }
 }
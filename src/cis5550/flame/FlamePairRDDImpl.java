@@ -52,6 +52,7 @@ public class FlamePairRDDImpl implements FlamePairRDD {
         System.out.println("this.tableName: ");
         System.out.println("this.tableName: " + this.tableName);
         kvsClient.rename(this.tableName, tableNameArg);
+        this.flameContext.released(this.tableName);
         this.tableName = tableNameArg;
     }
 
@@ -67,6 +68,7 @@ public class FlamePairRDDImpl implements FlamePairRDD {
     public void destroy() throws Exception {
         KVSClient kvsClient = this.flameContext.getKVS();
         kvsClient.delete(this.tableName);
+        this.flameContext.released(this.tableName);
     }
 
     @Override
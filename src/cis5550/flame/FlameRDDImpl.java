@@ -30,6 +30,7 @@ public class FlameRDDImpl implements FlameRDD {
     public void saveAsTable(String tableNameArg) throws Exception {
         KVSClient kvsClient = this.flameContext.getKVS();
         kvsClient.rename(this.tableName, tableNameArg);
+        this.flameContext.released(this.tableName);
         this.tableName = tableNameArg;
     }
 
@@ -44,20 +45,23 @@ public class FlameRDDImpl implements FlameRDD {
     public void destroy() throws Exception {
         KVSClient kvsClient = this.flameContext.getKVS();
         kvsClient.delete(this.tableName);
+        this.flameContext.released(this.tableName);
     }
 
     @Override
     public Vector<String> take(int num) throws Exception {
         Vector<String> firstNumRow = new Vector<>();
 
+        if (num <= 0) {
+            return firstNumRow;
+        }
+
+        // the scan asks each range for no more rows than are still missing, and ends as soon as it has num of them
         KVSClient kvsClient = this.flameContext.getKVS();
-        Iterator<Row> it = kvsClient.scan(this.tableName);
-        while (it.hasNext()) {
+        Iterator<Row> it = kvsClient.scan(this.tableName, null, null, num);
+        while (it.hasNext() && firstNumRow.size() < num) {
             Row row = it.next();
             firstNumRow.add(row.get("value"));
-            if (firstNumRow.size() == num) {
-                break;
-            }
         }
 
         return firstNumRow;
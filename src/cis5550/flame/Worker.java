@@ -2,6 +2,7 @@ package cis5550.flame;
 
 import cis5550.kvs.KVSClient;
 import cis5550.kvs.Row;
+import cis5550.kvs.RowFilter;
 import cis5550.tools.Hasher;
 import cis5550.tools.Serializer;
 import cis5550.webserver.Request;
@@ -10,7 +11,10 @@ import cis5550.webserver.Response;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Iterator;
+import java.util.List;
 
 import static cis5550.webserver.Server.*;
 
@@ -170,10 +174,30 @@ class Worker extends cis5550.generic.Worker {
         Object lambda = (requestBody != null && requestBody.length > 0) ? Serializer.byteArrayToObject(requestBody, myJAR) : null;
 
         KVSClient kvsClient = Coordinator.kvs = new KVSClient(kvsCoordinator);
-        Iterator<Row> rowIter = kvsClient.scan(inputTable, fromKey, toKeyExclusive);
-        while (rowIter.hasNext()) {
-            Row row = rowIter.next();
-            rowOperation.apply(request, kvsClient, row, lambda, outputTable);
+        Iterator<Row> rowIter;
+        String filter = request.queryParams("filter");
+        String columns = request.queryParams("columns");
+        String snapshot = request.queryParams("snapshot");
+        if (snapshot != null) {
+            rowIter = kvsClient.scanAt(inputTable, fromKey, toKeyExclusive, snapshot);
+        } else if (filter != null || columns != null) {
+            // the filter's classes live in the job JAR, which the KVS workers need as well to deserialize it
+            kvsClient.useJAR(myJAR);
+            RowFilter rowFilter = filter != null
+                    ? (RowFilter) Serializer.byteArrayToObject(Base64.getUrlDecoder().decode(filter), myJAR)
+                    : null;
+            List<String> columnList = columns != null ? Arrays.asList(columns.split(",")) : null;
+            rowIter = kvsClient.scan(inputTable, fromKey, toKeyExclusive, rowFilter, columnList);
+        } else {
+            rowIter = kvsClient.scan(inputTable, fromKey, toKeyExclusive);
+        }
+        // the output goes through a client of its own, so the lambdas' own KVS writes are not buffered
+        try (KVSClient output = new KVSClient(kvsCoordinator)) {
+            output.bufferWrites();
+            while (rowIter.hasNext()) {
+                Row row = rowIter.next();
+                rowOperation.apply(request, output, row, lambda, outputTable);
+            }
         }
 
         return "OK";
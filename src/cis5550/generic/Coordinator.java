@@ -1,6 +1,8 @@
 package cis5550.generic;
 
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
 import java.util.concurrent.ConcurrentHashMap;
@@ -32,6 +34,18 @@ public abstract class Coordinator {
                 .collect(Collectors.toList());
     }
 
+    /* Maps the IDs of the live workers to their ip:port */
+    public static Map<String, String> getWorkerAddresses() {
+        long cutoff = System.currentTimeMillis() - INACTIVITY_LIMIT;
+        Map<String, String> addresses = new HashMap<>();
+        workers.forEach((id, workerInfo) -> {
+            if (workerInfo.getLastPingTime() >= cutoff) {
+                addresses.put(id, workerInfo.toString());
+            }
+        });
+        return addresses;
+    }
+
     public static String workerTable() {
         StringBuilder sb = new StringBuilder();
         sb.append("<table border=\"1\"><tr><th>Worker ID</th><th>IP</th><th>Port</th><th>Link</th></tr>");
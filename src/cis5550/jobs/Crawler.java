@@ -41,6 +41,8 @@ public class Crawler {
     private static final int DISTRIBUTION_CALC_INTERVAL_IN_MS = 30 * 60 * 1000;
     private static final int CRAWL_TIME_LIMIT_IN_S = 300;
     private static final int DISTRIBUTION_PERCENT_THRESHOLD = 10;
+    // pages are by far the largest values we store, and HTML compresses to about a quarter of its size
+    private static final Map<String, String> CRAWL_TABLE_CONFIG = Map.of("compression", "deflate", "compressionThreshold", "1024");
 
     public static void run(FlameContext flameContext, String[] args) throws Exception {
         if (args.length < 1) {
@@ -54,6 +56,9 @@ public class Crawler {
         String blacklistTable = args.length > 1 ? args[1] : null;
 
         String kvsCoordinator = flameContext.getKVS().getCoordinator();
+        flameContext.getKVS().configureTable(CRAW_TABLE_NAME, CRAWL_TABLE_CONFIG);
+        // lets main() tell fetched pages from empty rows without reading every page
+        flameContext.getKVS().createIndex(CRAW_TABLE_NAME, "isEnglish");
 
         FlameRDD urlQueue;
         if (flameContext.getKVS().count(FRONTIER_TABLE_NAME) > 0) {
@@ -202,12 +207,7 @@ public class Crawler {
 
                         String getDomainName = getDomainName(hostName);
                         String getHashedDomainName = Hasher.hash(getDomainName);
-                        String getPagesCrawled = new String(kvsClient.get(DOMAIN_TABLE_NAME, getHashedDomainName, "pagesCrawled"));
-                        int getCurPagesCrawled = Integer.parseInt(getPagesCrawled);
-                        Row domainRow = new Row(getHashedDomainName);
-                        domainRow.put("domainName", getDomainName);
-                        domainRow.put("pagesCrawled", String.valueOf(getCurPagesCrawled + 1));
-                        kvsClient.putRow(DOMAIN_TABLE_NAME, domainRow);
+                        kvsClient.increment(DOMAIN_TABLE_NAME, getHashedDomainName, "pagesCrawled", 1);
 
                         return extractUrls(urlString, responseBody);
                     }
@@ -261,12 +261,9 @@ public class Crawler {
 
         String domainName = getDomainName(hostName);
         String hashedDomainName = Hasher.hash(domainName);
-        if (!kvsClient.existsRow(DOMAIN_TABLE_NAME, hashedDomainName)) {
-            Row domainRow = new Row(hashedDomainName);
-            domainRow.put("domainName", domainName);
-            domainRow.put("pagesCrawled", "0");
-            kvsClient.putRow(DOMAIN_TABLE_NAME, domainRow);
-        }
+        kvsClient.put(DOMAIN_TABLE_NAME, hashedDomainName, "domainName", domainName);
+        // only initializes the counter if no other host of the same domain has done so (and started counting) yet
+        kvsClient.compareAndSet(DOMAIN_TABLE_NAME, hashedDomainName, "pagesCrawled", null, "0".getBytes());
 
         connection.disconnect();
     }
@@ -599,9 +596,7 @@ public class Crawler {
             Matcher matcher = pattern.matcher(normUrl);
 
             if (matcher.find()) {
-                String curMatchUrls = row.get("matchedUrls");
-                String newMatchUrls = (curMatchUrls != null ? curMatchUrls + ",\n" : "") + normUrl;
-                kvsClient.put(blacklistTable, row.key(), "matchedUrls", newMatchUrls);
+                kvsClient.append(blacklistTable, row.key(), "matchedUrls", normUrl, ",\n");
                 return true;
             }
         }
@@ -609,6 +604,19 @@ public class Crawler {
         return false;
     }
 
+    /* Whether a pt-crawl row holds a successfully fetched, non-empty page; jobs push this down into their scans */
+    public static boolean isIndexablePage(Row row) {
+        String url = row.get("url");
+        if (url != null && url.contains("..")) {
+            return false;
+        }
+        String page = row.get("page");
+        if (page == null || page.isEmpty() || page.equals(" ")) {
+            return false;
+        }
+        return "200".equals(row.get("responseCode"));
+    }
+
     public static boolean isEnglishContent(byte[] page) {
         String htmlElement = new String(page);
         String htmlTagWithLangAttributePattern = "<html\\s+[^>]*lang=[\"']([^\"']*)[\"'][^>]*>";
@@ -752,23 +760,19 @@ public class Crawler {
         int tableSize = kvs.count(CRAW_TABLE_NAME);
         System.out.println("tableSize: " + tableSize);
 
+        // only fetched pages have isEnglish set to "true"; the rows of all other URLs hold the empty value
         int nonEmptyRows = 0;
         Map<String, Integer> domainCounter = new HashMap<>();
         Map<String, Integer> emptyCounter = new HashMap<>();
-        Iterator<Row> iter = kvs.scan(CRAW_TABLE_NAME);
-        while (iter.hasNext()) {
-            Row row = iter.next();
-            String page = row.get("page");
-            String url = row.get("url");
+        for (Row row : kvs.lookupByIndexRange(CRAW_TABLE_NAME, "isEnglish", null, "true", List.of("responseCode"))) {
             String responseCode = row.get("responseCode");
-
-            if (page.equals(new String(KVS_EMPTY_VALUE))) {
-                if (!emptyCounter.containsKey(responseCode)) {
-                    emptyCounter.put(responseCode, 0);
-                }
-                emptyCounter.put(responseCode, emptyCounter.get(responseCode) + 1);
-                continue;
+            if (!emptyCounter.containsKey(responseCode)) {
+                emptyCounter.put(responseCode, 0);
             }
+            emptyCounter.put(responseCode, emptyCounter.get(responseCode) + 1);
+        }
+        for (Row row : kvs.lookupByIndex(CRAW_TABLE_NAME, "isEnglish", "true", List.of("url"))) {
+            String url = row.get("url");
             nonEmptyRows++;
 
             String domainName = getDomainName(getHostName(url));
@@ -17,20 +17,10 @@ public class Indexer {
     private static final Logger logger = Logger.getLogger(Indexer.class);
 
     public static void run(FlameContext flameContext, String[] args) throws Exception {
-        FlameRDD rawData = flameContext.fromTable("pt-crawl", row -> {
+        FlameRDD rawData = flameContext.fromTable("pt-crawl", Crawler::isIndexablePage, List.of("url", "page", "title", "description"), row -> {
             String hashKey = row.key();
             String url = row.get("url");
-            if (url != null && url.contains("..")) {
-                return null;
-            }
             String page = processAndNormalizeText(row.get("page")).trim();
-            if (row.get("page") == null || row.get("page").isEmpty() || row.get("page").equals(" ")) {
-                return null;
-            }
-            String responseCode = row.get("responseCode");
-            if (!responseCode.equals("200")) {
-                return null;
-            }
             String title = row.get("title") != null && !row.get("title").isEmpty() ? processAndNormalizeText(row.get("title")) : "EMPTYTITLE";
             String description = row.get("description") != null && !row.get("description").isEmpty() ? processAndNormalizeText(row.get("description")) : "EMPTYDESCRIPTION";
 
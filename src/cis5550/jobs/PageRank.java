@@ -29,21 +29,9 @@ public class PageRank {
 
         double convergenceThreshold = Double.parseDouble(args[0]);
 
-        FlameRDD ptCrawlData = flameContext.fromTable("pt-crawl", row -> {
-            String url = row.get("url");
-            if (url != null && url.contains("..")) {
-                return null;
-            }
-            String page = row.get("page");
-            if (row.get("page") == null || row.get("page").isEmpty() || row.get("page").equals(" ")) {
-                return null;
-            }
-            String responseCode = row.get("responseCode");
-            if (!responseCode.equals("200")) {
-                return null;
-            }
+        FlameRDD ptCrawlData = flameContext.fromTable("pt-crawl", Crawler::isIndexablePage, List.of("url", "page"), row -> {
             String rowKey = row.key();
-            return rowKey + URL_DELIMITER + url + URL_DELIMITER + page;
+            return rowKey + URL_DELIMITER + row.get("url") + URL_DELIMITER + row.get("page");
         });
 
         FlamePairRDD indexedData = ptCrawlData.mapToPair(line -> {
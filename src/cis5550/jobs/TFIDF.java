@@ -13,7 +13,14 @@ public class TFIDF {
     public static void run(FlameContext context, String[] args) throws Exception {
 
         int count = context.getKVS().count("pt-pageranks"); //total number of urls
-        FlameRDD ft = context.fromTable("pt-index", r -> r.key() + "," + r.get("value"));
+        // the indexer may still be adding to pt-index, so the job reads it as of one point in time
+        String snapshotId = context.getKVS().snapshot("pt-index");
+        FlameRDD ft;
+        try {
+            ft = context.fromSnapshot("pt-index", snapshotId, r -> r.key() + "," + r.get("value"));
+        } finally {
+            context.getKVS().releaseSnapshot("pt-index", snapshotId);
+        }
 
         FlamePairRDD out = ft.flatMapToPair(s -> {
             int firstComma = s.indexOf(',');
@@ -16,21 +16,30 @@ import java.util.List;
 
 public class WordsLoader {
     private static final String filePath = "src/resources/words.txt";
+    private static final int BATCH_SIZE = 10000;
     public static void run(FlameContext context, String[] args) throws Exception {
         readWordsFile(context);
     }
 
     private static void readWordsFile(FlameContext context) throws Exception {
         try (BufferedReader reader = new BufferedReader(new FileReader(filePath, StandardCharsets.UTF_8))) {
+            List<Row> batch = new ArrayList<>();
             String line;
             while ((line = reader.readLine()) != null) {
                 if (!line.trim().isEmpty()) {
                     String rowKey = Hasher.hash(line);
                     Row row = new Row(rowKey);
                     row.put("value", line);
-                    context.getKVS().putRow("pt-words", row);
+                    batch.add(row);
+                    if (batch.size() == BATCH_SIZE) {
+                        context.getKVS().putRows("pt-words", batch);
+                        batch.clear();
+                    }
                 }
             }
+            if (!batch.isEmpty()) {
+                context.getKVS().putRows("pt-words", batch);
+            }
         } catch (Exception e) {
             System.err.println("Failed to read words file: " + e.getMessage());
             throw e;
@@ -0,0 +1,282 @@
+package cis5550.kvs;
+
+import cis5550.tools.Logger;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * A non-blocking client for the single-row operations of the KVS: every call returns at once with a
+ * CompletableFuture, so one thread can keep hundreds of operations in flight. The requests of all clients in the
+ * process go through one java.net.http.HttpClient, which pools its connections per worker. At most
+ * maxInFlightPerWorker requests of a client are sent to a worker at a time, and the rest wait in a queue until one of
+ * them is answered, so a burst of operations cannot swamp a worker. The client may be shared by any number of threads.
+ *
+ * Keys are routed with a snapshot of the workers and the range map (KVSClient.Routing), starting with that of the
+ * KVSClient passed in, if it has one. A request that a worker refuses with 421 is sent again once a fresh snapshot
+ * has replaced the old one, like KVSClient.requestForKey() does; the KVSClient itself is never changed. Reads always
+ * go to the owner of the row. The futures fail with an IOException if a worker cannot be reached, and with a
+ * RuntimeException if it answers with an error, the exceptions that KVSClient's blocking calls throw; no call throws
+ * by itself.
+ */
+public class AsyncKVSClient implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(AsyncKVSClient.class);
+    static final int DEFAULT_MAX_IN_FLIGHT_PER_WORKER = 32;
+    private static final Duration CONNECT_TIMEOUT = Duration.ofSeconds(10);
+
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kvs-async");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final HttpClient http = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .connectTimeout(CONNECT_TIMEOUT)
+            .executor(executor)
+            .build();
+
+    private final String coordinator;
+    private final int maxInFlightPerWorker;
+    private final Map<String, WorkerQueue> queues = new ConcurrentHashMap<>();
+    private volatile KVSClient.Routing routing;
+    private volatile boolean closed;
+
+    public AsyncKVSClient(String coordinator) {
+        this(new KVSClient(coordinator), DEFAULT_MAX_IN_FLIGHT_PER_WORKER);
+    }
+
+    public AsyncKVSClient(KVSClient routing, int maxInFlightPerWorker) {
+        if (maxInFlightPerWorker < 1) {
+            throw new IllegalArgumentException("maxInFlightPerWorker must be at least 1");
+        }
+        this.coordinator = routing.getCoordinator();
+        this.maxInFlightPerWorker = maxInFlightPerWorker;
+        this.routing = routing.routing;
+    }
+
+    public CompletableFuture<Void> put(String tableName, String row, String column, byte[] value) {
+        String path = "/data/" + tableName + "/" + encode(row) + "/" + encode(column);
+        return requestForKey("PUT", row, path, value).thenApply(res -> {
+            expectOK(res, "PUT " + path);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> put(String tableName, String row, String column, String value) {
+        return put(tableName, row, column, value.getBytes());
+    }
+
+    public CompletableFuture<Void> putRow(String tableName, Row row) {
+        return requestForKey("PUT", row.key(), "/data/" + tableName, row.toBinary()).thenApply(res -> {
+            expectOK(res, "PUT of row '" + row.key() + "'");
+            return null;
+        });
+    }
+
+    /* Completes with null if the row does not exist */
+    public CompletableFuture<Row> getRow(String tableName, String row) {
+        return requestForKey("GET", row, "/data/" + tableName + "/" + encode(row), null).thenApply(res -> {
+            if (res.statusCode() == 404) {
+                return null;
+            }
+            try {
+                return Row.fromBytes(res.body());
+            } catch (Exception e) {
+                throw new RuntimeException("Decoding error while reading row '" + row + "'", e);
+            }
+        });
+    }
+
+    /* Completes with null if the row or the column does not exist */
+    public CompletableFuture<byte[]> get(String tableName, String row, String column) {
+        return requestForKey("GET", row, "/data/" + tableName + "/" + encode(row) + "/" + encode(column), null)
+                .thenApply(res -> res.statusCode() == 200 ? res.body() : null);
+    }
+
+    public CompletableFuture<Boolean> existsRow(String tableName, String row) {
+        return requestForKey("GET", row, "/exists/" + tableName + "/" + encode(row), null)
+                .thenApply(res -> res.statusCode() == 200);
+    }
+
+    public CompletableFuture<Long> increment(String tableName, String row, String column, long delta) {
+        String path = "/increment/" + tableName + "/" + encode(row) + "/" + encode(column) + "?delta=" + delta;
+        return requestForKey("PUT", row, path, null).thenApply(res -> {
+            String result = new String(res.body());
+            if (res.statusCode() != 200) {
+                throw new RuntimeException("Increment failed: " + result);
+            }
+            return Long.parseLong(result);
+        });
+    }
+
+    /* The number of requests to the worker that have been sent and not yet answered, plus those still queued */
+    public int pending(String address) {
+        WorkerQueue queue = queues.get(address);
+        return queue != null ? queue.pending() : 0;
+    }
+
+    /* Requests that were already made are still sent; new ones fail */
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    /* The current snapshot of the workers and the range map, fetched first if there is none yet */
+    KVSClient.Routing routing() throws IOException {
+        KVSClient.Routing current = routing;
+        return current != null ? current : refreshRouting(null);
+    }
+
+    /*
+     * Replaces the snapshot with a fresh one, unless another thread has already replaced the stale one, so that a
+     * burst of misdirected requests does not fetch the map once for each of them
+     */
+    synchronized KVSClient.Routing refreshRouting(KVSClient.Routing stale) throws IOException {
+        if (routing != stale) {
+            return routing;
+        }
+        routing = KVSClient.fetchRouting(coordinator);
+        return routing;
+    }
+
+    /*
+     * Sends a request to the worker that owns the key. A worker that refuses it with 421 has missed a change of the
+     * range map; the map is then fetched again, after a wait that grows with each attempt, and the request retried.
+     */
+    CompletableFuture<HttpResponse<byte[]>> requestForKey(String method, String key, String path, byte[] body) {
+        return requestForKey(method, key, path, body, 1);
+    }
+
+    private CompletableFuture<HttpResponse<byte[]>> requestForKey(String method, String key, String path, byte[] body, int attempt) {
+        KVSClient.Routing used;
+        String address;
+        try {
+            used = routing();
+            address = used.addressForKey(key);
+        } catch (Throwable e) {
+            return CompletableFuture.failedFuture(e);
+        }
+
+        return send(address, method, path, body).thenCompose(res -> {
+            if (res.statusCode() != KVSClient.MISDIRECTED || attempt == KVSClient.MAX_ROUTING_ATTEMPTS) {
+                return CompletableFuture.completedFuture(res);
+            }
+            // waits off the caller's thread, unlike KVSClient.refreshRouting()
+            long delayInMs = Math.min(50L << attempt, 1000);
+            return CompletableFuture.runAsync(() -> {
+                try {
+                    refreshRouting(used);
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            }, CompletableFuture.delayedExecutor(delayInMs, TimeUnit.MILLISECONDS, executor))
+                    .thenCompose(refreshed -> requestForKey(method, key, path, body, attempt + 1));
+        });
+    }
+
+    /* Sends the request once the worker has a free slot; completes when the worker has answered */
+    CompletableFuture<HttpResponse<byte[]>> send(String address, String method, String path, byte[] body) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("The client has been closed"));
+        }
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(URI.create("http://" + address + path))
+                    .method(method, body != null ? HttpRequest.BodyPublishers.ofByteArray(body) : HttpRequest.BodyPublishers.noBody())
+                    .build();
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(new IOException("Invalid request path '" + path + "'", e));
+        }
+
+        WorkerQueue queue = queues.computeIfAbsent(address, newAddress -> new WorkerQueue());
+        CompletableFuture<HttpResponse<byte[]>> answered = new CompletableFuture<>();
+        queue.submit(() -> {
+            ReplicaSelector.started(address);
+            try {
+                http.sendAsync(request, HttpResponse.BodyHandlers.ofByteArray())
+                        .whenComplete((res, e) -> answered(address, path, queue, answered, res, e));
+            } catch (Throwable e) {
+                answered(address, path, queue, answered, null, e);
+            }
+        });
+        return answered;
+    }
+
+    /* Frees the request's slot, then completes its future */
+    private static void answered(String address, String path, WorkerQueue queue,
+                                 CompletableFuture<HttpResponse<byte[]>> answered, HttpResponse<byte[]> res, Throwable e) {
+        ReplicaSelector.finished(address);
+        queue.finished();
+        if (e != null) {
+            Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+            logger.debug("Request to " + address + path + " failed: " + cause);
+            answered.completeExceptionally(cause instanceof IOException ? cause
+                    : new IOException("Request to " + address + " failed", cause));
+        } else {
+            answered.complete(res);
+        }
+    }
+
+    private static void expectOK(HttpResponse<byte[]> res, String what) {
+        String result = new String(res.body());
+        if (!result.equals("OK")) {
+            throw new RuntimeException(what + " returned something other than OK: " + result);
+        }
+    }
+
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8);
+    }
+
+    /* The requests to one worker: those in flight, up to the limit, and those waiting for a slot, in order */
+    private class WorkerQueue {
+        private final Queue<Runnable> waiting = new ArrayDeque<>();
+        private int inFlight;
+
+        void submit(Runnable request) {
+            synchronized (this) {
+                if (inFlight >= maxInFlightPerWorker) {
+                    waiting.add(request);
+                    return;
+                }
+                inFlight++;
+            }
+            request.run();
+        }
+
+        /* Hands the slot of an answered request to the next one that is waiting, if any */
+        void finished() {
+            Runnable next;
+            synchronized (this) {
+                next = waiting.poll();
+                if (next == null) {
+                    inFlight--;
+                    return;
+                }
+            }
+            next.run();
+        }
+
+        synchronized int pending() {
+            return inFlight + waiting.size();
+        }
+    }
+}
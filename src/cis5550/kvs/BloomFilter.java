@@ -0,0 +1,96 @@
+package cis5550.kvs;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * A Bloom filter over row keys, sized for a given number of keys and false positive rate. mightContain() never
+ * returns false for a key that was added, so a false answer proves that a row does not exist without a lookup in
+ * the table's index. Bits are never cleared; a filter that has seen too many keys (including ones that were deleted
+ * since) is replaced by a new one rather than updated.
+ */
+class BloomFilter {
+
+    private final AtomicLongArray bits;
+    private final long numBits;
+    private final int numHashes;
+    private final int capacity;
+    private int added;
+
+    BloomFilter(int capacity, double falsePositiveRate) {
+        this.capacity = Math.max(capacity, 1);
+        double ln2 = Math.log(2);
+        long wanted = (long) Math.ceil(-this.capacity * Math.log(falsePositiveRate) / (ln2 * ln2));
+        this.numBits = Math.max(64, (wanted + 63) / 64 * 64);
+        this.numHashes = Math.max(1, (int) Math.round((double) numBits / this.capacity * ln2));
+        this.bits = new AtomicLongArray((int) (numBits / 64));
+    }
+
+    /* Callers serialize add() with their own lock; mightContain() may run concurrently with it */
+    void add(String key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            long mask = 1L << bit;
+            if ((bits.get(word) & mask) == 0) {
+                bits.set(word, bits.get(word) | mask);
+            }
+        }
+        added++;
+    }
+
+    boolean mightContain(String key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L) | 1;
+        for (int i = 0; i < numHashes; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean isFull() {
+        return added > capacity;
+    }
+
+    long numBits() {
+        return numBits;
+    }
+
+    int numHashes() {
+        return numHashes;
+    }
+
+    /* The false positive rate implied by the fraction of bits that are set */
+    double expectedFalsePositiveRate() {
+        long set = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            set += Long.bitCount(bits.get(i));
+        }
+        return Math.pow((double) set / numBits, numHashes);
+    }
+
+    /* 64-bit FNV-1a over the key's characters, with a final avalanche so that both halves are well mixed */
+    private static long hash(String key) {
+        long hash = 0xCBF29CE484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            hash ^= key.charAt(i);
+            hash *= 0x100000001B3L;
+        }
+        return mix(hash);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB93FE1A85B53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,108 @@
+package cis5550.kvs;
+
+import cis5550.tools.KeyEncoder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/*
+ * A secondary index over one column of a persistent table, kept by each worker for the rows it holds. An entry is a
+ * row key stored under value + NUL + row key in a SegmentStore of its own, in the indexes/ directory of the table,
+ * so the entries are sorted by value and moved or dropped together with the table. Values are compared as UTF-8
+ * strings, and must not contain NUL themselves.
+ *
+ * Writers add a row's new entry before they write the row and remove its old entry afterwards, so that a crash in
+ * between (or a backfill that races with a write) can leave an entry too many but never miss one; readers check
+ * each row's current value before they return it.
+ */
+class ColumnIndex {
+
+    static final String DIRECTORY = "indexes";
+    private static final char SEPARATOR = '\0';
+
+    private final String column;
+    private final SegmentStore store;
+
+    private ColumnIndex(String column, SegmentStore store) {
+        this.column = column;
+        this.store = store;
+    }
+
+    static ColumnIndex open(File tableDir, String column, boolean readOnly) throws IOException {
+        return openAt(new File(new File(tableDir, DIRECTORY), KeyEncoder.encode(column)), column, readOnly);
+    }
+
+    /* An index in a directory of its own choosing, which indexedColumns() does not list */
+    static ColumnIndex openAt(File dir, String column, boolean readOnly) throws IOException {
+        return new ColumnIndex(column, readOnly ? SegmentStore.openReadOnly(dir) : SegmentStore.open(dir));
+    }
+
+    /* The columns that have an index in the given table directory */
+    static List<String> indexedColumns(File tableDir) {
+        List<String> columns = new ArrayList<>();
+        File[] dirs = new File(tableDir, DIRECTORY).listFiles(File::isDirectory);
+        if (dirs != null) {
+            for (File dir : dirs) {
+                columns.add(KeyEncoder.decode(dir.getName()));
+            }
+        }
+        return columns;
+    }
+
+    String column() {
+        return column;
+    }
+
+    File directory() {
+        return store.directory();
+    }
+
+    void add(String rowKey, byte[] value) throws IOException {
+        if (value != null) {
+            store.put(new Row(entryKey(value, rowKey)));
+        }
+    }
+
+    void remove(String rowKey, byte[] value) throws IOException {
+        if (value != null) {
+            store.delete(entryKey(value, rowKey));
+        }
+    }
+
+    /* The keys of the rows whose value is in [from, toExclusive), or equal to from if toExclusive is null */
+    List<String> rowKeys(String from, String toExclusive) {
+        List<String> rowKeys = new ArrayList<>();
+        for (Map.Entry<String, String> entry : entries(from, toExclusive)) {
+            rowKeys.add(entry.getValue());
+        }
+        return rowKeys;
+    }
+
+    /* Like rowKeys(), but as (value, row key) pairs, for callers that need to remove entries they find to be stale */
+    List<Map.Entry<String, String>> entries(String from, String toExclusive) {
+        String start = toExclusive == null ? from + SEPARATOR : from;
+        String end = toExclusive == null ? from + (char) (SEPARATOR + 1) : toExclusive;
+        List<Map.Entry<String, String>> entries = new ArrayList<>();
+        if (start.compareTo(end) >= 0) {
+            return entries;
+        }
+        for (String entry : store.keys(start, end)) {
+            int separator = entry.indexOf(SEPARATOR);
+            entries.add(new AbstractMap.SimpleEntry<>(entry.substring(0, separator), entry.substring(separator + 1)));
+        }
+        return entries;
+    }
+
+    void close() throws IOException {
+        store.close();
+    }
+
+    private static String entryKey(byte[] value, String rowKey) {
+        return new String(value, StandardCharsets.UTF_8) + SEPARATOR + rowKey;
+    }
+}
@@ -1,12 +1,49 @@
 package cis5550.kvs;
 
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
 import static cis5550.webserver.Server.*;
 public class Coordinator extends cis5550.generic.Coordinator {
 
+    private static final Logger logger = Logger.getLogger(Coordinator.class);
+    private static final long REBALANCE_INTERVAL_IN_S = 15;
+    private static final long FOLLOWER_SYNC_INTERVAL_IN_S = 2;
+    // ranges with fewer rows than this are never split, and a KVS with fewer rows than this is never rebalanced
+    private static final long MIN_SPLIT_ROWS = 10_000;
+    // a range that carries more than this fraction of a worker's fair share of the load is split
+    private static final double SPLIT_SHARE = 0.5;
+    // ranges are only moved if the most and least loaded workers differ by more than this fraction of the total load
+    private static final double MIN_IMBALANCE = 0.1;
+
+    private static final Object rangeLock = new Object();
+    private static RangeMap rangeMap = RangeMap.derive(0, Collections.emptyMap());
+    // how many workers hold a copy of each range's persistent rows: its owner and copies - 1 followers
+    private static int copies = 1;
+    private static long publishedVersion = -1;
+
     public static void main(String[] args) {
         if (args.length < 1) {
-            System.err.println("Usage: java KVSCoordinator <port>");
-            System.exit(1);
+            printUsageAndExit();
+        }
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].startsWith("--replicas=")) {
+                copies = Integer.parseInt(args[i].substring("--replicas=".length()));
+                if (copies < 1) {
+                    printUsageAndExit();
+                }
+            } else {
+                printUsageAndExit();
+            }
         }
 
         int portNum = Integer.parseInt(args[0]);
@@ -14,15 +51,341 @@ public class Coordinator extends cis5550.generic.Coordinator {
 
         registerRoutes();
         startCleanupTask();
+        startRebalancer();
 
         get("/", (req, res) -> {
             res.type("text/html");
             return "<html><head><title>KVS Coordinator</title></head>"
                     + "<body><h1>KVS Coordinator</h1>"
                     + workerTable()
+                    + rangeTable()
                     + "</body></html>";
         });
+
+        get("/ranges", (req, res) -> {
+            res.type("text/plain");
+            return currentRanges().serialize();
+        });
+
+        // workers send back the map they have if this coordinator has restarted and knows an older one
+        put("/ranges", (req, res) -> {
+            try {
+                RangeMap reported = RangeMap.parse(new String(req.bodyAsBytes(), StandardCharsets.UTF_8));
+                synchronized (rangeLock) {
+                    if (reported.version() > rangeMap.version()) {
+                        rangeMap = reported;
+                        logger.info("Adopted range map version " + reported.version() + " from a worker");
+                    }
+                }
+                return "OK";
+            } catch (IllegalArgumentException e) {
+                res.status(400, "Bad Request");
+                return e.getMessage();
+            }
+        });
     }
 
-}
+    private static void printUsageAndExit() {
+        System.err.println("Usage: java KVSCoordinator <port> [--replicas=<copies>]");
+        System.exit(1);
+    }
+
+    /*
+     * As long as no range has been split or moved, the map follows the set of live workers. Either way, the
+     * followers of each range are chosen among the live workers again, so a follower that has disappeared is
+     * replaced by one that gets a fresh copy.
+     */
+    static RangeMap currentRanges() {
+        synchronized (rangeLock) {
+            Map<String, String> liveWorkers = getWorkerAddresses();
+            RangeMap candidate = rangeMap;
+            if (rangeMap.isDerived()) {
+                candidate = RangeMap.derive(rangeMap.version(), liveWorkers);
+                if (copies > 1) {
+                    candidate = withoutUncopiedHandovers(candidate, liveWorkers);
+                }
+            }
+            candidate = candidate.withFollowers(copies, liveWorkers, rangeMap);
+            if (!candidate.sameAssignment(rangeMap)) {
+                rangeMap = candidate.withVersion(rangeMap.version() + 1);
+            }
+            return rangeMap;
+        }
+    }
 
+    /*
+     * With replication, a worker that joins, or comes back after it was given up on, has no copy (or only an old
+     * one) of the rows that the derived map would hand it. Such a range stays with its live owner if it has any
+     * persistent rows, which makes the map explicit; the new worker then gets ranges by rebalancing instead.
+     */
+    private static RangeMap withoutUncopiedHandovers(RangeMap candidate, Map<String, String> liveWorkers) {
+        RangeMap result = candidate;
+        for (RangeMap.Range range : candidate.ranges()) {
+            RangeMap.Range before = rangeMap.rangeFor(range.start);
+            if (before == null || before.workerId.equals(range.workerId) || !liveWorkers.containsKey(before.workerId)
+                    || rangeMap.hadCopy(range, range.workerId)) {
+                continue;
+            }
+            long rows;
+            try {
+                HTTP.Response res = HTTP.doRequest("GET", "http://" + before.address + "/ranges/rows?" + rangeParams(range), null);
+                rows = res.statusCode() == 200 ? Long.parseLong(new String(res.body(), StandardCharsets.UTF_8).trim()) : 1;
+            } catch (IOException | NumberFormatException e) {
+                rows = 1;
+            }
+            if (rows > 0) {
+                logger.info("Keeping the range starting at '" + range.start + "' on " + before.workerId
+                        + ", since " + range.workerId + " has no copy of it");
+                result = result.reassign(range.start, before.workerId, before.address);
+            }
+        }
+        return result;
+    }
+
+    private static String rangeTable() {
+        RangeMap map = currentRanges();
+        StringBuilder sb = new StringBuilder();
+        sb.append("<h2>Ranges (version ").append(map.version()).append(map.isDerived() ? ", derived" : "").append(")</h2>");
+        sb.append("<table border=\"1\"><tr><th>Start</th><th>End</th><th>Worker ID</th><th>Followers</th></tr>");
+        for (RangeMap.Range range : map.ranges()) {
+            sb.append("<tr><td>").append(range.start).append("</td><td>").append(range.end != null ? range.end : "")
+                    .append("</td><td>").append(range.workerId).append("</td><td>");
+            for (RangeMap.Follower follower : range.followers) {
+                sb.append(follower.workerId).append(follower.ready ? "" : " (syncing)").append(" ");
+            }
+            sb.append("</td></tr>");
+        }
+        sb.append("</table>");
+        return sb.toString();
+    }
+
+    private static void startRebalancer() {
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "range-rebalancer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                rebalance();
+            } catch (Exception e) {
+                logger.error("Rebalancing failed", e);
+            }
+        }, REBALANCE_INTERVAL_IN_S, REBALANCE_INTERVAL_IN_S, TimeUnit.SECONDS);
+        // on the same thread, so that followers are never brought up to date while a range is being moved
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                syncFollowers();
+            } catch (Exception e) {
+                logger.error("Syncing followers failed", e);
+            }
+        }, FOLLOWER_SYNC_INTERVAL_IN_S, FOLLOWER_SYNC_INTERVAL_IN_S, TimeUnit.SECONDS);
+    }
+
+    /*
+     * Has the owner of each range copy it to the followers that are still syncing, and marks them ready once they
+     * have it. The owner must already know the follower, so that it forwards the writes that the copy misses;
+     * hence the map is published before the first copy starts.
+     */
+    static void syncFollowers() {
+        RangeMap map = currentRanges();
+        Map<String, String> liveWorkers = getWorkerAddresses();
+        boolean published = false;
+        for (RangeMap.Range range : map.ranges()) {
+            for (RangeMap.Follower follower : range.followers) {
+                if (follower.ready || !liveWorkers.containsKey(range.workerId) || !liveWorkers.containsKey(follower.workerId)) {
+                    continue;
+                }
+                if (!published && publishedVersion != map.version()) {
+                    publish();
+                }
+                published = true;
+                try {
+                    HTTP.Response res = HTTP.doRequest("POST", "http://" + range.address + "/ranges/replicate?" + rangeParams(range)
+                            + "&target=" + URLEncoder.encode(follower.address, StandardCharsets.UTF_8), null);
+                    if (res.statusCode() != 200) {
+                        logger.warn("Copying the range starting at '" + range.start + "' to " + follower.workerId
+                                + " failed: " + new String(res.body(), StandardCharsets.UTF_8));
+                        continue;
+                    }
+                } catch (IOException e) {
+                    logger.warn("Copying the range starting at '" + range.start + "' to " + follower.workerId + " failed: " + e.getMessage());
+                    continue;
+                }
+                synchronized (rangeLock) {
+                    RangeMap.Range current = rangeMap.rangeStartingAt(range.start);
+                    if (current == null || !current.workerId.equals(range.workerId) || !Objects.equals(current.end, range.end)
+                            || current.followerFor(follower.workerId) == null) {
+                        continue;
+                    }
+                    rangeMap = rangeMap.markReady(range.start, follower.workerId);
+                }
+                logger.info("Follower " + follower.workerId + " of the range starting at '" + range.start + "' is ready");
+            }
+        }
+        if (published) {
+            publish();
+        }
+    }
+
+    /*
+     * Takes one step towards an even load: splits the range with the largest load if it carries too much of one
+     * worker's share to be balanced, or else moves the range that best evens out the most and the least loaded
+     * worker. A range's load is its share of all rows, averaged with its share of all requests if there were any.
+     */
+    static void rebalance() throws IOException {
+        RangeMap map = currentRanges();
+        Map<String, String> liveWorkers = getWorkerAddresses();
+        if (liveWorkers.size() < 2 || map.isEmpty()) {
+            return;
+        }
+        for (RangeMap.Range range : map.ranges()) {
+            if (!liveWorkers.containsKey(range.workerId)) {
+                // moving data off or onto a worker that has disappeared cannot be done safely
+                return;
+            }
+        }
+
+        Map<String, long[]> rangeStats = new HashMap<>();
+        long totalRows = 0;
+        long totalRequests = 0;
+        for (String workerId : new TreeSet<>(liveWorkers.keySet())) {
+            HTTP.Response res = HTTP.doRequest("GET", "http://" + liveWorkers.get(workerId) + "/ranges/load", null);
+            if (res.statusCode() != 200) {
+                return;
+            }
+            for (String line : new String(res.body(), StandardCharsets.UTF_8).split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                RangeMap.Range range = map.rangeStartingAt(URLDecoder.decode(fields[0], StandardCharsets.UTF_8));
+                if (range == null || !range.workerId.equals(workerId)) {
+                    // the worker does not have the current map yet
+                    return;
+                }
+                long[] stats = {Long.parseLong(fields[1]), Long.parseLong(fields[2])};
+                rangeStats.put(range.start, stats);
+                totalRows += stats[0];
+                totalRequests += stats[1];
+            }
+        }
+        if (totalRows < MIN_SPLIT_ROWS) {
+            return;
+        }
+
+        Map<String, Double> rangeLoad = new HashMap<>();
+        Map<String, Double> workerLoad = new HashMap<>();
+        for (String workerId : liveWorkers.keySet()) {
+            workerLoad.put(workerId, 0.0);
+        }
+        RangeMap.Range heaviest = null;
+        for (RangeMap.Range range : map.ranges()) {
+            long[] stats = rangeStats.getOrDefault(range.start, new long[2]);
+            double load = totalRequests > 0
+                    ? ((double) stats[0] / totalRows + (double) stats[1] / totalRequests) / 2
+                    : (double) stats[0] / totalRows;
+            rangeLoad.put(range.start, load);
+            workerLoad.merge(range.workerId, load, Double::sum);
+            if (stats[0] >= MIN_SPLIT_ROWS && (heaviest == null || load > rangeLoad.get(heaviest.start))) {
+                heaviest = range;
+            }
+        }
+
+        double fairShare = 1.0 / liveWorkers.size();
+        if (heaviest != null && rangeLoad.get(heaviest.start) > SPLIT_SHARE * fairShare) {
+            split(heaviest);
+            return;
+        }
+
+        String mostLoaded = Collections.max(workerLoad.entrySet(), Map.Entry.comparingByValue()).getKey();
+        String leastLoaded = Collections.min(workerLoad.entrySet(), Map.Entry.comparingByValue()).getKey();
+        double imbalance = workerLoad.get(mostLoaded) - workerLoad.get(leastLoaded);
+        if (imbalance <= MIN_IMBALANCE) {
+            return;
+        }
+
+        // moving a range with load l leaves the two workers l - imbalance/2 away from even
+        RangeMap.Range best = null;
+        for (RangeMap.Range range : map.rangesOf(mostLoaded)) {
+            double load = rangeLoad.get(range.start);
+            if (load > 0 && load < imbalance
+                    && (best == null || Math.abs(load - imbalance / 2) < Math.abs(rangeLoad.get(best.start) - imbalance / 2))) {
+                best = range;
+            }
+        }
+        if (best != null) {
+            migrate(best, leastLoaded, liveWorkers.get(leastLoaded));
+        }
+    }
+
+    private static void split(RangeMap.Range range) throws IOException {
+        HTTP.Response res = HTTP.doRequest("GET", "http://" + range.address + "/ranges/median?" + rangeParams(range), null);
+        if (res.statusCode() != 200) {
+            return;
+        }
+        String splitKey = new String(res.body(), StandardCharsets.UTF_8);
+        synchronized (rangeLock) {
+            rangeMap = rangeMap.split(splitKey);
+        }
+        logger.info("Split the range starting at '" + range.start + "' at '" + splitKey + "'");
+        publish();
+    }
+
+    /*
+     * Moves a range to another worker while it stays online: the source copies it, fences it and copies what was
+     * written meanwhile; then the new map is published, which lifts the fence, and the source drops its copy.
+     */
+    private static void migrate(RangeMap.Range range, String targetId, String targetAddress) throws IOException {
+        logger.info("Moving the range starting at '" + range.start + "' from " + range.workerId + " to " + targetId);
+        String params = rangeParams(range);
+        HTTP.Response res = HTTP.doRequest("POST", "http://" + range.address + "/ranges/migrate?" + params
+                + "&target=" + URLEncoder.encode(targetAddress, StandardCharsets.UTF_8), null);
+        if (res.statusCode() != 200) {
+            logger.warn("Migration failed: " + new String(res.body(), StandardCharsets.UTF_8));
+            HTTP.doRequest("POST", "http://" + targetAddress + "/ranges/drop?" + params, null);
+            return;
+        }
+
+        synchronized (rangeLock) {
+            RangeMap.Range current = rangeMap.rangeStartingAt(range.start);
+            if (current == null || !current.workerId.equals(range.workerId) || !Objects.equals(current.end, range.end)) {
+                logger.warn("The range changed during its migration; keeping it where it was");
+                HTTP.doRequest("POST", "http://" + range.address + "/ranges/abort", null);
+                HTTP.doRequest("POST", "http://" + targetAddress + "/ranges/drop?" + params, null);
+                return;
+            }
+            rangeMap = rangeMap.reassign(range.start, targetId, targetAddress);
+        }
+        publish();
+        // the old owner and the followers that the range lost keep only what they still own or follow
+        for (Map.Entry<String, String> worker : getWorkerAddresses().entrySet()) {
+            if (!worker.getKey().equals(targetId)) {
+                HTTP.doRequest("POST", "http://" + worker.getValue() + "/ranges/drop?" + params, null);
+            }
+        }
+    }
+
+    /* Workers also pull the map every few seconds, so one that misses the push catches up on its own */
+    private static void publish() {
+        RangeMap current = currentRanges();
+        publishedVersion = current.version();
+        byte[] map = current.serialize().getBytes(StandardCharsets.UTF_8);
+        for (String address : getWorkerAddresses().values()) {
+            try {
+                HTTP.doRequest("PUT", "http://" + address + "/ranges", map);
+            } catch (IOException e) {
+                logger.warn("Failed to send the range map to " + address + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static String rangeParams(RangeMap.Range range) {
+        String params = "start=" + URLEncoder.encode(range.start, StandardCharsets.UTF_8);
+        if (range.end != null) {
+            params += "&end=" + URLEncoder.encode(range.end, StandardCharsets.UTF_8);
+        }
+        return params;
+    }
+
+}
@@ -0,0 +1,124 @@
+package cis5550.kvs;
+
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/*
+ * Decides when a write to a SegmentStore counts as durable and may be acknowledged:
+ *
+ *   none      - as soon as it has been handed to the OS; a crash of the machine may lose it
+ *   group:<N> - once the next group commit has fsynced it; a background thread fsyncs all stores written to in the
+ *               last N ms at once, so concurrent writers share a single fsync per store
+ *   fsync     - once it has been fsynced on its own
+ */
+class Durability {
+
+    private static final Logger logger = Logger.getLogger(Durability.class);
+
+    enum Mode { NONE, GROUP, FSYNC }
+
+    private final Mode mode;
+    private final long groupCommitIntervalInMs;
+    private final Object commitLock = new Object();
+    private GroupCommit nextCommit = new GroupCommit();
+
+    private Durability(Mode mode, long groupCommitIntervalInMs) {
+        this.mode = mode;
+        this.groupCommitIntervalInMs = groupCommitIntervalInMs;
+        if (mode == Mode.GROUP) {
+            Thread committer = new Thread(this::runGroupCommits, "group-commit");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    static Durability parse(String spec) {
+        if (spec.equals("none")) {
+            return new Durability(Mode.NONE, 0);
+        }
+        if (spec.equals("fsync")) {
+            return new Durability(Mode.FSYNC, 0);
+        }
+        if (spec.startsWith("group:")) {
+            long interval = Long.parseLong(spec.substring("group:".length()));
+            if (interval <= 0) {
+                throw new IllegalArgumentException("Group commit interval must be positive: " + spec);
+            }
+            return new Durability(Mode.GROUP, interval);
+        }
+        throw new IllegalArgumentException("Unknown durability mode: " + spec);
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    /* Blocks until everything written to the store so far is as durable as the mode promises */
+    void await(SegmentStore store) throws IOException {
+        if (mode == Mode.NONE) {
+            return;
+        }
+        if (mode == Mode.FSYNC) {
+            store.sync();
+            return;
+        }
+
+        synchronized (commitLock) {
+            // joins the commit that has not started yet; one that is already running may have missed this write
+            GroupCommit commit = nextCommit;
+            commit.stores.add(store);
+            while (!commit.done) {
+                try {
+                    commitLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for group commit", e);
+                }
+            }
+            if (commit.failures.containsKey(store)) {
+                throw commit.failures.get(store);
+            }
+        }
+    }
+
+    private void runGroupCommits() {
+        while (true) {
+            try {
+                Thread.sleep(groupCommitIntervalInMs);
+            } catch (InterruptedException e) {
+                return;
+            }
+
+            GroupCommit commit;
+            synchronized (commitLock) {
+                commit = nextCommit;
+                nextCommit = new GroupCommit();
+            }
+
+            for (SegmentStore store : commit.stores) {
+                try {
+                    store.sync();
+                } catch (IOException e) {
+                    logger.error("Group commit failed for " + store.directory(), e);
+                    commit.failures.put(store, e);
+                }
+            }
+
+            synchronized (commitLock) {
+                commit.done = true;
+                commitLock.notifyAll();
+            }
+        }
+    }
+
+    private static class GroupCommit {
+        final Set<SegmentStore> stores = new HashSet<>();
+        final Map<SegmentStore, IOException> failures = new HashMap<>();
+        boolean done;
+    }
+}
@@ -10,6 +10,9 @@ public interface KVS {
   Row getRow(String tableName, String row) throws FileNotFoundException, IOException;
   boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException;
   byte[] get(String tableName, String row, String column) throws FileNotFoundException, IOException;
+  long increment(String tableName, String row, String column, long delta) throws FileNotFoundException, IOException;
+  void append(String tableName, String row, String column, byte value[]) throws FileNotFoundException, IOException;
+  boolean compareAndSet(String tableName, String row, String column, byte expectedValue[], byte newValue[]) throws FileNotFoundException, IOException;
   Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws FileNotFoundException, IOException;
   int count(String tableName) throws FileNotFoundException, IOException;
   boolean rename(String oldTableName, String newTableName) throws IOException;
@@ -1,24 +1,53 @@
 package cis5550.kvs;
 
 import cis5550.tools.HTTP;
+import cis5550.tools.Hasher;
 import cis5550.tools.Logger;
+import cis5550.tools.Serializer;
 
 import java.io.*;
+import java.net.ConnectException;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
-public class KVSClient implements KVS {
+public class KVSClient implements KVS, Closeable {
 
     static final Logger logger = Logger.getLogger(KVSClient.class);
+    // the status with which a worker refuses a key that it does not own, or does not own any more
+    static final int MISDIRECTED = 421;
+    // the status with which a worker answers reads of a snapshot that it does not have
+    static final int GONE = 410;
+    static final int MAX_ROUTING_ATTEMPTS = 10;
+    // rows with a TTL hold their deadline here, in milliseconds since the epoch (zero-padded to 13 digits)
+    public static final String EXPIRES_COLUMN = "_expires";
 
     String coordinator;
     Vector<WorkerEntry> workers;
+    RangeMap ranges;
+    // the same workers and range map as the fields above, as one value that is replaced, never changed
+    volatile Routing routing;
+    byte[] filterJAR;
+    String filterJARHash;
+    volatile WriteBuffer writeBuffer;
 
     ;
     boolean haveWorkers;
@@ -118,6 +147,16 @@ public class KVSClient implements KVS {
     }
 
     synchronized void downloadWorkers() throws IOException {
+        Routing fetched = fetchRouting(coordinator);
+        workers.clear();
+        for (int i = 0; i < fetched.ids.size(); i++)
+            workers.add(new WorkerEntry(fetched.addresses.get(i), fetched.ids.get(i)));
+        ranges = fetched.ranges;
+        routing = fetched;
+        haveWorkers = true;
+    }
+
+    static Routing fetchRouting(String coordinator) throws IOException {
         String result = new String(HTTP.doRequest("GET", "http://" + coordinator + "/workers", null).body());
         String[] pieces = result.split("\n");
         int numWorkers = Integer.parseInt(pieces[0]);
@@ -125,26 +164,73 @@ public class KVSClient implements KVS {
             throw new IOException("No active KVS workers");
         if (pieces.length != (numWorkers + 1))
             throw new RuntimeException("Received truncated response when asking KVS coordinator for list of workers");
-        workers.clear();
+        List<WorkerEntry> entries = new ArrayList<>();
         for (int i = 0; i < numWorkers; i++) {
             String[] pcs = pieces[1 + i].split(",");
-            workers.add(new WorkerEntry(pcs[1], pcs[0]));
+            entries.add(new WorkerEntry(pcs[1], pcs[0]));
         }
-        Collections.sort(workers);
+        Collections.sort(entries);
 
-        haveWorkers = true;
+        // coordinators that predate range maps do not have /ranges; keys are then assigned by worker ID as before
+        HTTP.Response rangeResponse = HTTP.doRequest("GET", "http://" + coordinator + "/ranges", null);
+        RangeMap ranges = rangeResponse.statusCode() == 200 ? RangeMap.parse(new String(rangeResponse.body(), StandardCharsets.UTF_8)) : null;
+        return new Routing(entries, ranges);
     }
 
-    int workerIndexForKey(String key) {
-        int chosenWorker = workers.size() - 1;
-        if (key != null) {
-            for (int i = 0; i < workers.size() - 1; i++) {
-                if ((key.compareTo(workers.elementAt(i).id) >= 0) && (key.compareTo(workers.elementAt(i + 1).id) < 0))
-                    chosenWorker = i;
-            }
+    /* Waits a little longer after each misdirected attempt, then fetches the current workers and range map */
+    void refreshRouting(int attempt) throws IOException {
+        try {
+            Thread.sleep(Math.min(50L << attempt, 1000));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a new range map", e);
         }
+        downloadWorkers();
+    }
 
-        return chosenWorker;
+    /*
+     * Sends a request about a single row to the worker that owns it. A worker that does not own the row (because
+     * the range map changed since it was fetched) answers 421, and the request is retried with a fresh map.
+     */
+    HTTP.Response requestForKey(String method, String key, String path, byte[] body) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        for (int attempt = 1; ; attempt++) {
+            HTTP.Response res = HTTP.doRequest(method, "http://" + routing.addressForKey(key) + path, body);
+            if (res.statusCode() != MISDIRECTED || attempt == MAX_ROUTING_ATTEMPTS)
+                return res;
+            refreshRouting(attempt);
+        }
+    }
+
+    /*
+     * Reads a row of a replicated persistent table from whichever of its copies is expected to answer first, hedged
+     * with the next one if it is slow; see ReplicaSelector. Followers may be a few writes behind their owner. Other
+     * reads, and reads that no copy answers, go to the owner.
+     */
+    HTTP.Response readForKey(String tableName, String key, String path) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        List<String> candidates = readCandidates(tableName, key);
+        if (candidates.size() > 1) {
+            HTTP.Response res = ReplicaSelector.hedgedRequest(candidates, "GET", path);
+            if (res != null)
+                return res;
+        }
+        return requestForKey("GET", key, path, null);
+    }
+
+    /* The owner and the ready followers of the key's range, best first; just the owner for in-memory tables */
+    List<String> readCandidates(String tableName, String key) {
+        return readCandidates(routing, tableName, key);
+    }
+
+    private static List<String> readCandidates(Routing current, String tableName, String key) {
+        if (!tableName.startsWith("pt-") || current.ranges == null || current.ranges.isEmpty() || key == null)
+            return Collections.singletonList(current.addressForKey(key));
+        return ReplicaSelector.candidates(current.ranges.rangeFor(key));
     }
 
     public boolean rename(String oldTableName, String newTableName) throws IOException {
@@ -178,6 +264,60 @@ public class KVSClient implements KVS {
         }
     }
 
+    /*
+     * Changes settings of a persistent table on every worker, e.g. compression=deflate to store its larger columns
+     * compressed (see TableConfig for the settings). The table is created if it does not exist yet.
+     */
+    public void configureTable(String tableName, Map<String, String> settings) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        StringBuilder params = new StringBuilder();
+        for (Map.Entry<String, String> setting : settings.entrySet()) {
+            params.append(params.length() == 0 ? "?" : "&").append(java.net.URLEncoder.encode(setting.getKey(), "UTF-8"))
+                    .append("=").append(java.net.URLEncoder.encode(setting.getValue(), "UTF-8"));
+        }
+        for (WorkerEntry w : workers) {
+            HTTP.Response res = HTTP.doRequest("PUT", "http://" + w.address + "/config/" + java.net.URLEncoder.encode(tableName, "UTF-8") + params, null);
+            if (res.statusCode() != 200)
+                throw new IOException("Configuring table '" + tableName + "' on " + w.address + " failed: " + new String(res.body()));
+        }
+    }
+
+    /*
+     * Buffers put()s from now on and sends them to the workers in batches, coalescing writes to the same column of
+     * the same row; see WriteBuffer. flush() and close() return once all of them are written, and throw if any
+     * failed. Other operations, reads included, are not buffered, so they do not see writes that are not flushed.
+     */
+    public void bufferWrites() throws IOException {
+        bufferWrites(WriteBuffer.DEFAULT_BATCH_BYTES, WriteBuffer.DEFAULT_LINGER_IN_MS);
+    }
+
+    /* batchBytes is roughly how much is written to a worker per batch, lingerInMs how long a write waits at most */
+    public synchronized void bufferWrites(int batchBytes, long lingerInMs) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+        if (writeBuffer == null)
+            writeBuffer = new WriteBuffer(this, batchBytes, lingerInMs);
+    }
+
+    public void flush() throws IOException {
+        WriteBuffer buffer = writeBuffer;
+        if (buffer != null)
+            buffer.flush();
+    }
+
+    /* Flushes the buffered writes, if any, and goes back to writing each put() through */
+    public void close() throws IOException {
+        WriteBuffer buffer;
+        synchronized (this) {
+            buffer = writeBuffer;
+            writeBuffer = null;
+        }
+        if (buffer != null)
+            buffer.close();
+    }
+
     public void put(String tableName, String row, String column, byte value[]) throws IOException {
 //        System.out.println("IN PUT");
 //        System.out.println("table name: " + tableName);
@@ -191,8 +331,13 @@ public class KVSClient implements KVS {
 //                logger.info("This url contains .. is: " + row);
                 return;
             }
-            String target = "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8");
-            byte[] response = HTTP.doRequest("PUT", target, value).body();
+            WriteBuffer buffer = writeBuffer;
+            if (buffer != null) {
+                buffer.put(tableName, row, column, value);
+                return;
+            }
+            String target = "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8");
+            byte[] response = requestForKey("PUT", row, target, value).body();
             String result = new String(response);
             if (!result.equals("OK"))
                 throw new RuntimeException("PUT returned something other than OK: " + result + "(" + target + ")");
@@ -214,67 +359,425 @@ public class KVSClient implements KVS {
 //        System.out.println("row: " + row.key());
 //        System.out.println("row values: " + row.columns());
 
-        byte[] response = HTTP.doRequest("PUT", "http://" + workers.elementAt(workerIndexForKey(row.key())).address + "/data/" + tableName, row.toByteArray()).body();
+        byte[] response = requestForKey("PUT", row.key(), "/data/" + tableName, row.toBinary()).body();
+        String result = new String(response);
+        if (!result.equals("OK"))
+            throw new RuntimeException("PUT returned something other than OK: " + result);
+    }
+
+    /* Writes the row so that it expires the given number of seconds from now; see expire() */
+    public void putRow(String tableName, Row row, int ttlSeconds) throws IOException {
+        byte[] response = requestForKey("PUT", row.key(), "/data/" + tableName + "?ttl=" + ttlSeconds, row.toBinary()).body();
         String result = new String(response);
         if (!result.equals("OK"))
             throw new RuntimeException("PUT returned something other than OK: " + result);
     }
 
+    /*
+     * Has an existing row expire the given number of seconds from now, which replaces any TTL it had before; returns
+     * false if there is no such row. Workers delete expired rows in the background, so they can still be read for a
+     * few seconds after their deadline.
+     */
+    public boolean expire(String tableName, String row, int seconds) throws IOException {
+        HTTP.Response res = requestForKey("PUT", row, "/expire/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8")
+                + "?seconds=" + seconds, null);
+        if (res.statusCode() == 404)
+            return false;
+        if (res.statusCode() != 200)
+            throw new IOException("Failed to set the TTL of row '" + row + "' of table '" + tableName + "' (status "
+                    + res.statusCode() + "): " + new String(res.body()));
+        return true;
+    }
+
+    /*
+     * Has every worker drop the table the given number of seconds from now, unless this is called again before
+     * then; 0 removes the TTL. Renaming the table removes it as well.
+     */
+    public void setTableTTL(String tableName, int seconds) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        for (WorkerEntry w : workers) {
+            HTTP.Response res = HTTP.doRequest("PUT", "http://" + w.address + "/ttl/" + tableName + "?seconds=" + seconds, null);
+            if (res.statusCode() != 200)
+                throw new IOException("Failed to set the TTL of table '" + tableName + "' on " + w.address
+                        + " (status " + res.statusCode() + "): " + new String(res.body()));
+        }
+    }
+
+    /*
+     * Sends the rows to the workers that own them, one length-prefixed batch per worker and all workers in parallel.
+     * Each worker applies its batch and makes it durable before it answers. Batches that a worker refuses because
+     * the range map has changed are split up again with the new map and resent.
+     */
     public void putRows(String tableName, List<Row> rows) throws FileNotFoundException, IOException {
         if (!haveWorkers)
             downloadWorkers();
 
+        List<Row> pending = rows;
+        for (int attempt = 1; ; attempt++) {
+            List<Row> misdirected = Collections.synchronizedList(new ArrayList<>());
+            Vector<String> failures = new Vector<>();
+            forEachWorkerBatch(pending, routing::addressForKey, (address, batch) -> {
+                String target = "http://" + address + "/batch/" + tableName;
+                try {
+                    HTTP.Response response = HTTP.doRequest("PUT", target, encodeBatch(batch));
+                    if (response.statusCode() == MISDIRECTED)
+                        misdirected.addAll(batch);
+                    else if (!new String(response.body()).equals("OK"))
+                        failures.add(new String(response.body()) + " (" + target + ")");
+                } catch (IOException e) {
+                    failures.add(e.getMessage() + " (" + target + ")");
+                }
+            });
+
+            if (!failures.isEmpty())
+                throw new RuntimeException("Batch PUT returned something other than OK: " + failures);
+            if (misdirected.isEmpty())
+                return;
+            if (attempt == MAX_ROUTING_ATTEMPTS)
+                throw new IOException("Batch PUT kept being misdirected; " + misdirected.size() + " rows were not written");
+            refreshRouting(attempt);
+            pending = misdirected;
+        }
+    }
+
+    /*
+     * Fetches many rows with one request to each worker that owns any of them, all workers in parallel. Rows that do
+     * not exist are left out of the result; columns restricts the columns that are fetched, or is null for all.
+     * Rows of replicated persistent tables are fetched from the least loaded copy instead, and a copy that fails is
+     * not asked again in the same call.
+     */
+    public Map<String, Row> multiGet(String tableName, Collection<String> rowKeys, Collection<String> columns) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        List<Row> pending = new ArrayList<>();
+        for (String rowKey : new LinkedHashSet<>(rowKeys))
+            pending.add(new Row(rowKey));
+
+        Map<String, Row> result = new ConcurrentHashMap<>();
+        String params = formatParams(columns);
+        Set<String> failed = ConcurrentHashMap.newKeySet();
+        for (int attempt = 1; ; attempt++) {
+            List<Row> misdirected = Collections.synchronizedList(new ArrayList<>());
+            Vector<String> failures = new Vector<>();
+            Routing current = routing;
+            forEachWorkerBatch(pending, key -> readAddress(current, tableName, key, failed), (address, keys) -> {
+                String target = "http://" + address + "/mget/" + tableName + "?" + params;
+                // failures of a worker that only follows some of the rows are retried with another copy
+                boolean follower = keys.stream().anyMatch(key -> !address.equals(current.addressForKey(key.key())));
+                ReplicaSelector.started(address);
+                try {
+                    HTTP.Response response = HTTP.doRequest("POST", target, encodeBatch(keys));
+                    if (response.statusCode() == MISDIRECTED || (follower && response.statusCode() != 200)) {
+                        misdirected.addAll(keys);
+                        return;
+                    }
+                    if (response.statusCode() != 200) {
+                        failures.add(new String(response.body()) + " (" + target + ")");
+                        return;
+                    }
+                    for (Row row : decodeBatch(response.body()))
+                        result.put(row.key(), row);
+                } catch (Exception e) {
+                    if (follower) {
+                        failed.add(address);
+                        misdirected.addAll(keys);
+                    } else {
+                        failures.add(e.getMessage() + " (" + target + ")");
+                    }
+                } finally {
+                    ReplicaSelector.finished(address);
+                }
+            });
+
+            if (!failures.isEmpty())
+                throw new IOException("Multi-get failed: " + failures);
+            if (misdirected.isEmpty())
+                return result;
+            if (attempt == MAX_ROUTING_ATTEMPTS)
+                throw new IOException("Multi-get kept being misdirected for " + misdirected.size() + " rows");
+            refreshRouting(attempt);
+            pending = misdirected;
+        }
+    }
+
+    /* The copy of the key's row that a multi-get reads, skipping followers that have failed */
+    private static String readAddress(Routing current, String tableName, String key, Set<String> failed) {
+        for (String address : readCandidates(current, tableName, key)) {
+            if (!failed.contains(address))
+                return address;
+        }
+        return current.addressForKey(key);
+    }
+
+    interface WorkerBatchTask {
+        void run(String address, List<Row> batch);
+    }
+
+    /* Groups the rows by the worker that addressForKey picks for their keys and runs the task for each group, all in parallel */
+    private void forEachWorkerBatch(List<Row> rows, Function<String, String> addressForKey, WorkerBatchTask task) throws IOException {
+        Map<String, List<Row>> rowsByWorker = new LinkedHashMap<>();
+        for (Row row : rows)
+            rowsByWorker.computeIfAbsent(addressForKey.apply(row.key()), address -> new ArrayList<>()).add(row);
+
+        Vector<Thread> threads = new Vector<>();
+        for (Map.Entry<String, List<Row>> group : rowsByWorker.entrySet()) {
+            String address = group.getKey();
+            List<Row> batch = group.getValue();
+            Thread thread = new Thread(() -> task.run(address, batch));
+            threads.add(thread);
+            thread.start();
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for workers", e);
+            }
+        }
+    }
+
+    static byte[] encodeBatch(List<Row> rows) throws IOException {
         ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
         DataOutputStream dataOutputStream = new DataOutputStream(byteArrayOutputStream);
 
         dataOutputStream.writeInt(rows.size());
-
         for (Row row : rows) {
-            byte[] rowData = row.toByteArray();
+            byte[] rowData = row.toBinary();
             dataOutputStream.writeInt(rowData.length);
             dataOutputStream.write(rowData);
         }
 
         dataOutputStream.flush();
-        byte[] batchData = byteArrayOutputStream.toByteArray();
+        return byteArrayOutputStream.toByteArray();
+    }
 
-        byte[] response = HTTP.doRequest("PUT", "http://" + workers.firstElement().address + "/batch/" +tableName, batchData).body();
-        String result = new String(response);
-        if (!result.equals("OK")) {
-            throw new RuntimeException("PUT returned something other than OK: " + result);
+    static List<Row> decodeBatch(byte[] data) throws Exception {
+        DataInputStream dataInputStream = new DataInputStream(new ByteArrayInputStream(data));
+        int count = dataInputStream.readInt();
+        List<Row> rows = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte[] rowData = new byte[dataInputStream.readInt()];
+            dataInputStream.readFully(rowData);
+            rows.add(Row.fromBytes(rowData));
         }
-
+        return rows;
     }
 
     public Row getRow(String tableName, String row) throws IOException {
+        return getRow(tableName, row, null);
+    }
+
+    /* Fetches only the given columns of the row, or all of them if columns is null */
+    public Row getRow(String tableName, String row, Collection<String> columns) throws IOException {
         if (!haveWorkers)
             downloadWorkers();
 
-        HTTP.Response resp = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8"), null);
+        HTTP.Response resp = readForKey(tableName, row, "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "?" + formatParams(columns));
         if (resp.statusCode() == 404)
             return null;
 
         byte[] result = resp.body();
         try {
-            return Row.readFrom(new ByteArrayInputStream(result));
+            return Row.fromBytes(result);
         } catch (Exception e) {
             throw new RuntimeException("Decoding error while reading Row from getRow() URL");
         }
     }
 
+    /*
+     * Takes a snapshot of a persistent table on every worker and returns its ID, which getRowAt() and scanAt() read
+     * the table as of then with. Each worker snapshots its rows at once, but the workers do so one after another, so
+     * the snapshot is consistent per row range rather than across the whole table. Snapshots share their files
+     * with the table and last until releaseSnapshot().
+     *
+     * Reads of a snapshot go to the current owner of each range, so a range that moves to another worker in the
+     * meantime can no longer be read from snapshots taken before the move.
+     */
+    public String snapshot(String tableName) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        String snapshotId = java.util.UUID.randomUUID().toString();
+        List<WorkerEntry> done = new ArrayList<>();
+        for (WorkerEntry w : workers) {
+            HTTP.Response res = HTTP.doRequest("PUT", "http://" + w.address + "/snapshot/" + tableName + "?id=" + snapshotId, null);
+            if (res.statusCode() != 200) {
+                for (WorkerEntry taken : done)
+                    HTTP.doRequest("PUT", "http://" + taken.address + "/release/" + tableName + "/" + snapshotId, null);
+                throw new IOException("Failed to take a snapshot of table '" + tableName + "' on " + w.address
+                        + " (status " + res.statusCode() + "): " + new String(res.body()));
+            }
+            done.add(w);
+        }
+        return snapshotId;
+    }
+
+    public void releaseSnapshot(String tableName, String snapshotId) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        for (WorkerEntry w : workers)
+            HTTP.doRequest("PUT", "http://" + w.address + "/release/" + tableName + "/" + snapshotId, null);
+    }
+
+    /*
+     * Reads the row as it was when the snapshot was taken, or returns null if it did not exist then. Only the owner
+     * of the row's range is asked, since a follower may not have had a complete copy of the range at the time.
+     */
+    public Row getRowAt(String tableName, String row, String snapshotId) throws IOException {
+        HTTP.Response resp = requestForKey("GET", row, "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8")
+                + "?" + formatParams(null) + "&snapshot=" + snapshotId, null);
+        if (resp.statusCode() == 404)
+            return null;
+        if (resp.statusCode() != 200)
+            throw new IOException("Failed to read row '" + row + "' from snapshot '" + snapshotId + "' of table '"
+                    + tableName + "' (status " + resp.statusCode() + ")");
+
+        try {
+            return Row.fromBytes(resp.body());
+        } catch (Exception e) {
+            throw new RuntimeException("Decoding error while reading Row from getRowAt() URL");
+        }
+    }
+
+    /*
+     * Has every worker keep an index over the column of a persistent table, so that lookupByIndex() can find the rows
+     * with a given value without scanning the table. Rows that are already there get indexed right away.
+     */
+    public void createIndex(String tableName, String column) throws IOException {
+        indexRequest(tableName, "/index/", column);
+    }
+
+    public void dropIndex(String tableName, String column) throws IOException {
+        indexRequest(tableName, "/unindex/", column);
+    }
+
+    /* The rows whose column holds exactly the given value, in the order of their keys */
+    public List<Row> lookupByIndex(String tableName, String column, String value) throws IOException {
+        return lookupByIndex(tableName, column, value, null);
+    }
+
+    public List<Row> lookupByIndex(String tableName, String column, String value, Collection<String> columns) throws IOException {
+        return indexLookup(tableName, column, columns, "&value=" + java.net.URLEncoder.encode(value, "UTF-8"));
+    }
+
+    /* The rows whose column holds a value in [fromValue, toValueExclusive), either of which may be null, in the order of their values */
+    public List<Row> lookupByIndexRange(String tableName, String column, String fromValue, String toValueExclusive) throws IOException {
+        return lookupByIndexRange(tableName, column, fromValue, toValueExclusive, null);
+    }
+
+    public List<Row> lookupByIndexRange(String tableName, String column, String fromValue, String toValueExclusive, Collection<String> columns) throws IOException {
+        String params = "";
+        if (fromValue != null)
+            params = params + "&from=" + java.net.URLEncoder.encode(fromValue, "UTF-8");
+        if (toValueExclusive != null)
+            params = params + "&to=" + java.net.URLEncoder.encode(toValueExclusive, "UTF-8");
+        return indexLookup(tableName, column, columns, params);
+    }
+
+    private void indexRequest(String tableName, String route, String column) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        for (WorkerEntry w : workers) {
+            HTTP.Response res = HTTP.doRequest("PUT", "http://" + w.address + route + tableName + "?column="
+                    + java.net.URLEncoder.encode(column, "UTF-8"), null);
+            if (res.statusCode() != 200 && !(route.equals("/unindex/") && res.statusCode() == 404))
+                throw new IOException("Index request for column '" + column + "' of table '" + tableName + "' failed on "
+                        + w.address + " (status " + res.statusCode() + "): " + new String(res.body()));
+        }
+    }
+
+    private List<Row> indexLookup(String tableName, String column, Collection<String> columns, String params) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        // each worker only returns the rows of the ranges it owns, so every row comes back once
+        List<Row> rows = new ArrayList<>();
+        for (WorkerEntry w : workers) {
+            String target = "http://" + w.address + "/index/" + tableName + "?" + formatParams(columns) + "&column="
+                    + java.net.URLEncoder.encode(column, "UTF-8") + params;
+            HTTP.Response res = HTTP.doRequest("GET", target, null);
+            if (res.statusCode() != 200)
+                throw new IOException("Index lookup failed (status " + res.statusCode() + "): " + new String(res.body()) + " (" + target + ")");
+            try {
+                rows.addAll(decodeBatch(res.body()));
+            } catch (Exception e) {
+                throw new IOException("Decoding error while reading rows from " + target, e);
+            }
+        }
+        // without the column among the requested ones, the rows of a range lookup can only be ordered by key
+        rows.sort(Comparator.comparing((Row row) -> row.get(column), Comparator.nullsFirst(Comparator.naturalOrder()))
+                .thenComparing(Row::key));
+        return rows;
+    }
+
     public byte[] get(String tableName, String row, String column) throws IOException {
         if (!haveWorkers)
             downloadWorkers();
 
-        HTTP.Response res = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8"), null);
+        HTTP.Response res = readForKey(tableName, row, "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8"));
         return ((res != null) && (res.statusCode() == 200)) ? res.body() : null;
     }
 
+    /*
+     * The atomic column operations below are applied by the worker that owns the row, under that row's lock, so
+     * concurrent callers never lose each other's updates and each operation is a single round trip.
+     */
+    public long increment(String tableName, String row, String column, long delta) throws IOException {
+        HTTP.Response res = requestForKey("PUT", row, columnPath("increment", tableName, row, column) + "?delta=" + delta, null);
+        String result = new String(res.body());
+        if (res.statusCode() != 200)
+            throw new RuntimeException("Increment failed: " + result);
+        return Long.parseLong(result);
+    }
+
+    public void append(String tableName, String row, String column, byte value[]) throws IOException {
+        append(tableName, row, column, value, null);
+    }
+
+    /* The separator is only inserted if the column already holds something */
+    public void append(String tableName, String row, String column, String value, String separator) throws IOException {
+        append(tableName, row, column, value.getBytes(), separator);
+    }
+
+    public void append(String tableName, String row, String column, byte value[], String separator) throws IOException {
+        String target = columnPath("append", tableName, row, column);
+        if (separator != null)
+            target += "?separator=" + java.net.URLEncoder.encode(separator, "UTF-8");
+        String result = new String(requestForKey("PUT", row, target, value).body());
+        if (!result.equals("OK"))
+            throw new RuntimeException("Append failed: " + result + " (" + target + ")");
+    }
+
+    /* An expectedValue of null means the column must not exist yet */
+    public boolean compareAndSet(String tableName, String row, String column, byte expectedValue[], byte newValue[]) throws IOException {
+        Row request = new Row(row);
+        if (expectedValue != null)
+            request.put("expected", expectedValue);
+        request.put("value", newValue);
+        HTTP.Response res = requestForKey("PUT", row, columnPath("cas", tableName, row, column), request.toBinary());
+        if (res.statusCode() == 409)
+            return false;
+        if (res.statusCode() != 200)
+            throw new RuntimeException("Compare-and-set failed: " + new String(res.body()));
+        return true;
+    }
+
+    private String columnPath(String operation, String tableName, String row, String column) throws IOException {
+        return "/" + operation + "/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8") + "/" + java.net.URLEncoder.encode(column, "UTF-8");
+    }
+
     public boolean existsRow(String tableName, String row) throws FileNotFoundException, IOException {
         if (!haveWorkers)
             downloadWorkers();
 
-        HTTP.Response r = HTTP.doRequest("GET", "http://" + workers.elementAt(workerIndexForKey(row)).address + "/data/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8"), null);
+        HTTP.Response r = readForKey(tableName, row, "/exists/" + tableName + "/" + java.net.URLEncoder.encode(row, "UTF-8"));
         return r.statusCode() == 200;
     }
 
@@ -293,6 +796,68 @@ public class KVSClient implements KVS {
         return total;
     }
 
+    /* The size of a table on one worker, as reported by its /stats/:T route; minKey and maxKey are null if it has no rows there */
+    public static class TableStats {
+        public final String workerAddress;
+        public final int rows;
+        public final long bytes;
+        public final String minKey;
+        public final String maxKey;
+        public final List<String> samples;
+
+        TableStats(String workerAddress, int rows, long bytes, String minKey, String maxKey, List<String> samples) {
+            this.workerAddress = workerAddress;
+            this.rows = rows;
+            this.bytes = bytes;
+            this.minKey = minKey;
+            this.maxKey = maxKey;
+            this.samples = samples;
+        }
+    }
+
+    /*
+     * Returns the table's statistics from every worker, in the order of the workers' IDs, with up to samplesPerWorker
+     * row keys that are spread evenly over each worker's rows. A worker without the table reports zero rows.
+     */
+    public List<TableStats> tableStats(String tableName, int samplesPerWorker) throws IOException {
+        if (!haveWorkers)
+            downloadWorkers();
+
+        List<TableStats> stats = new ArrayList<>();
+        for (WorkerEntry w : workers) {
+            HTTP.Response r = HTTP.doRequest("GET", "http://" + w.address + "/stats/"
+                    + java.net.URLEncoder.encode(tableName, StandardCharsets.UTF_8) + "?samples=" + samplesPerWorker, null);
+            int rows = 0;
+            long bytes = 0;
+            String minKey = null;
+            String maxKey = null;
+            List<String> samples = new ArrayList<>();
+            if (r.statusCode() == 200) {
+                for (String line : new String(r.body(), StandardCharsets.UTF_8).split("\n")) {
+                    int equals = line.indexOf('=');
+                    String name = equals >= 0 ? line.substring(0, equals) : line;
+                    String value = line.substring(equals + 1);
+                    if (name.equals("rows")) {
+                        rows = Integer.parseInt(value);
+                    } else if (name.equals("bytes")) {
+                        bytes = Long.parseLong(value);
+                    } else if (name.equals("minKey")) {
+                        minKey = java.net.URLDecoder.decode(value, StandardCharsets.UTF_8);
+                    } else if (name.equals("maxKey")) {
+                        maxKey = java.net.URLDecoder.decode(value, StandardCharsets.UTF_8);
+                    } else if (name.equals("sample")) {
+                        samples.add(java.net.URLDecoder.decode(value, StandardCharsets.UTF_8));
+                    }
+                }
+            } else if (r.statusCode() != 404) {
+                throw new IOException("Failed to get the statistics of table '" + tableName + "' from " + w.address
+                        + " (status " + r.statusCode() + ")");
+            }
+            stats.add(new TableStats(w.address, rows, bytes, minKey, maxKey, samples));
+        }
+        return stats;
+    }
+
     public Iterator<Row> scan(String tableName) throws FileNotFoundException, IOException {
         return scan(tableName, null, null);
     }
@@ -306,26 +871,167 @@ public class KVSClient implements KVS {
   } */
 
     public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive) throws FileNotFoundException, IOException {
+        return scan(tableName, startRow, endRowExclusive, null);
+    }
+
+    /* Like scan(), but the rows only carry the given columns (all of them if columns is null) */
+    public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, Collection<String> columns) throws FileNotFoundException, IOException {
+        return scan(tableName, startRow, endRowExclusive, null, columns);
+    }
+
+    /*
+     * Like scan(), but the filter runs on the KVS workers and only the rows it accepts are transferred. If the
+     * filter's classes are not on the workers' classpath, the JAR that contains them must be set with useJAR().
+     */
+    public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, RowFilter filter, Collection<String> columns) throws FileNotFoundException, IOException {
+        return scan(tableName, startRow, endRowExclusive, filter, columns, 0);
+    }
+
+    /* Like scan(), but stops after the first limit rows; the workers stop sending rows once the limit is reached */
+    public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, int limit) throws FileNotFoundException, IOException {
+        return scan(tableName, startRow, endRowExclusive, null, null, limit);
+    }
+
+    /* The rows whose keys start with prefix, at most limit of them unless limit is 0 */
+    public Iterator<Row> scanPrefix(String tableName, String prefix, int limit) throws FileNotFoundException, IOException {
+        return scan(tableName, prefix, prefixEnd(prefix), null, null, limit);
+    }
+
+    /* A limit of 0 returns all rows */
+    public Iterator<Row> scan(String tableName, String startRow, String endRowExclusive, RowFilter filter, Collection<String> columns, int limit) throws FileNotFoundException, IOException {
+        return openScan(tableName, startRow, endRowExclusive, filter, columns, limit, null);
+    }
+
+    /* Like scan(), but reads the table as it was when the snapshot was taken; see snapshot() */
+    public Iterator<Row> scanAt(String tableName, String startRow, String endRowExclusive, String snapshotId) throws FileNotFoundException, IOException {
+        return openScan(tableName, startRow, endRowExclusive, null, null, 0, snapshotId);
+    }
+
+    public Iterator<Row> scanAt(String tableName, String startRow, String endRowExclusive, RowFilter filter, Collection<String> columns, String snapshotId) throws FileNotFoundException, IOException {
+        return openScan(tableName, startRow, endRowExclusive, filter, columns, 0, snapshotId);
+    }
+
+    Iterator<Row> openScan(String tableName, String startRow, String endRowExclusive, RowFilter filter, Collection<String> columns, int limit, String snapshotId) throws IOException {
         if (!haveWorkers)
             downloadWorkers();
 
-        return new KVSIterator(tableName, startRow, endRowExclusive);
+        byte[] serializedFilter = null;
+        if (filter != null) {
+            serializedFilter = Serializer.objectToByteArray(filter);
+            if (serializedFilter == null)
+                throw new IOException("Cannot serialize filter " + filter);
+            uploadJAR();
+        }
+
+        return new KVSIterator(tableName, startRow, endRowExclusive, serializedFilter, columns, limit, snapshotId);
+    }
+
+    /* The smallest key that is greater than every key that starts with prefix, or null if there is none */
+    static String prefixEnd(String prefix) {
+        int last = prefix.length() - 1;
+        while (last >= 0 && prefix.charAt(last) == Character.MAX_VALUE)
+            last--;
+        return last >= 0 ? prefix.substring(0, last) + (char) (prefix.charAt(last) + 1) : null;
+    }
+
+    public void useJAR(File jar) throws IOException {
+        filterJAR = Files.readAllBytes(jar.toPath());
+        filterJARHash = Hasher.hash(new String(filterJAR, StandardCharsets.ISO_8859_1));
+    }
+
+    synchronized void uploadJAR() throws IOException {
+        if (filterJAR == null)
+            return;
+
+        for (WorkerEntry w : workers) {
+            if (w.hasJAR(filterJARHash))
+                continue;
+            String target = "http://" + w.address + "/jar/" + filterJARHash;
+            HTTP.Response check = HTTP.doRequest("GET", target, null);
+            if (check == null || check.statusCode() != 200) {
+                byte[] response = HTTP.doRequest("PUT", target, filterJAR).body();
+                if (!new String(response).equals("OK"))
+                    throw new IOException("JAR upload to " + w.address + " failed: " + new String(response));
+            }
+            w.uploadedJARs.add(filterJARHash);
+        }
+    }
+
+    static String formatParams(Collection<String> columns) throws UnsupportedEncodingException {
+        String params = "format=bin&compressed=true";
+        if (columns != null)
+            params = params + "&columns=" + java.net.URLEncoder.encode(String.join(",", columns), "UTF-8");
+        return params;
     }
 
     static class WorkerEntry implements Comparable<WorkerEntry> {
         String address;
         String id;
 
+        Set<String> uploadedJARs = new HashSet<String>();
+
         WorkerEntry(String addressArg, String idArg) {
             address = addressArg;
             id = idArg;
         }
 
+        boolean hasJAR(String jarHash) {
+            return uploadedJARs.contains(jarHash);
+        }
+
         public int compareTo(WorkerEntry e) {
             return id.compareTo(e.id);
         }
     }
 
+    /*
+     * The workers (sorted by ID) and the range map from one download. It is never changed, so threads other than the
+     * one that uses the client can route keys with it while the client fetches a newer one.
+     */
+    static final class Routing {
+        final List<String> ids;
+        final List<String> addresses;
+        final Map<String, Integer> workerIndexById;
+        final RangeMap ranges;
+
+        Routing(List<WorkerEntry> sortedWorkers, RangeMap ranges) {
+            List<String> ids = new ArrayList<>();
+            List<String> addresses = new ArrayList<>();
+            Map<String, Integer> workerIndexById = new HashMap<>();
+            for (WorkerEntry worker : sortedWorkers) {
+                workerIndexById.put(worker.id, ids.size());
+                ids.add(worker.id);
+                addresses.add(worker.address);
+            }
+            this.ids = Collections.unmodifiableList(ids);
+            this.addresses = Collections.unmodifiableList(addresses);
+            this.workerIndexById = Collections.unmodifiableMap(workerIndexById);
+            this.ranges = ranges;
+        }
+
+        int workerIndexForKey(String key) {
+            if (ranges != null && !ranges.isEmpty() && key != null) {
+                Integer index = workerIndexById.get(ranges.rangeFor(key).workerId);
+                if (index != null)
+                    return index;
+            }
+
+            int chosenWorker = ids.size() - 1;
+            if (key != null) {
+                for (int i = 0; i < ids.size() - 1; i++) {
+                    if ((key.compareTo(ids.get(i)) >= 0) && (key.compareTo(ids.get(i + 1)) < 0))
+                        chosenWorker = i;
+                }
+            }
+
+            return chosenWorker;
+        }
+
+        String addressForKey(String key) {
+            return addresses.get(workerIndexForKey(key));
+        }
+    }
+
     class KVSIterator implements Iterator<Row> {
         InputStream in;
         boolean atEnd;
@@ -334,16 +1040,93 @@ public class KVSClient implements KVS {
         String endRowExclusive;
         String startRow;
         String tableName;
+        byte[] filter;
+        Collection<String> columns;
         Vector<String> ranges;
-
-        KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
+        Vector<String> rangeStarts;
+        // for each range of a replicated persistent table, the same request to its ready followers
+        Vector<List<String>> standbys;
+        int replans;
+        // the rows that may still be returned, or 0 for no limit
+        int remaining;
+        boolean limited;
+        String snapshot;
+        // set once the scan has failed, and thrown from then on
+        RuntimeException failure;
+
+        KVSIterator(String tableNameArg, String startRowArg, String endRowExclusiveArg, byte[] filterArg, Collection<String> columnsArg, int limitArg, String snapshotArg) throws IOException {
             in = null;
+            snapshot = snapshotArg;
+            remaining = limitArg;
+            limited = limitArg > 0;
+            filter = filterArg;
+            columns = columnsArg;
             currentRangeIndex = 0;
             atEnd = false;
             endRowExclusive = endRowExclusiveArg;
             tableName = tableNameArg;
             startRow = startRowArg;
             ranges = new Vector<String>();
+            rangeStarts = new Vector<String>();
+            standbys = new Vector<List<String>>();
+            RangeMap current = routing.ranges;
+            if (current != null && !current.isEmpty()) {
+                planRanges(startRowArg != null ? startRowArg : "");
+            } else {
+                planWorkers(tableNameArg, startRowArg, endRowExclusiveArg);
+            }
+
+            openConnectionAndFill();
+        }
+
+        /*
+         * One request for each range of the range map that overlaps the scan, sent to the range's owner, or to one
+         * of its ready followers if the owner cannot be reached
+         */
+        void planRanges(String from) throws IOException {
+            Routing current = routing;
+            for (RangeMap.Range range : current.ranges.ranges()) {
+                String start = range.start.compareTo(from) > 0 ? range.start : from;
+                String end = range.end;
+                if (endRowExclusive != null && (end == null || endRowExclusive.compareTo(end) < 0))
+                    end = endRowExclusive;
+                if ((range.end != null && start.compareTo(range.end) >= 0) || (end != null && start.compareTo(end) >= 0))
+                    continue;
+                Integer workerIndex = current.workerIndexById.get(range.workerId);
+                if (workerIndex == null)
+                    throw new IOException("Range starting at '" + range.start + "' is owned by unknown worker " + range.workerId);
+                ranges.add(getURL(tableName, current.addresses.get(workerIndex), start, end));
+                rangeStarts.add(start);
+                List<String> followerURLs = new ArrayList<>();
+                // a follower's snapshot may have been taken before it had a complete copy of the range
+                if (tableName.startsWith("pt-") && snapshot == null) {
+                    for (RangeMap.Follower follower : range.followers) {
+                        if (follower.ready)
+                            followerURLs.add(getURL(tableName, follower.address, start, end));
+                    }
+                }
+                standbys.add(followerURLs);
+            }
+        }
+
+        /*
+         * A worker answers 421 if it does not own the whole range it was asked for, because the range map has changed
+         * since the scan was planned; the rest of the scan is then planned again with the new map. Rows come back in
+         * key order within each range, so nothing before the start of the refused range is returned twice.
+         */
+        void replan() throws IOException {
+            if (++replans > MAX_ROUTING_ATTEMPTS)
+                throw new IOException("Scan of '" + tableName + "' kept being misdirected");
+            String from = rangeStarts.elementAt(currentRangeIndex);
+            refreshRouting(replans);
+            ranges.setSize(currentRangeIndex);
+            rangeStarts.setSize(currentRangeIndex);
+            standbys.setSize(currentRangeIndex);
+            planRanges(from);
+        }
+
+        /* How ranges were assigned before range maps, which coordinators without /ranges still do */
+        void planWorkers(String tableNameArg, String startRowArg, String endRowExclusiveArg) throws IOException {
             if ((startRowArg == null) || (startRowArg.compareTo(getWorkerID(0)) < 0)) {
                 String url = getURL(tableNameArg, numWorkers() - 1, startRowArg, ((endRowExclusiveArg != null) && (endRowExclusiveArg.compareTo(getWorkerID(0)) < 0)) ? endRowExclusiveArg : getWorkerID(0));
                 ranges.add(url);
@@ -358,26 +1141,33 @@ public class KVSClient implements KVS {
                     }
                 }
             }
-
-            openConnectionAndFill();
         }
 
         protected String getURL(String tableNameArg, int workerIndexArg, String startRowArg, String endRowExclusiveArg) throws IOException {
-            String params = "";
+            return getURL(tableNameArg, getWorkerAddress(workerIndexArg), startRowArg, endRowExclusiveArg);
+        }
+
+        protected String getURL(String tableNameArg, String address, String startRowArg, String endRowExclusiveArg) throws IOException {
+            String params = formatParams(columns);
             if (startRowArg != null)
-                params = "startRow=" + startRowArg;
+                params = params + "&startRow=" + java.net.URLEncoder.encode(startRowArg, "UTF-8");
             if (endRowExclusiveArg != null)
-                params = (params.equals("") ? "" : (params + "&")) + "endRowExclusive=" + endRowExclusiveArg;
-            return "http://" + getWorkerAddress(workerIndexArg) + "/data/" + tableNameArg + (params.equals("") ? "" : "?" + params);
+                params = params + "&endRowExclusive=" + java.net.URLEncoder.encode(endRowExclusiveArg, "UTF-8");
+            if (filter != null && filterJARHash != null)
+                params = params + "&jar=" + filterJARHash;
+            if (snapshot != null)
+                params = params + "&snapshot=" + snapshot;
+            return "http://" + address + (filter != null ? "/scan/" : "/data/") + tableNameArg + "?" + params;
         }
 
-        void openConnectionAndFill() {
+        /*
+         * Moves on to the first range, starting at currentRangeIndex, that has a row, and reads that row into
+         * nextRow; sets atEnd if there is none. A worker that does not have the table is taken to have no rows in its
+         * ranges, but any other failure fails the scan rather than skipping what is left of the range.
+         */
+        void openConnectionAndFill() throws IOException {
             try {
-                if (in != null) {
-                    in.close();
-                    in = null;
-                }
-
+                closeStream();
                 if (atEnd)
                     return;
 
@@ -387,21 +1177,54 @@ public class KVSClient implements KVS {
                         return;
                     }
 
+                    URL url;
                     try {
-                        URL url = new URI(ranges.elementAt(currentRangeIndex)).toURL();
-                        HttpURLConnection con = (HttpURLConnection) url.openConnection();
-                        con.setRequestMethod("GET");
-                        con.connect();
-                        in = con.getInputStream();
-                        Row r = fill();
-                        if (r != null) {
-                            nextRow = r;
-                            break;
+                        url = new URI(ranges.elementAt(currentRangeIndex) + (limited ? "&limit=" + remaining : "")).toURL();
+                    } catch (URISyntaxException use) {
+                        throw new IOException("Malformed scan URL " + ranges.elementAt(currentRangeIndex), use);
+                    }
+                    HttpURLConnection con = (HttpURLConnection) url.openConnection();
+                    try {
+                        if (filter != null) {
+                            con.setRequestMethod("POST");
+                            con.setDoOutput(true);
+                            con.setFixedLengthStreamingMode(filter.length);
+                            try (OutputStream out = con.getOutputStream()) {
+                                out.write(filter);
+                            }
+                        } else {
+                            con.setRequestMethod("GET");
+                            con.connect();
                         }
+                    } catch (ConnectException ce) {
+                        List<String> followerURLs = currentRangeIndex < standbys.size() ? standbys.elementAt(currentRangeIndex) : null;
+                        if (followerURLs == null || followerURLs.isEmpty())
+                            throw ce;
+                        ranges.set(currentRangeIndex, followerURLs.remove(0));
+                        continue;
+                    }
+                    if (con.getResponseCode() == MISDIRECTED && !rangeStarts.isEmpty()) {
+                        con.getErrorStream().close();
+                        replan();
+                        continue;
+                    }
+                    if (con.getResponseCode() == GONE) {
+                        con.getErrorStream().close();
+                        logger.error("Snapshot '" + snapshot + "' of table '" + tableName + "' does not exist on " + url.getAuthority());
+                        throw new IOException("Snapshot '" + snapshot + "' not found");
+                    }
+                    try {
+                        in = new BufferedInputStream(con.getInputStream(), 64 * 1024);
                     } catch (FileNotFoundException fnfe) {
-                    } catch (URISyntaxException use) {
+                        currentRangeIndex++;
+                        continue;
                     }
-
+                    Row r = fill();
+                    if (r != null) {
+                        nextRow = r;
+                        return;
+                    }
+                    closeStream();
                     currentRangeIndex++;
                 }
             } catch (IOException ioe) {
@@ -413,32 +1236,78 @@ public class KVSClient implements KVS {
                     in = null;
                 }
                 atEnd = true;
+                throw ioe;
             }
         }
 
-        synchronized Row fill() {
+        /* Reads up to the last chunk, so that the connection goes back into the keep-alive pool */
+        void closeStream() throws IOException {
+            if (in == null)
+                return;
             try {
-                Row r = Row.readFrom(in);
-                return r;
-            } catch (Exception e) {
+                in.transferTo(OutputStream.nullOutputStream());
+            } catch (IOException e) {
+                // all rows that are needed have been read
+            }
+            in.close();
+            in = null;
+        }
+
+        /*
+         * The next row of the current range, or null once the worker has sent the LF that ends it. A stream that ends
+         * in any other way was cut off, e.g. because the worker failed part-way through, and the scan fails.
+         */
+        synchronized Row fill() throws IOException {
+            in.mark(1);
+            int b = in.read();
+            if (b == '\n')
                 return null;
+            if (b < 0)
+                throw new IOException("Scan of '" + tableName + "' was cut off before the end of " + ranges.elementAt(currentRangeIndex));
+            in.reset();
+            try {
+                return Row.readFrom(in);
+            } catch (IOException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException("Malformed row in scan of '" + tableName + "' from " + ranges.elementAt(currentRangeIndex), e);
             }
         }
 
+        /*
+         * A row that has arrived is still returned when reading the one after it fails; the failure is thrown by the
+         * next call to hasNext() or next() instead.
+         */
         public synchronized Row next() {
+            if (failure != null)
+                throw failure;
             if (atEnd)
                 return null;
             Row r = nextRow;
-            nextRow = fill();
-            while ((nextRow == null) && !atEnd) {
-                currentRangeIndex++;
-                openConnectionAndFill();
+            try {
+                if (limited && --remaining == 0) {
+                    // the worker stops at the limit too, so all that is left on the connection is the end of the body
+                    atEnd = true;
+                    openConnectionAndFill();
+                    return r;
+                }
+                nextRow = fill();
+                while ((nextRow == null) && !atEnd) {
+                    currentRangeIndex++;
+                    openConnectionAndFill();
+                }
+            } catch (IOException e) {
+                nextRow = null;
+                atEnd = true;
+                failure = new RuntimeException("Scan of table '" + tableName + "' failed", e);
             }
 
             return r;
         }
 
         public synchronized boolean hasNext() {
+            if (failure != null)
+                throw failure;
             return !atEnd;
         }
     }
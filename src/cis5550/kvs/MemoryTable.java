@@ -0,0 +1,206 @@
+package cis5550.kvs;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+/*
+ * The rows of an in-memory table, which keeps count of its rows and their size as they are put and removed, so that
+ * size() takes constant time instead of walking the whole skip list. Only the methods that the worker writes rows
+ * with are counted: put(), remove() and compute().
+ *
+ * When the worker runs short of memory, it spills the table's rows to a SegmentStore on local disk (see
+ * Worker.spillTable()). The map then only holds the rows written since, and a row is either in the map or spilled,
+ * never both once its write is done; row(), hasRow(), rows() and keys() look at both places, and the map's own
+ * methods, size() and sizeInBytes() included, only at the map.
+ */
+class MemoryTable extends ConcurrentSkipListMap<String, Row> {
+
+    private static final long serialVersionUID = 1L;
+    private final AtomicInteger rows = new AtomicInteger();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile SegmentStore spill;
+    private final AtomicInteger spills = new AtomicInteger();
+    private final AtomicLong spilledBytes = new AtomicLong();
+
+    @Override
+    public Row put(String key, Row row) {
+        Row previous = super.put(key, row);
+        counted(previous, row);
+        return previous;
+    }
+
+    @Override
+    public Row remove(Object key) {
+        Row previous = super.remove(key);
+        counted(previous, null);
+        return previous;
+    }
+
+    /* The function may be called more than once; only its last call decides what the map holds afterwards */
+    @Override
+    public Row compute(String key, BiFunction<? super String, ? super Row, ? extends Row> remappingFunction) {
+        Row[] last = new Row[2];
+        Row result = super.compute(key, (k, row) -> {
+            Row updated = remappingFunction.apply(k, row);
+            last[0] = row;
+            last[1] = updated;
+            return updated;
+        });
+        counted(last[0], last[1]);
+        return result;
+    }
+
+    @Override
+    public int size() {
+        return rows.get();
+    }
+
+    /* The approximate number of bytes that the rows in memory take up; see Row.sizeInBytes() */
+    long sizeInBytes() {
+        return bytes.get();
+    }
+
+    /* The store that rows are spilled to, or null if the table has never been spilled */
+    SegmentStore spill() {
+        return spill;
+    }
+
+    void spillTo(SegmentStore store) {
+        spill = store;
+    }
+
+    /* Counts a spill that has moved the given number of bytes to disk */
+    void spilled(long spilledBytes) {
+        spills.incrementAndGet();
+        this.spilledBytes.addAndGet(spilledBytes);
+    }
+
+    int spills() {
+        return spills.get();
+    }
+
+    long spilledBytes() {
+        return spilledBytes.get();
+    }
+
+    /* The number of rows in memory and on disk */
+    int rowCount() {
+        SegmentStore store = spill;
+        return size() + (store != null ? store.size() : 0);
+    }
+
+    long totalBytes() {
+        SegmentStore store = spill;
+        return sizeInBytes() + (store != null ? store.liveBytes() : 0);
+    }
+
+    Row row(String key) {
+        Row row = get(key);
+        SegmentStore store = spill;
+        if (row != null || store == null) {
+            return row;
+        }
+        try {
+            byte[] rowBytes = store.getRowBytes(key);
+            return rowBytes != null ? Row.fromBytes(rowBytes) : null;
+        } catch (Exception e) {
+            throw new RuntimeException("Failed to read spilled row '" + key + "'", e);
+        }
+    }
+
+    boolean hasRow(String key) {
+        SegmentStore store = spill;
+        return containsKey(key) || (store != null && store.contains(key));
+    }
+
+    /* The rows in [start, end), either of which may be null for no bound, in key order */
+    Iterator<Row> rows(String start, String end) {
+        NavigableMap<String, Row> inMemory = this;
+        if (start != null && end != null) {
+            // an empty (or inverted) range; subMap() would reject it
+            inMemory = start.compareTo(end) < 0 ? subMap(start, end) : Collections.emptyNavigableMap();
+        } else if (start != null) {
+            inMemory = tailMap(start);
+        } else if (end != null) {
+            inMemory = headMap(end);
+        }
+        SegmentStore store = spill;
+        if (store == null) {
+            return inMemory.values().iterator();
+        }
+        return new MergedRows(inMemory.values().iterator(), store.scan(start, end));
+    }
+
+    /* The keys in [start, end), or from start on if end is null; a live view, unless the table has been spilled */
+    NavigableSet<String> keys(String start, String end) {
+        NavigableSet<String> inMemory = end != null ? navigableKeySet().subSet(start, true, end, false) : navigableKeySet().tailSet(start, true);
+        SegmentStore store = spill;
+        if (store == null) {
+            return inMemory;
+        }
+        NavigableSet<String> keys = new TreeSet<>(inMemory);
+        keys.addAll(store.keys(start, end));
+        return keys;
+    }
+
+    private void counted(Row previous, Row current) {
+        if (previous == current) {
+            return;
+        }
+        if (previous != null) {
+            rows.decrementAndGet();
+            bytes.addAndGet(-previous.sizeInBytes());
+        }
+        if (current != null) {
+            rows.incrementAndGet();
+            bytes.addAndGet(current.sizeInBytes());
+        }
+    }
+
+    /* Merges the rows in memory with the spilled ones; a row that is in both places while it moves is taken from memory */
+    private static class MergedRows implements Iterator<Row> {
+        private final Iterator<Row> inMemory;
+        private final Iterator<Row> spilled;
+        private Row nextInMemory;
+        private Row nextSpilled;
+
+        MergedRows(Iterator<Row> inMemory, Iterator<Row> spilled) {
+            this.inMemory = inMemory;
+            this.spilled = spilled;
+            this.nextInMemory = inMemory.hasNext() ? inMemory.next() : null;
+            this.nextSpilled = spilled.hasNext() ? spilled.next() : null;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return nextInMemory != null || nextSpilled != null;
+        }
+
+        @Override
+        public Row next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int order = nextInMemory == null ? 1 : nextSpilled == null ? -1 : nextInMemory.key().compareTo(nextSpilled.key());
+            Row row;
+            if (order <= 0) {
+                row = nextInMemory;
+                nextInMemory = inMemory.hasNext() ? inMemory.next() : null;
+            } else {
+                row = nextSpilled;
+            }
+            if (order >= 0) {
+                nextSpilled = spilled.hasNext() ? spilled.next() : null;
+            }
+            return row;
+        }
+    }
+}
@@ -0,0 +1,315 @@
+package cis5550.kvs;
+
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+ * Assigns every row key to the worker that owns it. The key space is cut into contiguous ranges, each starting at
+ * its start key (the first one at "") and ending where the next one starts, and each range is owned by one worker.
+ * Maps are immutable; every change produces a map with a higher version, so anyone holding two maps can tell which
+ * one is newer.
+ *
+ * A derived map is the one that the KVS has always used: each worker owns the keys from its ID up to the next
+ * worker's ID, and the last worker also owns the keys below the first ID. The coordinator keeps deriving the map
+ * from the set of live workers until it splits or moves a range for the first time.
+ *
+ * With replication, each range also has followers: the workers that hold copies of its persistent rows. A follower
+ * is ready once it has a complete copy; until then, only the owner and ready followers are read from.
+ *
+ * The text form is a "version derived|explicit" line followed by one "start<TAB>workerId<TAB>address<TAB>followers"
+ * line per range, with the start key URL-encoded and the followers as comma-separated "id/address/ready" triples,
+ * where ready is r (ready) or s (still syncing).
+ */
+class RangeMap {
+
+    static class Follower {
+        final String workerId;
+        final String address;
+        final boolean ready;
+
+        Follower(String workerId, String address, boolean ready) {
+            this.workerId = workerId;
+            this.address = address;
+            this.ready = ready;
+        }
+    }
+
+    static class Range {
+        final String start;
+        final String end;
+        final String workerId;
+        final String address;
+        final List<Follower> followers;
+
+        Range(String start, String end, String workerId, String address, List<Follower> followers) {
+            this.start = start;
+            this.end = end;
+            this.workerId = workerId;
+            this.address = address;
+            this.followers = followers;
+        }
+
+        /* end is null for the last range, which extends to the end of the key space */
+        boolean contains(String key) {
+            return key.compareTo(start) >= 0 && (end == null || key.compareTo(end) < 0);
+        }
+
+        /* Whether the range lies within this one */
+        boolean covers(Range range) {
+            return range.start.compareTo(start) >= 0 && (end == null || (range.end != null && range.end.compareTo(end) <= 0));
+        }
+
+        boolean isReplicatedBy(String id) {
+            return workerId.equals(id) || followerFor(id) != null;
+        }
+
+        Follower followerFor(String id) {
+            for (Follower follower : followers) {
+                if (follower.workerId.equals(id)) {
+                    return follower;
+                }
+            }
+            return null;
+        }
+    }
+
+    private final long version;
+    private final boolean derived;
+    private final TreeMap<String, Range> ranges;
+
+    private RangeMap(long version, boolean derived, TreeMap<String, Range> ranges) {
+        this.version = version;
+        this.derived = derived;
+        this.ranges = ranges;
+    }
+
+    /* addresses maps the IDs of the live workers to their ip:port */
+    static RangeMap derive(long version, Map<String, String> addresses) {
+        List<String> ids = new ArrayList<>(new TreeSet<>(addresses.keySet()));
+        TreeMap<String, String> owners = new TreeMap<>();
+        if (!ids.isEmpty()) {
+            owners.put("", ids.get(ids.size() - 1));
+            for (String id : ids) {
+                owners.put(id, id);
+            }
+        }
+        return build(version, true, owners, addresses, Collections.emptyMap());
+    }
+
+    long version() {
+        return version;
+    }
+
+    boolean isDerived() {
+        return derived;
+    }
+
+    boolean isEmpty() {
+        return ranges.isEmpty();
+    }
+
+    Range rangeFor(String key) {
+        Map.Entry<String, Range> entry = ranges.floorEntry(key);
+        return entry != null ? entry.getValue() : null;
+    }
+
+    Range rangeStartingAt(String start) {
+        return ranges.get(start);
+    }
+
+    Collection<Range> ranges() {
+        return Collections.unmodifiableCollection(ranges.values());
+    }
+
+    List<Range> rangesOf(String workerId) {
+        List<Range> owned = new ArrayList<>();
+        for (Range range : ranges.values()) {
+            if (range.workerId.equals(workerId)) {
+                owned.add(range);
+            }
+        }
+        return owned;
+    }
+
+    RangeMap withVersion(long newVersion) {
+        return new RangeMap(newVersion, derived, ranges);
+    }
+
+    /* Whether both maps assign every key to the same owner and followers, whatever their versions */
+    boolean sameAssignment(RangeMap other) {
+        return serializeRanges().equals(other.serializeRanges());
+    }
+
+    /* Cuts the range that contains splitKey in two at splitKey; both halves stay with the same owner and followers */
+    RangeMap split(String splitKey) {
+        Range range = rangeFor(splitKey);
+        if (range == null || range.start.equals(splitKey)) {
+            throw new IllegalArgumentException("Cannot split at '" + splitKey + "'");
+        }
+        TreeMap<String, String> owners = owners();
+        owners.put(splitKey, range.workerId);
+        Map<String, List<Follower>> followers = followers();
+        followers.put(splitKey, range.followers);
+        return build(version + 1, false, owners, addresses(), followers);
+    }
+
+    /* Gives the range to another worker; its followers are chosen again by withFollowers() */
+    RangeMap reassign(String start, String workerId, String address) {
+        if (!ranges.containsKey(start)) {
+            throw new IllegalArgumentException("No range starts at '" + start + "'");
+        }
+        TreeMap<String, String> owners = owners();
+        owners.put(start, workerId);
+        Map<String, String> addresses = addresses();
+        addresses.put(workerId, address);
+        return build(version + 1, false, owners, addresses, followers());
+    }
+
+    /*
+     * Returns the map (with the same version) where each range is followed by the copies-1 live workers that come
+     * after its owner in the order of their IDs. A follower is ready if, in the previous map, it already followed a
+     * range that covers this one, or owned such a range, since it then has all of its rows; otherwise it starts out
+     * syncing. A range whose owner is not live keeps the followers it has, which are then the only workers that can
+     * serve its rows.
+     */
+    RangeMap withFollowers(int copies, Map<String, String> liveWorkers, RangeMap previous) {
+        List<String> ids = new ArrayList<>(new TreeSet<>(liveWorkers.keySet()));
+        Map<String, List<Follower>> followers = new HashMap<>();
+        for (Range range : ranges.values()) {
+            int position = ids.indexOf(range.workerId);
+            if (position < 0) {
+                Range before = previous.rangeStartingAt(range.start);
+                followers.put(range.start, before != null && before.covers(range) ? before.followers : Collections.emptyList());
+                continue;
+            }
+            List<Follower> chosen = new ArrayList<>();
+            for (int i = 1; i < ids.size() && chosen.size() < copies - 1; i++) {
+                String id = ids.get((position + i) % ids.size());
+                chosen.add(new Follower(id, liveWorkers.get(id), previous.hadCopy(range, id)));
+            }
+            followers.put(range.start, chosen);
+        }
+        return build(version, derived, owners(), addresses(), followers);
+    }
+
+    RangeMap markReady(String start, String workerId) {
+        Range range = ranges.get(start);
+        if (range == null || range.followerFor(workerId) == null) {
+            throw new IllegalArgumentException("Worker " + workerId + " does not follow the range starting at '" + start + "'");
+        }
+        Map<String, List<Follower>> followers = followers();
+        List<Follower> updated = new ArrayList<>();
+        for (Follower follower : range.followers) {
+            updated.add(follower.workerId.equals(workerId) ? new Follower(workerId, follower.address, true) : follower);
+        }
+        followers.put(start, updated);
+        return build(version + 1, derived, owners(), addresses(), followers);
+    }
+
+    /* Whether the worker owns or is a ready follower of a range that covers the given one */
+    boolean hadCopy(Range range, String workerId) {
+        for (Range existing : ranges.values()) {
+            if (existing.covers(range)) {
+                Follower follower = existing.followerFor(workerId);
+                return existing.workerId.equals(workerId) || (follower != null && follower.ready);
+            }
+        }
+        return false;
+    }
+
+    String serialize() {
+        return version + (derived ? " derived" : " explicit") + "\n" + serializeRanges();
+    }
+
+    private String serializeRanges() {
+        StringBuilder text = new StringBuilder();
+        for (Range range : ranges.values()) {
+            text.append(URLEncoder.encode(range.start, StandardCharsets.UTF_8)).append("\t")
+                    .append(range.workerId).append("\t").append(range.address).append("\t");
+            for (int i = 0; i < range.followers.size(); i++) {
+                Follower follower = range.followers.get(i);
+                text.append(i > 0 ? "," : "").append(follower.workerId).append("/").append(follower.address)
+                        .append("/").append(follower.ready ? "r" : "s");
+            }
+            text.append("\n");
+        }
+        return text.toString();
+    }
+
+    static RangeMap parse(String text) {
+        String[] lines = text.split("\n");
+        String[] header = lines[0].trim().split(" ");
+        if (header.length != 2 || (!header[1].equals("derived") && !header[1].equals("explicit"))) {
+            throw new IllegalArgumentException("Malformed range map header '" + lines[0] + "'");
+        }
+
+        TreeMap<String, String> owners = new TreeMap<>();
+        Map<String, String> addresses = new HashMap<>();
+        Map<String, List<Follower>> followers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            if (lines[i].isEmpty()) {
+                continue;
+            }
+            String[] fields = lines[i].split("\t", -1);
+            if (fields.length != 3 && fields.length != 4) {
+                throw new IllegalArgumentException("Malformed range '" + lines[i] + "'");
+            }
+            String start = URLDecoder.decode(fields[0], StandardCharsets.UTF_8);
+            owners.put(start, fields[1]);
+            addresses.put(fields[1], fields[2]);
+            List<Follower> rangeFollowers = new ArrayList<>();
+            if (fields.length == 4 && !fields[3].isEmpty()) {
+                for (String follower : fields[3].split(",")) {
+                    String[] parts = follower.split("/");
+                    if (parts.length != 3) {
+                        throw new IllegalArgumentException("Malformed follower '" + follower + "'");
+                    }
+                    rangeFollowers.add(new Follower(parts[0], parts[1], parts[2].equals("r")));
+                }
+            }
+            followers.put(start, rangeFollowers);
+        }
+        if (!owners.isEmpty() && !owners.firstKey().isEmpty()) {
+            throw new IllegalArgumentException("Range map does not cover the whole key space");
+        }
+        return build(Long.parseLong(header[0]), header[1].equals("derived"), owners, addresses, followers);
+    }
+
+    private TreeMap<String, String> owners() {
+        TreeMap<String, String> owners = new TreeMap<>();
+        for (Range range : ranges.values()) {
+            owners.put(range.start, range.workerId);
+        }
+        return owners;
+    }
+
+    private Map<String, String> addresses() {
+        Map<String, String> addresses = new HashMap<>();
+        for (Range range : ranges.values()) {
+            addresses.put(range.workerId, range.address);
+        }
+        return addresses;
+    }
+
+    private Map<String, List<Follower>> followers() {
+        Map<String, List<Follower>> followers = new HashMap<>();
+        for (Range range : ranges.values()) {
+            followers.put(range.start, range.followers);
+        }
+        return followers;
+    }
+
+    private static RangeMap build(long version, boolean derived, TreeMap<String, String> owners, Map<String, String> addresses,
+                                  Map<String, List<Follower>> followers) {
+        TreeMap<String, Range> ranges = new TreeMap<>();
+        for (Map.Entry<String, String> owner : owners.entrySet()) {
+            String end = owners.higherKey(owner.getKey());
+            List<Follower> rangeFollowers = followers.getOrDefault(owner.getKey(), Collections.emptyList());
+            ranges.put(owner.getKey(), new Range(owner.getKey(), end, owner.getValue(), addresses.get(owner.getValue()),
+                    Collections.unmodifiableList(rangeFollowers)));
+        }
+        return new RangeMap(version, derived, ranges);
+    }
+}
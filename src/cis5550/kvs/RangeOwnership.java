@@ -0,0 +1,319 @@
+package cis5550.kvs;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/*
+ * A worker's view of the range map: which keys it owns or follows, which writes it must refuse while one of its
+ * ranges is being moved to another worker, and how many requests each of its ranges has served since the
+ * coordinator last asked. The newest map is kept in a file in the worker's directory, and is pulled from the coordinator every few
+ * seconds (and pushed back to it if the coordinator has restarted and lost it).
+ *
+ * Writes hold the read side of the write lock from their ownership check until they are applied, so that a
+ * migration can wait for the writes in flight before it starts tracking writes or fences its range.
+ */
+class RangeOwnership {
+
+    private static final Logger logger = Logger.getLogger(RangeOwnership.class);
+    private static final String FILE_NAME = "ranges";
+    private static final long REFRESH_INTERVAL_IN_MS = 5000;
+    private static final long MIN_EAGER_REFRESH_INTERVAL_IN_MS = 200;
+
+    /* A range being copied to another worker, and the rows written to it since the copy started */
+    static class Migration {
+        final RangeMap.Range range;
+        final Map<String, Set<String>> writtenKeys = new ConcurrentHashMap<>();
+
+        Migration(RangeMap.Range range) {
+            this.range = range;
+        }
+    }
+
+    private final String workerId;
+    private final File file;
+    private final String coordinatorUrl;
+    private final ReentrantReadWriteLock writeLock = new ReentrantReadWriteLock();
+    private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+    private final Object refreshLock = new Object();
+    private volatile RangeMap map;
+    // true while the map does not assign this worker anything it could check keys against; see owns()
+    private volatile boolean unchecked = true;
+    private volatile Migration migration;
+    private volatile RangeMap.Range fenced;
+    private volatile long lastRefresh;
+
+    RangeOwnership(String workerId, String path, String coordinatorUrl) {
+        this.workerId = workerId;
+        this.file = new File(path, FILE_NAME);
+        this.coordinatorUrl = coordinatorUrl;
+        if (file.exists()) {
+            try {
+                map = RangeMap.parse(Files.readString(file.toPath(), StandardCharsets.UTF_8));
+                unchecked = isUnchecked(map);
+            } catch (IOException | IllegalArgumentException e) {
+                logger.error("Ignoring unreadable range map in " + file, e);
+            }
+        }
+    }
+
+    void startRefreshThread() {
+        Thread thread = new Thread(() -> {
+            while (true) {
+                refresh();
+                try {
+                    Thread.sleep(REFRESH_INTERVAL_IN_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }, "range-refresh");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    String workerId() {
+        return workerId;
+    }
+
+    RangeMap map() {
+        return map;
+    }
+
+    /*
+     * Without a map, or with a derived one that does not include this worker yet (it only does once the worker has
+     * pinged the coordinator), a worker accepts every key just like before ranges existed.
+     */
+    boolean owns(String key) {
+        if (unchecked) {
+            return true;
+        }
+        // read after unchecked, which install() writes after the map
+        RangeMap current = map;
+        return current.rangeFor(key).workerId.equals(workerId);
+    }
+
+    private boolean isUnchecked(RangeMap current) {
+        return current == null || current.isEmpty() || (current.isDerived() && current.rangesOf(workerId).isEmpty());
+    }
+
+    /* Whether [start, end) lies within a single range that this worker owns or follows; end is null for no end */
+    boolean servesRange(String start, String end) {
+        if (unchecked) {
+            return true;
+        }
+        RangeMap current = map;
+        RangeMap.Range range = current.rangeFor(start);
+        if (!range.isReplicatedBy(workerId)) {
+            onMisdirected();
+            return false;
+        }
+        return range.end == null || (end != null && end.compareTo(range.end) <= 0);
+    }
+
+    /* Returns whether this worker serves reads of the key, which its followers do too; see accepts() */
+    boolean serves(String key) {
+        return accepts(key, true);
+    }
+
+    /* Only the owner takes writes, and not to a range that is being handed over; callers hold writeLock() */
+    boolean acceptsWrite(String key) {
+        RangeMap.Range fence = fenced;
+        return accepts(key, false) && (fence == null || !fence.contains(key));
+    }
+
+    /* Requests that the owner serves count towards its range's load; a follower's reads are not the owner's load */
+    private boolean accepts(String key, boolean followerToo) {
+        if (unchecked) {
+            return true;
+        }
+        RangeMap current = map;
+        RangeMap.Range range = current.rangeFor(key);
+        if (range.workerId.equals(workerId)) {
+            requestCounts.computeIfAbsent(range.start, start -> new LongAdder()).increment();
+            return true;
+        }
+        if (followerToo && range.followerFor(workerId) != null) {
+            return true;
+        }
+        onMisdirected();
+        return false;
+    }
+
+    /* Whether this worker owns or follows the key's range, i.e. is supposed to hold a copy of its row */
+    boolean replicates(String key) {
+        if (unchecked) {
+            return true;
+        }
+        RangeMap current = map;
+        return current.rangeFor(key).isReplicatedBy(workerId);
+    }
+
+    /* The key's range if this worker owns it and it has followers that writes must be forwarded to, or null */
+    RangeMap.Range followedRange(String key) {
+        if (unchecked) {
+            return null;
+        }
+        RangeMap current = map;
+        RangeMap.Range range = current.rangeFor(key);
+        return range.workerId.equals(workerId) && !range.followers.isEmpty() ? range : null;
+    }
+
+    /* Whether the worker at address follows any of the ranges that this worker owns */
+    boolean isFollowedBy(String address) {
+        RangeMap current = map;
+        if (current == null) {
+            return false;
+        }
+        for (RangeMap.Range range : current.rangesOf(workerId)) {
+            for (RangeMap.Follower follower : range.followers) {
+                if (follower.address.equals(address)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* Whether this worker follows any range, in which case its tables also hold rows that it does not own */
+    boolean followsAny() {
+        RangeMap current = map;
+        if (current == null) {
+            return false;
+        }
+        for (RangeMap.Range range : current.ranges()) {
+            if (range.followerFor(workerId) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    ReentrantReadWriteLock.ReadLock writeLock() {
+        return writeLock.readLock();
+    }
+
+    /* Held instead of writeLock() by changes that no write may overlap with; it waits for the writes in flight */
+    ReentrantReadWriteLock.WriteLock exclusiveWriteLock() {
+        return writeLock.writeLock();
+    }
+
+    /* Waits until the writes that are in flight have been applied; writes that start afterwards are not waited for */
+    void awaitWritesInFlight() {
+        writeLock.writeLock().lock();
+        writeLock.writeLock().unlock();
+    }
+
+    /* Returns and resets the number of requests for the range starting at start */
+    long takeRequestCount(String start) {
+        LongAdder count = requestCounts.remove(start);
+        return count != null ? count.sum() : 0;
+    }
+
+    void noteWrite(String tableName, String key) {
+        Migration current = migration;
+        if (current != null && current.range.contains(key)) {
+            current.writtenKeys.computeIfAbsent(tableName, name -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+    }
+
+    /* Starts tracking writes to the range; writes that are already in flight are finished first */
+    Migration startMigration(RangeMap.Range range) {
+        writeLock.writeLock().lock();
+        try {
+            if (migration != null) {
+                throw new IllegalStateException("Another range is being migrated");
+            }
+            migration = new Migration(range);
+            return migration;
+        } finally {
+            writeLock.writeLock().unlock();
+        }
+    }
+
+    /* Refuses all further writes to the migrating range until a map that gives it to another worker arrives */
+    void fence(Migration migrating) {
+        writeLock.writeLock().lock();
+        try {
+            fenced = migrating.range;
+        } finally {
+            writeLock.writeLock().unlock();
+        }
+    }
+
+    boolean isMigrating() {
+        return migration != null;
+    }
+
+    void endMigration(boolean unfence) {
+        migration = null;
+        if (unfence) {
+            fenced = null;
+        }
+    }
+
+    /* Installs the map if it is newer than the one the worker has; returns whether it did */
+    synchronized boolean install(RangeMap newMap) {
+        if (map != null && newMap.version() <= map.version()) {
+            return false;
+        }
+        map = newMap;
+        unchecked = isUnchecked(newMap);
+        RangeMap.Range fence = fenced;
+        if (fence != null && !owns(fence.start)) {
+            fenced = null;
+        }
+        try {
+            File temp = File.createTempFile(FILE_NAME, ".tmp", file.getParentFile());
+            Files.writeString(temp.toPath(), newMap.serialize(), StandardCharsets.UTF_8);
+            Files.move(temp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            logger.error("Failed to save the range map", e);
+        }
+        return true;
+    }
+
+    /*
+     * A client that sent a key here may know a newer map than this worker does (e.g. one that includes a worker
+     * that just joined), so a misdirected request triggers a refresh instead of waiting for the next one.
+     */
+    private void onMisdirected() {
+        long now = System.currentTimeMillis();
+        if (now - lastRefresh >= MIN_EAGER_REFRESH_INTERVAL_IN_MS) {
+            lastRefresh = now;
+            Thread thread = new Thread(this::refresh, "range-refresh-eager");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void refresh() {
+        synchronized (refreshLock) {
+            lastRefresh = System.currentTimeMillis();
+            try {
+                HTTP.Response res = HTTP.doRequest("GET", "http://" + coordinatorUrl + "/ranges", null);
+                if (res.statusCode() != 200) {
+                    return;
+                }
+                RangeMap latest = RangeMap.parse(new String(res.body(), StandardCharsets.UTF_8));
+                RangeMap current = map;
+                if (!install(latest) && current != null && !current.isDerived() && current.version() > latest.version()) {
+                    // the coordinator has restarted and is deriving the map again; give it back the real one
+                    HTTP.doRequest("PUT", "http://" + coordinatorUrl + "/ranges", current.serialize().getBytes(StandardCharsets.UTF_8));
+                }
+            } catch (IOException | IllegalArgumentException e) {
+                logger.warn("Failed to refresh the range map from " + coordinatorUrl + ": " + e.getMessage());
+            }
+        }
+    }
+}
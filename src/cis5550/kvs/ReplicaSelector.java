@@ -0,0 +1,139 @@
+package cis5550.kvs;
+
+import cis5550.tools.HTTP;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Picks which copy of a row a client reads: the owner of its range or one of the followers that are ready. Every
+ * worker's recent latency is tracked as a moving average, together with the number of requests in flight to it, and
+ * the copy with the lowest expected wait (its latency times one more than its requests in flight) goes first. A worker that has
+ * never been asked looks fastest, so every worker gets tried.
+ *
+ * Single-row reads are hedged: if the first copy has not answered after twice its usual latency, the same request
+ * goes to the next copy too, and whichever answers first wins. The statistics are shared by all clients in a JVM.
+ */
+class ReplicaSelector {
+
+    private static final double LATENCY_WEIGHT = 0.2;
+    private static final double MIN_HEDGE_DELAY_IN_MS = 5;
+    // a worker that failed to answer is treated as this slow until it answers again
+    private static final double FAILURE_LATENCY_IN_MS = 1000;
+
+    private static class Stats {
+        volatile double latencyInMs;
+        final AtomicInteger inFlight = new AtomicInteger();
+    }
+
+    private static final Map<String, Stats> stats = new ConcurrentHashMap<>();
+    private static final ExecutorService executor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "kvs-read");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* The addresses of the owner and the ready followers of the range, best first */
+    static List<String> candidates(RangeMap.Range range) {
+        List<String> addresses = new ArrayList<>();
+        addresses.add(range.address);
+        for (RangeMap.Follower follower : range.followers) {
+            if (follower.ready) {
+                addresses.add(follower.address);
+            }
+        }
+        // the statistics change under concurrent requests, so each address is scored once
+        Map<String, Double> waits = new HashMap<>();
+        for (String address : addresses) {
+            waits.put(address, expectedWait(address));
+        }
+        addresses.sort(Comparator.comparing(waits::get));
+        return addresses;
+    }
+
+    /*
+     * Sends the request to the candidates in turn, moving on to the next one when the current one fails, answers
+     * with a 5xx or 421, or is slow to answer; returns the first other answer, or null if no candidate gave one.
+     * A kept-alive connection to a worker that has died may also end without any answer (status -1).
+     */
+    static HTTP.Response hedgedRequest(List<String> addresses, String method, String path) throws IOException {
+        CompletionService<HTTP.Response> responses = new ExecutorCompletionService<>(executor);
+        int sent = 0;
+        int finished = 0;
+        while (finished < addresses.size()) {
+            if (sent == finished && sent < addresses.size()) {
+                String address = addresses.get(sent++);
+                responses.submit(() -> timedRequest(address, method, path));
+            }
+            try {
+                Future<HTTP.Response> done = sent < addresses.size()
+                        ? responses.poll(hedgeDelay(addresses.get(sent - 1)), TimeUnit.MICROSECONDS)
+                        : responses.take();
+                if (done == null) {
+                    // the latest copy is slow; ask the next one as well
+                    String address = addresses.get(sent++);
+                    responses.submit(() -> timedRequest(address, method, path));
+                    continue;
+                }
+                finished++;
+                HTTP.Response res = done.get();
+                if (res.statusCode() >= 200 && res.statusCode() < 500 && res.statusCode() != KVSClient.MISDIRECTED) {
+                    return res;
+                }
+            } catch (ExecutionException e) {
+                // counted as finished; the next copy is asked right away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a replica", e);
+            }
+        }
+        return null;
+    }
+
+    /* Notes that a request to the address starts, e.g. a batch that is not timed because its size varies */
+    static void started(String address) {
+        statsFor(address).inFlight.incrementAndGet();
+    }
+
+    static void finished(String address) {
+        statsFor(address).inFlight.decrementAndGet();
+    }
+
+    private static HTTP.Response timedRequest(String address, String method, String path) throws IOException {
+        Stats worker = statsFor(address);
+        worker.inFlight.incrementAndGet();
+        long start = System.nanoTime();
+        try {
+            HTTP.Response res = HTTP.doRequest(method, "http://" + address + path, null);
+            double latencyInMs = (System.nanoTime() - start) / 1e6;
+            worker.latencyInMs = worker.latencyInMs == 0 ? latencyInMs
+                    : (1 - LATENCY_WEIGHT) * worker.latencyInMs + LATENCY_WEIGHT * latencyInMs;
+            return res;
+        } catch (IOException e) {
+            worker.latencyInMs = Math.max(worker.latencyInMs, FAILURE_LATENCY_IN_MS);
+            throw e;
+        } finally {
+            worker.inFlight.decrementAndGet();
+        }
+    }
+
+    private static double expectedWait(String address) {
+        Stats worker = statsFor(address);
+        return worker.latencyInMs * (worker.inFlight.get() + 1);
+    }
+
+    /* In microseconds, since the latencies of a local KVS are often below a millisecond */
+    private static long hedgeDelay(String address) {
+        return (long) (Math.max(MIN_HEDGE_DELAY_IN_MS, 2 * statsFor(address).latencyInMs) * 1000);
+    }
+
+    private static Stats statsFor(String address) {
+        return stats.computeIfAbsent(address, newAddress -> new Stats());
+    }
+}
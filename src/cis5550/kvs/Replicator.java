@@ -0,0 +1,206 @@
+package cis5550.kvs;
+
+import cis5550.tools.HTTP;
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Forwards the writes that a worker applies to persistent tables, as the owner of their range, to the range's
+ * followers. Each follower has a queue of its own that a single thread drains in order, so a follower applies the
+ * writes to a row in the same order as the owner did; writes that queue up while a batch is in flight go out
+ * together in the next one. A follower that cannot be reached keeps its queue and gets it once it is back, unless
+ * it no longer follows any of this worker's ranges by then.
+ *
+ * The writes of a request count as replicated once a majority of the copies of each range they touched have them,
+ * the owner's own copy included: 1 of 1 or 2 followers, 2 of 3 or 4, and so on.
+ */
+class Replicator {
+
+    private static final Logger logger = Logger.getLogger(Replicator.class);
+    private static final int MAX_BATCH_ROWS = 1000;
+    private static final int MAX_QUEUED_ROWS = 100_000;
+    private static final long RETRY_INTERVAL_IN_MS = 500;
+    private static final long QUORUM_TIMEOUT_IN_MS = 5000;
+
+    private static class Forward {
+        final String tableName;
+        final Row row;
+        final CompletableFuture<Void> sent = new CompletableFuture<>();
+
+        Forward(String tableName, Row row) {
+            this.tableName = tableName;
+            this.row = row;
+        }
+    }
+
+    /* For each range a request wrote to: how many followers must confirm, and the last write sent to each of them */
+    private static class Pending {
+        final Map<String, Integer> needed = new HashMap<>();
+        final Map<String, Map<String, CompletableFuture<Void>>> latest = new HashMap<>();
+    }
+
+    private final RangeOwnership ranges;
+    private final Map<String, Link> links = new ConcurrentHashMap<>();
+    private final ThreadLocal<Pending> pending = new ThreadLocal<>();
+
+    Replicator(RangeOwnership ranges) {
+        this.ranges = ranges;
+    }
+
+    /*
+     * Queues the row for the followers of its range, if this worker owns the range and it has any. Callers hold the
+     * row's lock, so the writes to a row are queued in the order they were applied.
+     */
+    void forward(String tableName, Row row) {
+        RangeMap.Range range = ranges.followedRange(row.key());
+        if (range == null) {
+            return;
+        }
+        Pending request = pending.get();
+        if (request == null) {
+            request = new Pending();
+            pending.set(request);
+        }
+        request.needed.put(range.start, (range.followers.size() + 1) / 2);
+        Map<String, CompletableFuture<Void>> latest = request.latest.computeIfAbsent(range.start, start -> new HashMap<>());
+        for (RangeMap.Follower follower : range.followers) {
+            latest.put(follower.address, linkTo(follower.address).enqueue(tableName, row));
+        }
+    }
+
+    /*
+     * Waits until a quorum of followers has the writes that the current request forwarded; since each follower
+     * gets its writes in order, it has them all once it has the last one. Returns false if that takes too long.
+     */
+    boolean awaitQuorum() {
+        Pending request = pending.get();
+        pending.remove();
+        if (request == null) {
+            return true;
+        }
+
+        long deadline = System.currentTimeMillis() + QUORUM_TIMEOUT_IN_MS;
+        for (Map.Entry<String, Map<String, CompletableFuture<Void>>> range : request.latest.entrySet()) {
+            CountDownLatch acks = new CountDownLatch(request.needed.get(range.getKey()));
+            for (CompletableFuture<Void> sent : range.getValue().values()) {
+                sent.thenRun(acks::countDown);
+            }
+            try {
+                if (!acks.await(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Forgets what the current request forwarded; called when a request ends, acknowledged or not */
+    void reset() {
+        pending.remove();
+    }
+
+    private Link linkTo(String address) {
+        return links.computeIfAbsent(address, newAddress -> {
+            Link link = new Link(newAddress);
+            Thread thread = new Thread(link, "replicate-" + newAddress);
+            thread.setDaemon(true);
+            thread.start();
+            return link;
+        });
+    }
+
+    private class Link implements Runnable {
+        final String address;
+        final LinkedBlockingQueue<Forward> queue = new LinkedBlockingQueue<>(MAX_QUEUED_ROWS);
+        boolean closed;
+
+        Link(String address) {
+            this.address = address;
+        }
+
+        synchronized CompletableFuture<Void> enqueue(String tableName, Row row) {
+            Forward forward = new Forward(tableName, row);
+            if (closed) {
+                forward.sent.completeExceptionally(new IOException("No longer replicating to " + address));
+            } else if (!queue.offer(forward)) {
+                logger.error("Follower " + address + " has fallen too far behind and misses a write to row '"
+                        + row.key() + "' of table '" + tableName + "'");
+                forward.sent.completeExceptionally(new IOException("Too many writes queued for " + address));
+            }
+            return forward.sent;
+        }
+
+        public void run() {
+            List<Forward> batch = new ArrayList<>();
+            while (true) {
+                try {
+                    if (batch.isEmpty()) {
+                        batch.add(queue.take());
+                        queue.drainTo(batch, MAX_BATCH_ROWS - 1);
+                    }
+                    send(batch);
+                    for (Forward forward : batch) {
+                        forward.sent.complete(null);
+                    }
+                    batch.clear();
+                } catch (IOException e) {
+                    for (Forward forward : batch) {
+                        forward.sent.completeExceptionally(e);
+                    }
+                    if (!ranges.isFollowedBy(address)) {
+                        logger.info("Stopped replicating to " + address + ", which no longer follows any range here");
+                        close();
+                        return;
+                    }
+                    logger.warn("Failed to replicate " + batch.size() + " rows to " + address + ": " + e.getMessage());
+                    try {
+                        Thread.sleep(RETRY_INTERVAL_IN_MS);
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        /* Sends the batch as one request per run of rows of the same table, in order */
+        private void send(List<Forward> batch) throws IOException {
+            int from = 0;
+            while (from < batch.size()) {
+                String tableName = batch.get(from).tableName;
+                List<Row> rows = new ArrayList<>();
+                while (from < batch.size() && batch.get(from).tableName.equals(tableName)) {
+                    rows.add(batch.get(from++).row);
+                }
+                HTTP.Response res = HTTP.doRequest("PUT", "http://" + address + "/batch/" + tableName + "?replica=true",
+                        KVSClient.encodeBatch(rows));
+                if (res.statusCode() != 200) {
+                    throw new IOException("Status " + res.statusCode() + ": " + new String(res.body()));
+                }
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            links.remove(address, this);
+            for (Forward forward : queue) {
+                forward.sent.completeExceptionally(new IOException("No longer replicating to " + address));
+            }
+            queue.clear();
+        }
+    }
+}
@@ -2,12 +2,36 @@ package cis5550.kvs;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class Row implements Serializable {
 
+  /*
+   * Binary rows are MAGIC VERSION varint(bodyLength) body, where body is varint(keyLength) key varint(columnCount)
+   * followed by varint(nameLength) name varint(valueLength) value for each column. A text row can never start with
+   * a NUL byte, so readers tell the two formats apart by the first byte.
+   *
+   * Version 2 adds a codec byte after each column name. Values stored with CODEC_DEFLATE are varint(rawLength)
+   * followed by the zlib-compressed value; they are only inflated when the column is read.
+   */
+  public static final byte BINARY_MAGIC = 0;
+  public static final byte BINARY_VERSION = 1;
+  public static final byte BINARY_VERSION_COMPRESSED = 2;
+  static final byte CODEC_NONE = 0;
+  static final byte CODEC_DEFLATE = 1;
+
   protected String key;
   protected HashMap<String,byte[]> values;
 
+  // A row read in the binary format keeps its encoded bytes and only splits them into values when it has to
+  protected byte[] encoded;
+  protected int bodyOffset;
+  protected byte encodedVersion;
+
   public Row(String keyArg) {
     key = keyArg;
     values = new HashMap<String,byte[]>();
@@ -19,46 +43,162 @@ public class Row implements Serializable {
 
   public synchronized Row clone() {
     Row theClone = new Row(key);
+    theClone.encoded = encoded;
+    theClone.bodyOffset = bodyOffset;
+    theClone.encodedVersion = encodedVersion;
     for (String s : values.keySet())
       theClone.values.put(s, values.get(s));
     return theClone;
   }
 
   public synchronized Set<String> columns() {
+    decode();
     return values.keySet();
   }
 
   public synchronized void put(String key, String value) {
+    decode();
     values.put(key, value.getBytes());
   }
 
   public synchronized void put(String key, byte[] value) {
+    decode();
     values.put(key, value);
   }
 
   public synchronized String get(String key) {
-    if (values.get(key) == null)
+    byte[] value = getBytes(key);
+    if (value == null)
       return null;
-  	return new String(values.get(key));
+  	return new String(value);
   }
 
   public synchronized byte[] getBytes(String key) {
+    // compressed rows are inflated once as a whole rather than once per read of a column
+    if (encoded != null && encodedVersion == BINARY_VERSION_COMPRESSED)
+      decode();
+    if (encoded != null) {
+      ByteBuffer in = ByteBuffer.wrap(encoded);
+      in.position(bodyOffset);
+      return readBinaryColumn(in, key, encodedVersion);
+    }
     return values.get(key);
   }
 
+  /*
+   * Returns a row with only the given columns; columns the row does not have are left out. The columns of an
+   * encoded row are copied as they are stored, so compressed values stay compressed.
+   */
+  public synchronized Row project(Collection<String> columnNames) {
+    if (encoded == null) {
+      Row projected = new Row(key);
+      for (String column : columnNames) {
+        byte[] value = values.get(column);
+        if (value != null)
+          projected.values.put(column, value);
+      }
+      return projected;
+    }
+
+    Set<String> wanted = new HashSet<>(columnNames);
+    ByteArrayOutputStream columns = new ByteArrayOutputStream();
+    int numColumns = 0;
+    ByteBuffer in = ByteBuffer.wrap(encoded);
+    in.position(bodyOffset);
+    readBinaryString(in);
+    int storedColumns = readVarint(in);
+    for (int i=0; i<storedColumns; i++) {
+      int start = in.position();
+      String column = readBinaryString(in);
+      if (encodedVersion == BINARY_VERSION_COMPRESSED)
+        in.get();
+      int valueLength = readVarint(in);
+      in.position(in.position() + valueLength);
+      if (wanted.contains(column)) {
+        columns.write(encoded, start, in.position() - start);
+        numColumns++;
+      }
+    }
+
+    ByteArrayOutputStream body = new ByteArrayOutputStream(columns.size() + key.length() + 10);
+    writeBinaryString(body, key.getBytes(StandardCharsets.UTF_8));
+    writeVarint(body, numColumns);
+    body.writeBytes(columns.toByteArray());
+    Row projected = new Row(key);
+    projected.setEncoded(frame(body, encodedVersion), encodedVersion);
+    return projected;
+  }
+
+  /* Roughly how many bytes the row's key and columns take up, without decoding it if it is still encoded */
+  public synchronized int sizeInBytes() {
+    if (encoded != null)
+      return encoded.length;
+    int size = key.length();
+    for (Map.Entry<String,byte[]> column : values.entrySet())
+      size += column.getKey().length() + (column.getValue() != null ? column.getValue().length : 0);
+    return size;
+  }
+
+  /* True if the row is held in the binary format with compressed columns, as it may be when read from a table */
+  public synchronized boolean isCompressed() {
+    return encoded != null && encodedVersion == BINARY_VERSION_COMPRESSED;
+  }
+
+  /* Returns the row itself, or an equivalent row whose toBinary() does not compress any columns */
+  public synchronized Row uncompressed() {
+    if (!isCompressed())
+      return this;
+    Row theClone = clone();
+    theClone.decode();
+    return theClone;
+  }
+
+  private void setEncoded(byte[] data, byte version) {
+    ByteBuffer in = ByteBuffer.wrap(data);
+    in.position(2);
+    readVarint(in);
+    encoded = data;
+    bodyOffset = in.position();
+    encodedVersion = version;
+  }
+
+  private void decode() {
+    if (encoded == null)
+      return;
+
+    ByteBuffer in = ByteBuffer.wrap(encoded);
+    in.position(bodyOffset);
+    readBinaryString(in);
+    int numColumns = readVarint(in);
+    for (int i=0; i<numColumns; i++) {
+      String column = readBinaryString(in);
+      byte codec = encodedVersion == BINARY_VERSION_COMPRESSED ? in.get() : CODEC_NONE;
+      byte[] value = new byte[readVarint(in)];
+      in.get(value);
+      values.put(column, codec == CODEC_DEFLATE ? inflate(value) : value);
+    }
+    encoded = null;
+  }
+
   static String readStringSpace(InputStream in) throws Exception {
-    byte buffer[] = new byte[16384];
+    return readStringSpace(in, in.read());
+  }
+
+  static String readStringSpace(InputStream in, int b) throws Exception {
+    byte buffer[] = new byte[64];
     int numRead = 0;
     while (true) {
-      if (numRead == buffer.length)
-        throw new Exception("Format error: Expecting string+space");
-
-      int b = in.read();
       if ((b < 0) || (b == 10))
         return null;
-      buffer[numRead++] = (byte)b;
       if (b == ' ')
-        return new String(buffer, 0, numRead-1);
+        return new String(buffer, 0, numRead);
+      if (numRead == buffer.length) {
+        if (numRead == 16384)
+          throw new Exception("Format error: Expecting string+space");
+        buffer = Arrays.copyOf(buffer, 2*numRead);
+      }
+      buffer[numRead++] = (byte)b;
+      b = in.read();
     }
   }
 
@@ -78,8 +218,215 @@ public class Row implements Serializable {
     }
   }
 
+  static String readStringSpace(ByteBuffer in) throws Exception {
+    int start = in.position();
+    while (true) {
+      if (!in.hasRemaining() || in.position() - start == 16384)
+        return null;
+      byte b = in.get();
+      if (b == 10)
+        return null;
+      if (b == ' ') {
+        byte buffer[] = new byte[in.position() - start - 1];
+        in.get(start, buffer);
+        return new String(buffer);
+      }
+    }
+  }
+
+  /* Extracts a single column from a serialized row (in either format) without materializing the other values */
+  static byte[] readColumn(ByteBuffer in, String column) throws Exception {
+    if (in.hasRemaining() && in.get(in.position()) == BINARY_MAGIC) {
+      in.get();
+      byte version = in.get();
+      if (version != BINARY_VERSION && version != BINARY_VERSION_COMPRESSED)
+        throw new Exception("Unsupported binary row version");
+      readVarint(in);
+      return readBinaryColumn(in, column, version);
+    }
+
+    if (readStringSpace(in) == null)
+      return null;
+
+    while (true) {
+      String keyOrMarker = readStringSpace(in);
+      if (keyOrMarker == null)
+        return null;
+
+      int len = Integer.parseInt(readStringSpace(in));
+      if (keyOrMarker.equals(column)) {
+        byte[] theValue = new byte[len];
+        in.get(theValue);
+        return theValue;
+      }
+      in.position(in.position() + len + 1);
+    }
+  }
+
+  static byte[] readBinaryColumn(ByteBuffer in, String column, byte version) {
+    byte[] name = column.getBytes(StandardCharsets.UTF_8);
+    int keyLength = readVarint(in);
+    in.position(in.position() + keyLength);
+    int numColumns = readVarint(in);
+    for (int i=0; i<numColumns; i++) {
+      int nameLength = readVarint(in);
+      boolean matches = (nameLength == name.length) && in.slice(in.position(), nameLength).equals(ByteBuffer.wrap(name));
+      in.position(in.position() + nameLength);
+      byte codec = version == BINARY_VERSION_COMPRESSED ? in.get() : CODEC_NONE;
+      int valueLength = readVarint(in);
+      if (matches) {
+        byte[] theValue = new byte[valueLength];
+        in.get(theValue);
+        return codec == CODEC_DEFLATE ? inflate(theValue) : theValue;
+      }
+      in.position(in.position() + valueLength);
+    }
+    return null;
+  }
+
+  static String readBinaryString(ByteBuffer in) {
+    byte[] bytes = new byte[readVarint(in)];
+    in.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static int readVarint(ByteBuffer in) {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      byte b = in.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IllegalArgumentException("Malformed varint");
+  }
+
+  static int readVarint(InputStream in) throws IOException {
+    int value = 0;
+    for (int shift = 0; shift < 35; shift += 7) {
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("Premature end of stream while reading a binary row");
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0)
+        return value;
+    }
+    throw new IOException("Malformed varint");
+  }
+
+  static void writeVarint(ByteArrayOutputStream out, int value) {
+    while ((value & ~0x7f) != 0) {
+      out.write((value & 0x7f) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  static void writeBinaryString(ByteArrayOutputStream out, byte[] bytes) {
+    writeVarint(out, bytes.length);
+    out.write(bytes, 0, bytes.length);
+  }
+
+  /* Wraps a complete binary row without copying it; the values are only split out when they are needed */
+  static Row fromBinary(byte[] data) throws Exception {
+    ByteBuffer in = ByteBuffer.wrap(data);
+    byte version = in.get(1);
+    if (in.get() != BINARY_MAGIC || (version != BINARY_VERSION && version != BINARY_VERSION_COMPRESSED))
+      throw new Exception("Unsupported binary row version");
+    in.get();
+    int bodyLength = readVarint(in);
+    if (bodyLength != in.remaining())
+      throw new Exception("Binary row is " + in.remaining() + " bytes long, expecting " + bodyLength);
+
+    int bodyOffset = in.position();
+    Row newRow = new Row(readBinaryString(in));
+    newRow.encoded = data;
+    newRow.bodyOffset = bodyOffset;
+    newRow.encodedVersion = version;
+    return newRow;
+  }
+
+  /* Deflates a value into the CODEC_DEFLATE form, or returns null if that would not make it any smaller */
+  static byte[] deflate(byte[] value, int level) {
+    Deflater deflater = new Deflater(level);
+    try {
+      deflater.setInput(value);
+      deflater.finish();
+      ByteArrayOutputStream out = new ByteArrayOutputStream(value.length / 2 + 16);
+      writeVarint(out, value.length);
+      byte[] buffer = new byte[Math.min(Math.max(value.length, 64), 65536)];
+      while (!deflater.finished()) {
+        int n = deflater.deflate(buffer);
+        out.write(buffer, 0, n);
+        if (out.size() >= value.length)
+          return null;
+      }
+      return out.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  static byte[] inflate(byte[] stored) {
+    ByteBuffer in = ByteBuffer.wrap(stored);
+    byte[] value = new byte[readVarint(in)];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(stored, in.position(), in.remaining());
+      int n = 0;
+      while (n < value.length) {
+        int inflated = inflater.inflate(value, n, value.length - n);
+        if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()))
+          break;
+        n += inflated;
+      }
+      if (n != value.length)
+        throw new IllegalArgumentException("Compressed column is truncated");
+      return value;
+    } catch (DataFormatException e) {
+      throw new IllegalArgumentException("Compressed column is corrupt", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /* Decodes a row that was serialized with either toByteArray() or toBinary() */
+  public static Row fromBytes(byte[] data) throws Exception {
+    if (data.length > 0 && data[0] == BINARY_MAGIC)
+      return fromBinary(data);
+    return readFrom(new ByteArrayInputStream(data));
+  }
+
   public static Row readFrom(InputStream in) throws Exception {
-    String theKey = readStringSpace(in);
+    int b = in.read();
+    if ((b < 0) || (b == 10))
+      return null;
+    if (b == BINARY_MAGIC) {
+      int version = in.read();
+      if (version != BINARY_VERSION && version != BINARY_VERSION_COMPRESSED)
+        throw new Exception("Unsupported binary row version "+version);
+      int bodyLength = readVarint(in);
+
+      ByteArrayOutputStream header = new ByteArrayOutputStream(7);
+      header.write(BINARY_MAGIC);
+      header.write(version);
+      writeVarint(header, bodyLength);
+      byte[] data = Arrays.copyOf(header.toByteArray(), header.size() + bodyLength);
+      int bytesRead = header.size();
+      while (bytesRead < data.length) {
+        int n = in.read(data, bytesRead, data.length - bytesRead);
+        if (n < 0)
+          throw new Exception("Premature end of stream while reading a binary row (read "+bytesRead+" bytes, expecting "+data.length+")");
+        bytesRead += n;
+      }
+      return fromBinary(data);
+    }
+
+    return readTextFrom(in, b);
+  }
+
+  static Row readTextFrom(InputStream in, int firstByte) throws Exception {
+    String theKey = readStringSpace(in, firstByte);
     if (theKey == null) 
       return null;
 
@@ -137,6 +484,7 @@ public class Row implements Serializable {
   }
 
   public synchronized String toString() {
+    decode();
     String s = key+" {";
     boolean isFirst = true;
     for (String k : values.keySet()) {
@@ -147,6 +495,7 @@ public class Row implements Serializable {
   }
 
   public synchronized byte[] toByteArray()  {
+    decode();
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
 
     try {
@@ -174,4 +523,53 @@ public class Row implements Serializable {
 
     return baos.toByteArray();
   }
-}
\ No newline at end of file
+
+  /* Rows that were read in the binary format come back exactly as they were read, compressed columns included */
+  public synchronized byte[] toBinary() {
+    if (encoded != null)
+      return encoded;
+    return encodeBinary(Integer.MAX_VALUE, 0);
+  }
+
+  /*
+   * Encodes the row in version 2, deflating (at the given level) every value of at least minCompressedLength bytes
+   * that actually gets smaller. A row that is already encoded with compressed columns is returned as it is.
+   */
+  public synchronized byte[] toBinary(int minCompressedLength, int compressionLevel) {
+    if (encoded != null && encodedVersion == BINARY_VERSION_COMPRESSED)
+      return encoded;
+    decode();
+    return encodeBinary(minCompressedLength, compressionLevel);
+  }
+
+  private byte[] encodeBinary(int minCompressedLength, int compressionLevel) {
+    boolean compress = minCompressedLength != Integer.MAX_VALUE;
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    writeBinaryString(body, key.getBytes(StandardCharsets.UTF_8));
+    int numColumns = 0;
+    for (byte[] value : values.values())
+      if (value != null)
+        numColumns++;
+    writeVarint(body, numColumns);
+    for (Map.Entry<String,byte[]> entry : values.entrySet()) {
+      byte[] value = entry.getValue();
+      if (value == null)
+        continue;
+      writeBinaryString(body, entry.getKey().getBytes(StandardCharsets.UTF_8));
+      byte[] deflated = (compress && value.length >= minCompressedLength) ? deflate(value, compressionLevel) : null;
+      if (compress)
+        body.write(deflated != null ? CODEC_DEFLATE : CODEC_NONE);
+      writeBinaryString(body, deflated != null ? deflated : value);
+    }
+    return frame(body, compress ? BINARY_VERSION_COMPRESSED : BINARY_VERSION);
+  }
+
+  private static byte[] frame(ByteArrayOutputStream body, byte version) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(body.size() + 7);
+    out.write(BINARY_MAGIC);
+    out.write(version);
+    writeVarint(out, body.size());
+    out.writeBytes(body.toByteArray());
+    return out.toByteArray();
+  }
+}
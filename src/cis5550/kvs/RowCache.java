@@ -0,0 +1,216 @@
+package cis5550.kvs;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.BooleanSupplier;
+
+/*
+ * A least-recently-used cache of stored rows (as returned by SegmentStore.getRowBytes()) that is bounded by the
+ * bytes it holds rather than by its number of rows, so a few huge pages cannot crowd out memory the same way as
+ * thousands of small rows. It is split into independently locked shards, each with an equal share of the budget,
+ * so that concurrent requests for different rows rarely wait for each other.
+ *
+ * Readers fill the cache without holding the row's lock. A reader notes invalidations() before it reads the row from
+ * disk and passes that count to putUnlessInvalidated(), which drops the row if it has been written since. The counts
+ * are kept per stripe of keys rather than per row, so a write can also drop the fill of another row of its stripe.
+ */
+public class RowCache {
+
+    private static final int NUM_SHARDS = 16;
+    // approximate memory taken by an entry besides the row bytes: the key, the map entry and the array headers
+    private static final int ENTRY_OVERHEAD = 96;
+    private static final int NUM_INVALIDATION_STRIPES = 1024;
+
+    private final Shard[] shards = new Shard[NUM_SHARDS];
+    private final long capacityInBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLongArray invalidations = new AtomicLongArray(NUM_INVALIDATION_STRIPES);
+
+    public RowCache(long capacityInBytes) {
+        this.capacityInBytes = capacityInBytes;
+        for (int i = 0; i < NUM_SHARDS; i++) {
+            shards[i] = new Shard(capacityInBytes / NUM_SHARDS);
+        }
+    }
+
+    public byte[] get(String tableName, String rowKey) {
+        CacheKey key = new CacheKey(tableName, rowKey);
+        byte[] rowBytes = shardFor(key).get(key);
+        (rowBytes != null ? hits : misses).incrementAndGet();
+        return rowBytes;
+    }
+
+    /* The number of times the row, or another one of its stripe, has been invalidated so far */
+    public long invalidations(String tableName, String rowKey) {
+        return invalidations.get(stripeFor(new CacheKey(tableName, rowKey)));
+    }
+
+    /*
+     * Caches a row read from disk, unless it has been invalidated since the reader got invalidationsBefore from
+     * invalidations(). Rows that would take up more than a quarter of a shard are not cached at all.
+     */
+    public void putUnlessInvalidated(String tableName, String rowKey, byte[] rowBytes, long invalidationsBefore) {
+        CacheKey key = new CacheKey(tableName, rowKey);
+        Shard shard = shardFor(key);
+        if (weight(key, rowBytes) > shard.capacity / 4) {
+            return;
+        }
+        int stripe = stripeFor(key);
+        // checked under the shard's lock, which invalidate() takes after counting, so a row read before a write
+        // is either dropped here or removed again by the invalidation
+        evictions.addAndGet(shard.putIf(key, rowBytes, () -> invalidations.get(stripe) == invalidationsBefore));
+    }
+
+    /* Called after the row has been written or deleted */
+    public void invalidate(String tableName, String rowKey) {
+        CacheKey key = new CacheKey(tableName, rowKey);
+        invalidations.incrementAndGet(stripeFor(key));
+        shardFor(key).remove(key);
+    }
+
+    public void invalidateTable(String tableName) {
+        for (int i = 0; i < NUM_INVALIDATION_STRIPES; i++) {
+            invalidations.incrementAndGet(i);
+        }
+        for (Shard shard : shards) {
+            shard.removeTable(tableName);
+        }
+    }
+
+    public long hits() {
+        return hits.get();
+    }
+
+    public long misses() {
+        return misses.get();
+    }
+
+    public long evictions() {
+        return evictions.get();
+    }
+
+    public long capacityInBytes() {
+        return capacityInBytes;
+    }
+
+    public long sizeInBytes() {
+        long size = 0;
+        for (Shard shard : shards) {
+            size += shard.sizeInBytes();
+        }
+        return size;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Shard shard : shards) {
+            size += shard.size();
+        }
+        return size;
+    }
+
+    private Shard shardFor(CacheKey key) {
+        return shards[Math.floorMod(key.hashCode(), NUM_SHARDS)];
+    }
+
+    private static int stripeFor(CacheKey key) {
+        return Math.floorMod(key.hashCode(), NUM_INVALIDATION_STRIPES);
+    }
+
+    private static long weight(CacheKey key, byte[] rowBytes) {
+        return rowBytes.length + 2L * (key.tableName.length() + key.rowKey.length()) + ENTRY_OVERHEAD;
+    }
+
+    private static class Shard {
+        final long capacity;
+        final LinkedHashMap<CacheKey, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+        long sizeInBytes;
+
+        Shard(long capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized byte[] get(CacheKey key) {
+            return entries.get(key);
+        }
+
+        /* Returns the number of entries that had to be evicted to make room */
+        synchronized int putIf(CacheKey key, byte[] rowBytes, BooleanSupplier condition) {
+            if (!condition.getAsBoolean()) {
+                return 0;
+            }
+            byte[] previous = entries.put(key, rowBytes);
+            if (previous != null) {
+                sizeInBytes -= weight(key, previous);
+            }
+            sizeInBytes += weight(key, rowBytes);
+
+            int evicted = 0;
+            Iterator<Map.Entry<CacheKey, byte[]>> eldest = entries.entrySet().iterator();
+            while (sizeInBytes > capacity && eldest.hasNext()) {
+                Map.Entry<CacheKey, byte[]> entry = eldest.next();
+                sizeInBytes -= weight(entry.getKey(), entry.getValue());
+                eldest.remove();
+                evicted++;
+            }
+            return evicted;
+        }
+
+        synchronized void remove(CacheKey key) {
+            byte[] previous = entries.remove(key);
+            if (previous != null) {
+                sizeInBytes -= weight(key, previous);
+            }
+        }
+
+        synchronized void removeTable(String tableName) {
+            Iterator<Map.Entry<CacheKey, byte[]>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<CacheKey, byte[]> entry = it.next();
+                if (entry.getKey().tableName.equals(tableName)) {
+                    sizeInBytes -= weight(entry.getKey(), entry.getValue());
+                    it.remove();
+                }
+            }
+        }
+
+        synchronized long sizeInBytes() {
+            return sizeInBytes;
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+
+    private static final class CacheKey {
+        final String tableName;
+        final String rowKey;
+        final int hash;
+
+        CacheKey(String tableName, String rowKey) {
+            this.tableName = tableName;
+            this.rowKey = rowKey;
+            this.hash = 31 * tableName.hashCode() + rowKey.hashCode();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey other = (CacheKey) o;
+            return hash == other.hash && tableName.equals(other.tableName) && rowKey.equals(other.rowKey);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
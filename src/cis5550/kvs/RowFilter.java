@@ -0,0 +1,12 @@
+package cis5550.kvs;
+
+import java.io.Serializable;
+
+/*
+ * A predicate that KVSClient.scan() ships to the KVS workers, so rows it rejects never leave the worker. Filters that
+ * are not part of the KVS itself need their classes uploaded with KVSClient.useJAR() first.
+ */
+@FunctionalInterface
+public interface RowFilter extends Serializable {
+    boolean test(Row row);
+}
@@ -0,0 +1,32 @@
+package cis5550.kvs;
+
+/*
+ * A fixed set of monitors that row keys are hashed onto, so that read-modify-write cycles on the same row are
+ * serialized while updates to unrelated rows (almost always) proceed in parallel. Plain reads never take a stripe.
+ */
+class RowLocks {
+
+    private static final int DEFAULT_STRIPES = 1024;
+
+    private final Object[] stripes;
+    private final int mask;
+
+    RowLocks() {
+        this(DEFAULT_STRIPES);
+    }
+
+    RowLocks(int stripeCount) {
+        int size = Integer.highestOneBit(Math.max(1, stripeCount - 1) << 1);
+        stripes = new Object[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Object();
+        }
+        mask = size - 1;
+    }
+
+    Object lockFor(String tableName, String rowKey) {
+        int hash = 31 * tableName.hashCode() + rowKey.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[hash & mask];
+    }
+}
@@ -0,0 +1,85 @@
+package cis5550.kvs;
+
+import cis5550.tools.KeyEncoder;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+
+/*
+ * Converts persistent tables from the old one-file-per-row layout into segment logs. The KVS worker that owns
+ * the storage directory must not be running while this tool is used.
+ */
+public class SegmentMigrator {
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Syntax: SegmentMigrator <storageDir> [tableName...]");
+            System.exit(1);
+        }
+
+        File storageDir = new File(args[0]);
+        File[] tableDirs;
+        if (args.length > 1) {
+            tableDirs = new File[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                tableDirs[i - 1] = new File(storageDir, KeyEncoder.encode(args[i]));
+            }
+        } else {
+            tableDirs = storageDir.listFiles(file -> file.isDirectory() && file.getName().startsWith("pt-"));
+        }
+
+        if (tableDirs == null) {
+            System.err.println("Cannot list " + storageDir);
+            System.exit(1);
+        }
+
+        for (File tableDir : tableDirs) {
+            int migrated = migrate(tableDir);
+            System.out.println(KeyEncoder.decode(tableDir.getName()) + ": " + migrated + " row(s) migrated");
+        }
+    }
+
+    public static boolean isLegacyRowFile(String fileName) {
+        // KeyEncoder never produces a '.', while every file the segment store writes has an extension
+        return !fileName.contains(".") && !fileName.startsWith(".");
+    }
+
+    public static boolean hasLegacyRowFiles(File tableDir) {
+        File[] rowFiles = tableDir.listFiles(file -> file.isFile() && isLegacyRowFile(file.getName()));
+        return rowFiles != null && rowFiles.length > 0;
+    }
+
+    public static int migrate(File tableDir) throws Exception {
+        File[] rowFiles = tableDir.listFiles(file -> file.isFile() && isLegacyRowFile(file.getName()));
+        if (rowFiles == null || rowFiles.length == 0) {
+            return 0;
+        }
+
+        int migrated = 0;
+        SegmentStore store = SegmentStore.open(tableDir);
+        try {
+            for (File rowFile : rowFiles) {
+                try (InputStream in = new BufferedInputStream(new FileInputStream(rowFile))) {
+                    Row row = Row.readFrom(in);
+                    if (row != null) {
+                        store.put(row);
+                        migrated++;
+                    }
+                }
+            }
+            store.sync();
+        } finally {
+            store.close();
+        }
+
+        // only remove the old files once every row is safely in the log, so an interrupted run can be repeated
+        for (File rowFile : rowFiles) {
+            if (!rowFile.delete()) {
+                System.err.println("Unable to delete " + rowFile);
+            }
+        }
+        return migrated;
+    }
+}
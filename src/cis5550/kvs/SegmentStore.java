@@ -0,0 +1,679 @@
+package cis5550.kvs;
+
+import cis5550.tools.Logger;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/*
+ * Log-structured storage for a single persistent table. Rows are appended to numbered segment files
+ * (segment-000001.seg, ...) and an in-memory sorted index maps each row key to the location of its newest
+ * record. Each record is laid out as [crc][keyLength][valueLength][key][value]; a valueLength of -1 marks a
+ * deleted row. On open, the segments are replayed in order to rebuild the index, and a torn or corrupt tail
+ * (e.g. from a crash in the middle of an append) is truncated away. Sealed segments whose records are mostly
+ * overwritten are rewritten by a background compaction task.
+ *
+ * Lookups go through a Bloom filter over the live row keys first, which answers most lookups of rows that do not
+ * exist without searching the index. The filter is rebuilt from the index during recovery and whenever it has taken
+ * in more keys than it was sized for, so it is not stored on disk.
+ *
+ * Rows are encoded according to the table's TableConfig, so large columns may be stored compressed; readers get
+ * the stored bytes back as they are and only inflate the columns they actually read.
+ *
+ * A store opened read-only memory-maps every segment instead, so lookups are served straight from the page cache
+ * and single columns can be sliced out of a record without copying the rest of the row.
+ *
+ * Since sealed segments are never written again, a snapshot of the table is a directory of hard links to them:
+ * the active segment is sealed first, so the snapshot holds exactly the records written up to that moment, and it
+ * costs no copying however large the table is. Compaction deletes only its own names for the files, so a snapshot
+ * keeps its segments alive until it is deleted, and can be opened read-only like any table directory.
+ */
+public class SegmentStore {
+
+    private static final Logger logger = Logger.getLogger(SegmentStore.class);
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final int HEADER_SIZE = 12;
+    private static final int TOMBSTONE = -1;
+    private static final long MAX_SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final double COMPACTION_GARBAGE_RATIO = 0.5;
+    private static final long COMPACTION_INTERVAL_IN_S = 30;
+    private static final int MIN_BLOOM_FILTER_CAPACITY = 1024;
+    private static final double BLOOM_FILTER_FALSE_POSITIVE_RATE = 0.01;
+    private static final Set<SegmentStore> openStores = ConcurrentHashMap.newKeySet();
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        compactor.scheduleWithFixedDelay(SegmentStore::compactAll,
+                COMPACTION_INTERVAL_IN_S, COMPACTION_INTERVAL_IN_S, TimeUnit.SECONDS);
+    }
+
+    private volatile File dir;
+    private final ConcurrentSkipListMap<String, Location> index = new ConcurrentSkipListMap<>();
+    private final ConcurrentSkipListMap<Integer, Segment> segments = new ConcurrentSkipListMap<>();
+    private final AtomicInteger rowCount = new AtomicInteger();
+    private final AtomicLong definitelyAbsentLookups = new AtomicLong();
+    private final AtomicLong falsePositiveLookups = new AtomicLong();
+    private volatile BloomFilter bloomFilter = new BloomFilter(MIN_BLOOM_FILTER_CAPACITY, BLOOM_FILTER_FALSE_POSITIVE_RATE);
+    private final Object writeLock = new Object();
+    private final boolean readOnly;
+    private volatile TableConfig config;
+    private Segment activeSegment;
+    private volatile boolean closed = false;
+
+    private SegmentStore(File dir, boolean readOnly) {
+        this.dir = dir;
+        this.readOnly = readOnly;
+    }
+
+    public static SegmentStore open(File dir) throws IOException {
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IOException("Cannot create table directory " + dir);
+        }
+
+        SegmentStore store = new SegmentStore(dir, false);
+        store.config = TableConfig.load(dir);
+        store.recover();
+        openStores.add(store);
+        return store;
+    }
+
+    public static SegmentStore openReadOnly(File dir) throws IOException {
+        SegmentStore store = new SegmentStore(dir, true);
+        store.config = TableConfig.load(dir);
+        store.recover();
+        for (Segment segment : store.segments.values()) {
+            segment.mapped = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, segment.size.get());
+        }
+        return store;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+
+    public static boolean isSegmentFile(String fileName) {
+        return fileName.startsWith(SEGMENT_PREFIX) && fileName.endsWith(SEGMENT_SUFFIX);
+    }
+
+    public File directory() {
+        return dir;
+    }
+
+    public int size() {
+        return rowCount.get();
+    }
+
+    /* The bytes taken up by the latest version of each live row, i.e. what the table would occupy right after compaction */
+    public long liveBytes() {
+        long bytes = 0;
+        for (Segment segment : segments.values()) {
+            bytes += segment.liveBytes.get();
+        }
+        return bytes;
+    }
+
+    public boolean contains(String rowKey) {
+        return locate(rowKey) != null;
+    }
+
+    /* The live row keys from start (inclusive) to end (exclusive, or null for no end), as a live view */
+    public NavigableSet<String> keys(String start, String end) {
+        return end != null ? index.keySet().subSet(start, true, end, false) : index.keySet().tailSet(start, true);
+    }
+
+    BloomFilter bloomFilter() {
+        return bloomFilter;
+    }
+
+    /* Lookups of absent rows that the Bloom filter answered by itself */
+    public long definitelyAbsentLookups() {
+        return definitelyAbsentLookups.get();
+    }
+
+    /* Lookups of absent rows that the Bloom filter let through to the index */
+    public long falsePositiveLookups() {
+        return falsePositiveLookups.get();
+    }
+
+    public double falsePositiveRate() {
+        long falsePositives = falsePositiveLookups.get();
+        long negatives = falsePositives + definitelyAbsentLookups.get();
+        return negatives > 0 ? (double) falsePositives / negatives : 0;
+    }
+
+    public Row get(String rowKey) throws IOException {
+        byte[] value = getRowBytes(rowKey);
+        return value != null ? decodeRow(value) : null;
+    }
+
+    /* Returns the row as it was stored: Row.toBinary(), or Row.toByteArray() for records written by older versions */
+    public byte[] getRowBytes(String rowKey) throws IOException {
+        Location location = locate(rowKey);
+        while (location != null) {
+            try {
+                return readValue(location);
+            } catch (ClosedChannelException e) {
+                // the segment was compacted away underneath us; retry if the index now points at the new copy
+                if (closed || index.get(rowKey) == location) {
+                    throw e;
+                }
+            }
+            location = index.get(rowKey);
+        }
+        return null;
+    }
+
+    public byte[] getColumn(String rowKey, String column) throws IOException {
+        Location location = locate(rowKey);
+        if (location == null) {
+            return null;
+        }
+
+        Segment segment = segments.get(location.segmentId);
+        if (segment == null || segment.mapped == null) {
+            Row row = get(rowKey);
+            return row != null ? row.getBytes(column) : null;
+        }
+
+        ByteBuffer value = segment.mapped.slice((int) location.valuePosition(), location.valueLength);
+        try {
+            return Row.readColumn(value, column);
+        } catch (Exception e) {
+            throw new IOException("Corrupt row record for key '" + rowKey + "'", e);
+        }
+    }
+
+    /* Open channels stay valid across a directory rename, so moving a table does not touch the index */
+    public void moveTo(File newDir) throws IOException {
+        synchronized (writeLock) {
+            Files.move(dir.toPath(), newDir.toPath());
+            dir = newDir;
+            for (Segment segment : segments.values()) {
+                segment.file = new File(newDir, segment.file.getName());
+            }
+        }
+    }
+
+    public void put(Row row) throws IOException {
+        append(row.key(), config.encode(row));
+    }
+
+    /*
+     * Makes target a point-in-time copy of the table (see above); it is written under a temporary name and renamed
+     * once complete, so a crash never leaves a partial snapshot behind under the final name.
+     */
+    public void snapshot(File target) throws IOException {
+        if (readOnly) {
+            throw new IOException("Table " + dir.getName() + " is open read-only");
+        }
+        File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+        if (!temp.mkdirs()) {
+            throw new IOException("Cannot create " + temp);
+        }
+        synchronized (writeLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (activeSegment.size.get() > 0) {
+                rollSegment();
+            }
+            for (Segment segment : segments.values()) {
+                if (segment != activeSegment) {
+                    Files.createLink(new File(temp, segment.file.getName()).toPath(), segment.file.toPath());
+                }
+            }
+            config.save(temp);
+        }
+        Files.move(temp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    TableConfig config() {
+        return config;
+    }
+
+    /* Merges the given settings into the table's configuration; they apply to every row written from now on */
+    void configure(Map<String, String> changes) throws IOException {
+        synchronized (writeLock) {
+            TableConfig changed = config.with(changes);
+            changed.save(dir);
+            config = changed;
+        }
+    }
+
+    public boolean delete(String rowKey) throws IOException {
+        if (locate(rowKey) == null) {
+            return false;
+        }
+        append(rowKey, null);
+        return true;
+    }
+
+    public Iterator<Row> scan(String startRow, String endRowExclusive) {
+        NavigableMap<String, Location> range = index;
+        if (startRow != null && endRowExclusive != null) {
+            range = startRow.compareTo(endRowExclusive) < 0
+                    ? index.subMap(startRow, true, endRowExclusive, false)
+                    : Collections.emptyNavigableMap();
+        } else if (startRow != null) {
+            range = index.tailMap(startRow, true);
+        } else if (endRowExclusive != null) {
+            range = index.headMap(endRowExclusive, false);
+        }
+
+        Iterator<String> keys = range.keySet().iterator();
+        return new Iterator<Row>() {
+            Row nextRow = advance();
+
+            Row advance() {
+                while (keys.hasNext()) {
+                    try {
+                        Row row = get(keys.next());
+                        if (row != null) {
+                            return row;
+                        }
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return nextRow != null;
+            }
+
+            public Row next() {
+                if (nextRow == null) {
+                    throw new NoSuchElementException();
+                }
+                Row row = nextRow;
+                nextRow = advance();
+                return row;
+            }
+        };
+    }
+
+    public void sync() throws IOException {
+        if (readOnly) {
+            return;
+        }
+        synchronized (writeLock) {
+            activeSegment.channel.force(false);
+        }
+    }
+
+    public void close() throws IOException {
+        openStores.remove(this);
+        synchronized (writeLock) {
+            closed = true;
+            for (Segment segment : segments.values()) {
+                segment.channel.close();
+            }
+        }
+    }
+
+    private void append(String rowKey, byte[] value) throws IOException {
+        if (readOnly) {
+            throw new IOException("Table " + dir.getName() + " is open read-only");
+        }
+        ByteBuffer record = encodeRecord(rowKey.getBytes(StandardCharsets.UTF_8), value);
+        synchronized (writeLock) {
+            if (closed) {
+                throw new ClosedChannelException();
+            }
+            if (activeSegment.size.get() >= MAX_SEGMENT_SIZE) {
+                rollSegment();
+            }
+            // a new key goes into the filter before the index, so a reader that finds it in the index also passes the filter
+            if (value != null && !index.containsKey(rowKey)) {
+                bloomFilter.add(rowKey);
+            }
+            Location location = writeRecord(activeSegment, record, value != null ? value.length : TOMBSTONE);
+            Location previous = value != null ? index.put(rowKey, location) : index.remove(rowKey);
+            if (previous != null) {
+                segments.get(previous.segmentId).liveBytes.addAndGet(-previous.length);
+            }
+            if (value == null) {
+                // a tombstone is only needed until the older records it shadows are compacted away
+                activeSegment.liveBytes.addAndGet(-location.length);
+                if (previous != null) {
+                    rowCount.decrementAndGet();
+                }
+            } else if (previous == null) {
+                rowCount.incrementAndGet();
+            }
+            if (bloomFilter.isFull()) {
+                rebuildBloomFilter();
+            }
+        }
+    }
+
+    private Location locate(String rowKey) {
+        if (!bloomFilter.mightContain(rowKey)) {
+            definitelyAbsentLookups.incrementAndGet();
+            return null;
+        }
+        Location location = index.get(rowKey);
+        if (location == null) {
+            falsePositiveLookups.incrementAndGet();
+        }
+        return location;
+    }
+
+    /* Sized for twice the live keys, so that it lasts until the table has doubled; callers hold writeLock */
+    private void rebuildBloomFilter() {
+        BloomFilter filter = new BloomFilter(Math.max(MIN_BLOOM_FILTER_CAPACITY, 2 * index.size()),
+                BLOOM_FILTER_FALSE_POSITIVE_RATE);
+        for (String rowKey : index.keySet()) {
+            filter.add(rowKey);
+        }
+        bloomFilter = filter;
+    }
+
+    private Location writeRecord(Segment segment, ByteBuffer record, int valueLength) throws IOException {
+        long offset = segment.size.get();
+        int length = record.remaining();
+        long position = offset;
+        while (record.hasRemaining()) {
+            position += segment.channel.write(record, position);
+        }
+        segment.size.addAndGet(length);
+        segment.liveBytes.addAndGet(length);
+        return new Location(segment.id, offset, length, Math.max(valueLength, 0));
+    }
+
+    private byte[] readValue(Location location) throws IOException {
+        Segment segment = segments.get(location.segmentId);
+        if (segment == null) {
+            throw new ClosedChannelException();
+        }
+        if (segment.mapped != null) {
+            byte[] value = new byte[location.valueLength];
+            segment.mapped.get((int) location.valuePosition(), value);
+            return value;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(location.valueLength);
+        long position = location.valuePosition();
+        while (buffer.hasRemaining()) {
+            int n = segment.channel.read(buffer, position);
+            if (n < 0) {
+                throw new EOFException("Truncated record in " + segment.file);
+            }
+            position += n;
+        }
+        return buffer.array();
+    }
+
+    private static Row decodeRow(byte[] value) throws IOException {
+        try {
+            return Row.fromBytes(value);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("Corrupt row record", e);
+        }
+    }
+
+    private static ByteBuffer encodeRecord(byte[] key, byte[] value) {
+        int valueLength = value != null ? value.length : TOMBSTONE;
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + key.length + Math.max(valueLength, 0));
+        record.putInt(0);
+        record.putInt(key.length);
+        record.putInt(valueLength);
+        record.put(key);
+        if (value != null) {
+            record.put(value);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, record.capacity() - 4);
+        record.putInt(0, (int) crc.getValue());
+        record.flip();
+        return record;
+    }
+
+    private void rollSegment() throws IOException {
+        if (activeSegment != null) {
+            activeSegment.channel.force(false);
+        }
+        int nextId = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+        activeSegment = openSegment(nextId);
+        segments.put(nextId, activeSegment);
+    }
+
+    private Segment openSegment(int id) throws IOException {
+        File file = new File(dir, String.format("%s%06d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        FileChannel channel = readOnly
+                ? FileChannel.open(file.toPath(), StandardOpenOption.READ)
+                : FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        return new Segment(id, file, channel);
+    }
+
+    private void recover() throws IOException {
+        File[] files = dir.listFiles((d, name) -> isSegmentFile(name));
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                int id = Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                segments.put(id, openSegment(id));
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            replaySegment(segment);
+        }
+        rowCount.set(index.size());
+        rebuildBloomFilter();
+
+        if (segments.isEmpty() && !readOnly) {
+            rollSegment();
+        } else if (!segments.isEmpty()) {
+            activeSegment = segments.lastEntry().getValue();
+        }
+    }
+
+    private void replaySegment(Segment segment) throws IOException {
+        long validLength = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 20))) {
+            while (true) {
+                byte[] record = readRecord(in);
+                if (record == null) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                int keyLength = buffer.getInt(4);
+                int valueLength = buffer.getInt(8);
+                String rowKey = new String(record, HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+
+                Location location = new Location(segment.id, validLength, record.length, Math.max(valueLength, 0));
+                Location previous;
+                if (valueLength == TOMBSTONE) {
+                    previous = index.remove(rowKey);
+                } else {
+                    previous = index.put(rowKey, location);
+                    segment.liveBytes.addAndGet(record.length);
+                }
+                if (previous != null) {
+                    segments.get(previous.segmentId).liveBytes.addAndGet(-previous.length);
+                }
+                validLength += record.length;
+            }
+        }
+
+        if (validLength < segment.file.length() && readOnly) {
+            logger.warn("Ignoring " + (segment.file.length() - validLength) + " bytes of incomplete or corrupt records in " + segment.file);
+        } else if (validLength < segment.file.length()) {
+            logger.warn("Truncating " + (segment.file.length() - validLength) + " bytes of incomplete or corrupt records from " + segment.file);
+            segment.channel.truncate(validLength);
+        }
+        segment.size.set(validLength);
+    }
+
+    /* Returns the complete record, or null at the end of the segment or at the first torn/corrupt record */
+    private static byte[] readRecord(DataInputStream in) throws IOException {
+        byte[] header = new byte[HEADER_SIZE];
+        if (!readFully(in, header)) {
+            return null;
+        }
+        ByteBuffer headerBuffer = ByteBuffer.wrap(header);
+        int crc = headerBuffer.getInt();
+        int keyLength = headerBuffer.getInt();
+        int valueLength = headerBuffer.getInt();
+        if (keyLength < 0 || valueLength < TOMBSTONE || (long) keyLength + Math.max(valueLength, 0) > Integer.MAX_VALUE - HEADER_SIZE) {
+            return null;
+        }
+
+        byte[] record = new byte[HEADER_SIZE + keyLength + Math.max(valueLength, 0)];
+        System.arraycopy(header, 0, record, 0, HEADER_SIZE);
+        if (!readFully(in, record, HEADER_SIZE)) {
+            return null;
+        }
+
+        CRC32 checksum = new CRC32();
+        checksum.update(record, 4, record.length - 4);
+        return (int) checksum.getValue() == crc ? record : null;
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer) throws IOException {
+        return readFully(in, buffer, 0);
+    }
+
+    private static boolean readFully(InputStream in, byte[] buffer, int offset) throws IOException {
+        while (offset < buffer.length) {
+            int n = in.read(buffer, offset, buffer.length - offset);
+            if (n < 0) {
+                return false;
+            }
+            offset += n;
+        }
+        return true;
+    }
+
+    private static void compactAll() {
+        for (SegmentStore store : openStores) {
+            try {
+                store.compact();
+            } catch (Exception e) {
+                logger.error("Compaction of " + store.dir + " failed", e);
+            }
+        }
+    }
+
+    void compact() throws IOException {
+        for (Segment segment : segments.values()) {
+            if (closed || segment == activeSegment) {
+                continue;
+            }
+            long size = segment.size.get();
+            if (size > 0 && segment.liveBytes.get() > size * (1 - COMPACTION_GARBAGE_RATIO)) {
+                continue;
+            }
+            compactSegment(segment);
+        }
+    }
+
+    private void compactSegment(Segment segment) throws IOException {
+        boolean hasOlderSegments = segments.firstKey() < segment.id;
+        long offset = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file), 1 << 20))) {
+            while (true) {
+                byte[] record = readRecord(in);
+                if (record == null) {
+                    break;
+                }
+                ByteBuffer buffer = ByteBuffer.wrap(record);
+                int keyLength = buffer.getInt(4);
+                int valueLength = buffer.getInt(8);
+                String rowKey = new String(record, HEADER_SIZE, keyLength, StandardCharsets.UTF_8);
+                long recordOffset = offset;
+                offset += record.length;
+
+                synchronized (writeLock) {
+                    if (closed) {
+                        return;
+                    }
+                    if (activeSegment.size.get() >= MAX_SEGMENT_SIZE) {
+                        rollSegment();
+                    }
+                    if (valueLength == TOMBSTONE) {
+                        // older segments may still hold the row this tombstone deletes
+                        if (hasOlderSegments && !index.containsKey(rowKey)) {
+                            Location copy = writeRecord(activeSegment, ByteBuffer.wrap(record), TOMBSTONE);
+                            activeSegment.liveBytes.addAndGet(-copy.length);
+                        }
+                        continue;
+                    }
+                    Location current = index.get(rowKey);
+                    if (current == null || current.segmentId != segment.id || current.offset != recordOffset) {
+                        continue;
+                    }
+                    Location copy = writeRecord(activeSegment, ByteBuffer.wrap(record), valueLength);
+                    index.put(rowKey, copy);
+                }
+            }
+        }
+
+        synchronized (writeLock) {
+            if (closed) {
+                return;
+            }
+            // the copies have to be on disk before the only other copy goes away
+            activeSegment.channel.force(false);
+            segments.remove(segment.id);
+            segment.channel.close();
+        }
+        if (!segment.file.delete()) {
+            logger.warn("Unable to delete compacted segment " + segment.file);
+        }
+        logger.info("Compacted " + segment.file);
+    }
+
+    static class Location {
+        final int segmentId;
+        final long offset;
+        final int length;
+        final int valueLength;
+
+        Location(int segmentId, long offset, int length, int valueLength) {
+            this.segmentId = segmentId;
+            this.offset = offset;
+            this.length = length;
+            this.valueLength = valueLength;
+        }
+
+        long valuePosition() {
+            return offset + length - valueLength;
+        }
+    }
+
+    static class Segment {
+        final int id;
+        final FileChannel channel;
+        volatile File file;
+        final AtomicLong size = new AtomicLong();
+        final AtomicLong liveBytes = new AtomicLong();
+        MappedByteBuffer mapped;
+
+        Segment(int id, File file, FileChannel channel) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+        }
+    }
+}
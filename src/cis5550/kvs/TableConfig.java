@@ -0,0 +1,130 @@
+package cis5550.kvs;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.Deflater;
+
+/*
+ * Per-table settings of a persistent table, kept in table.properties next to its segments:
+ *
+ *   compression          - none (the default) or deflate
+ *   compressionThreshold - columns shorter than this many bytes are never compressed (default 1024)
+ *   compressionLevel     - the Deflater level, 1 (fastest) to 9 (smallest); defaults to 1, since values are
+ *                          compressed on the write path and most of the savings come at the lowest levels
+ *   expiresAt            - when the whole table is dropped, in milliseconds since the epoch; 0 (the default) for
+ *                          never. Usually set through PUT /ttl/:T rather than directly
+ *
+ * Settings only apply to rows written after they change; rows already in the table keep the encoding they have.
+ */
+class TableConfig {
+
+    static final String FILE_NAME = "table.properties";
+    static final String COMPRESSION = "compression";
+    static final String COMPRESSION_THRESHOLD = "compressionThreshold";
+    static final String COMPRESSION_LEVEL = "compressionLevel";
+    static final String EXPIRES_AT = "expiresAt";
+
+    private static final int DEFAULT_COMPRESSION_THRESHOLD = 1024;
+    private static final int DEFAULT_COMPRESSION_LEVEL = Deflater.BEST_SPEED;
+
+    private final Properties properties;
+    private final boolean compress;
+    private final int compressionThreshold;
+    private final int compressionLevel;
+    private final long expiresAt;
+
+    private TableConfig(Properties properties) {
+        String compression = properties.getProperty(COMPRESSION, "none");
+        if (!compression.equals("none") && !compression.equals("deflate")) {
+            throw new IllegalArgumentException("Unknown compression '" + compression + "'");
+        }
+        this.properties = properties;
+        this.compress = compression.equals("deflate");
+        this.compressionThreshold = intProperty(properties, COMPRESSION_THRESHOLD, DEFAULT_COMPRESSION_THRESHOLD, 0, Integer.MAX_VALUE);
+        this.compressionLevel = intProperty(properties, COMPRESSION_LEVEL, DEFAULT_COMPRESSION_LEVEL, 1, 9);
+        try {
+            this.expiresAt = Long.parseLong(properties.getProperty(EXPIRES_AT, "0").trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(EXPIRES_AT + " is not a number: " + properties.getProperty(EXPIRES_AT));
+        }
+        if (expiresAt < 0) {
+            throw new IllegalArgumentException(EXPIRES_AT + " must not be negative");
+        }
+    }
+
+    static TableConfig load(File tableDir) throws IOException {
+        Properties properties = new Properties();
+        File file = new File(tableDir, FILE_NAME);
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        try {
+            return new TableConfig(properties);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Invalid " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    /* Returns this configuration with the given settings changed; throws IllegalArgumentException if one is invalid */
+    TableConfig with(Map<String, String> changes) {
+        Properties merged = new Properties();
+        merged.putAll(properties);
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            if (!change.getKey().equals(COMPRESSION) && !change.getKey().equals(COMPRESSION_THRESHOLD)
+                    && !change.getKey().equals(COMPRESSION_LEVEL) && !change.getKey().equals(EXPIRES_AT)) {
+                throw new IllegalArgumentException("Unknown table setting '" + change.getKey() + "'");
+            }
+            merged.setProperty(change.getKey(), change.getValue());
+        }
+        return new TableConfig(merged);
+    }
+
+    /* Written to a temporary file first, so a crash never leaves a table with half a configuration */
+    void save(File tableDir) throws IOException {
+        File temp = File.createTempFile(FILE_NAME, ".tmp", tableDir);
+        try (OutputStream out = new FileOutputStream(temp)) {
+            properties.store(out, null);
+        }
+        Files.move(temp.toPath(), new File(tableDir, FILE_NAME).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /* Encodes a row for storage in a table with this configuration */
+    byte[] encode(Row row) {
+        return compress ? row.toBinary(compressionThreshold, compressionLevel) : row.uncompressed().toBinary();
+    }
+
+    boolean compresses() {
+        return compress;
+    }
+
+    /* 0 if the table does not expire */
+    long expiresAt() {
+        return expiresAt;
+    }
+
+    Properties properties() {
+        return properties;
+    }
+
+    private static int intProperty(Properties properties, String name, int defaultValue, int min, int max) {
+        String value = properties.getProperty(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int parsed = Integer.parseInt(value.trim());
+            if (parsed < min || parsed > max) {
+                throw new IllegalArgumentException(name + " must be between " + min + " and " + max);
+            }
+            return parsed;
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a number: " + value);
+        }
+    }
+}
@@ -1,33 +1,120 @@
 package cis5550.kvs;
 
+import cis5550.tools.HTTP;
+import cis5550.tools.Hasher;
 import cis5550.tools.KeyEncoder;
+import cis5550.tools.Logger;
+import cis5550.tools.Serializer;
 import cis5550.webserver.Request;
 import cis5550.webserver.Response;
+import cis5550.webserver.Route;
 
 import java.io.*;
-import java.nio.file.FileSystems;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.UnaryOperator;
 
 import static cis5550.webserver.Server.*;
 
 public class Worker extends cis5550.generic.Worker {
 
-    public static final ConcurrentMap<String, ConcurrentMap<String, Row>> tables = new ConcurrentHashMap<>();
+    private static final Logger logger = Logger.getLogger(Worker.class);
+    public static final ConcurrentMap<String, MemoryTable> tables = new ConcurrentHashMap<>();
+    private static final ConcurrentMap<String, SegmentStore> persistentTables = new ConcurrentHashMap<>();
+    private static final RowLocks rowLocks = new RowLocks();
+    // write-ahead logs of the in-memory tables; empty unless --durability asks for more than none
+    private static final ConcurrentMap<String, SegmentStore> memoryTableLogs = new ConcurrentHashMap<>();
+    // the secondary indexes of each persistent table, by table and column; see ColumnIndex
+    private static final ConcurrentMap<String, ConcurrentMap<String, ColumnIndex>> columnIndexes = new ConcurrentHashMap<>();
+    // snapshots that have been read from, opened read-only, by their directory
+    private static final ConcurrentMap<File, SegmentStore> openSnapshots = new ConcurrentHashMap<>();
+    // when tables are dropped, in milliseconds since the epoch; see handlePutTableTtl()
+    private static final ConcurrentMap<String, Long> tableDeadlines = new ConcurrentHashMap<>();
+    // the deadlines of expiring rows of persistent tables, by table, and the in-memory tables that have such rows
+    private static final ConcurrentMap<String, ColumnIndex> expiryIndexes = new ConcurrentHashMap<>();
+    private static final Set<String> tablesWithExpiringRows = ConcurrentHashMap.newKeySet();
     private static final byte[] LF = {10};
     private static final int DEFAULT_PAGE_SIZE = 10;
+    private static final String JAR_DIRECTORY = ".jars";
+    private static final String MEMORY_TABLE_LOG_DIRECTORY = ".wal";
+    // dropped tables and logs are moved here and deleted in the background, so a drop never waits for the disk
+    private static final String TRASH_DIRECTORY = ".trash";
+    // point-in-time copies of persistent tables, as .snapshots/<table>/<snapshot ID>/; see SegmentStore.snapshot()
+    private static final String SNAPSHOT_DIRECTORY = ".snapshots";
+    private static final String SNAPSHOT_ID_PATTERN = "[A-Za-z0-9_-]+";
+    private static final String EXPIRY_INDEX_DIRECTORY = "expiry";
+    private static final long EXPIRY_SWEEP_INTERVAL_IN_MS = 10_000;
+    // rows of in-memory tables that do not fit into the memory budget are spilled here; see spillTable()
+    private static final String SPILL_DIRECTORY = ".spill";
+    private static final long SPILL_CHECK_INTERVAL_IN_MS = 200;
+    // once over budget, tables are spilled until the rows left in memory take up no more than this share of it
+    private static final double SPILL_LOW_WATER_MARK = 0.75;
+    private static final ScheduledExecutorService spiller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "table-spiller");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ScheduledExecutorService expirySweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "expiry-sweeper");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService reclaimer = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "trash-reclaimer");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final long DEFAULT_ROW_CACHE_SIZE_IN_MB = 64;
+    private static final int MISDIRECTED = 421;
+    private static final int MIGRATION_BATCH_ROWS = 1000;
     public static int port;
     public static String path;
     public static String coordinatorUrl;
+    public static boolean readOnly;
+    private static RowCache rowCache;
+    private static long memoryBudgetInBytes;
+    private static Durability durability;
+    private static RangeOwnership ranges;
+    private static Replicator replicator;
 
     public static void main(String[] args) throws IOException {
-        if (args.length != 3) {
-            System.out.println("usage: cis5550.kvs.Worker <port> <path> <ip:port>");
-            System.exit(1);
+        if (args.length < 3) {
+            printUsageAndExit();
+        }
+        long rowCacheSizeInMB = DEFAULT_ROW_CACHE_SIZE_IN_MB;
+        // by default, in-memory tables may take up half of the heap before they spill
+        memoryBudgetInBytes = Runtime.getRuntime().maxMemory() / 2;
+        String durabilityMode = "none";
+        for (int i = 3; i < args.length; i++) {
+            if (args[i].equals("--read-only")) {
+                readOnly = true;
+            } else if (args[i].startsWith("--row-cache-mb=")) {
+                rowCacheSizeInMB = Long.parseLong(args[i].substring("--row-cache-mb=".length()));
+            } else if (args[i].startsWith("--memory-budget-mb=")) {
+                memoryBudgetInBytes = Long.parseLong(args[i].substring("--memory-budget-mb=".length())) * 1024 * 1024;
+            } else if (args[i].startsWith("--durability=")) {
+                durabilityMode = args[i].substring("--durability=".length());
+            } else {
+                printUsageAndExit();
+            }
+        }
+        rowCache = new RowCache(rowCacheSizeInMB * 1024 * 1024);
+        try {
+            durability = Durability.parse(durabilityMode);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            printUsageAndExit();
         }
 
         port = Integer.parseInt(args[0]);
@@ -36,418 +123,2355 @@ public class Worker extends cis5550.generic.Worker {
         String workerId = getWorkerId();
         coordinatorUrl = args[2];
 
+        emptyTrash();
+        discardSpills();
+        openPersistentTables();
+        replayMemoryTableLogs();
+        ranges = new RangeOwnership(workerId, path, coordinatorUrl);
+        ranges.startRefreshThread();
+        replicator = new Replicator(ranges);
         startPingThread(port, workerId, coordinatorUrl);
+        if (!readOnly) {
+            expirySweeper.scheduleWithFixedDelay(Worker::sweepExpired,
+                    EXPIRY_SWEEP_INTERVAL_IN_MS, EXPIRY_SWEEP_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+            spiller.scheduleWithFixedDelay(Worker::spillIfOverBudget,
+                    SPILL_CHECK_INTERVAL_IN_MS, SPILL_CHECK_INTERVAL_IN_MS, TimeUnit.MILLISECONDS);
+        }
 
         get("/", Worker::handleGetTable);
         get("/count/:T", Worker::handleGetRowCount);
+        get("/stats", Worker::handleGetStats);
+        get("/stats/:T", Worker::handleGetTableStats);
+        get("/exists/:T/:R", Worker::handleGetExists);
         get("/data/:T", Worker::handleGetTableData);
         get("/data/:T/:R", Worker::handleGetRowData);
         get("/data/:T/:R/:C", Worker::handleGetData);
         get("/view/:T", Worker::handleGetView);
+        get("/jar/:H", Worker::handleGetJar);
+        get("/config/:T", Worker::handleGetConfig);
+
+        post("/scan/:T", Worker::handlePostScan);
+        post("/mget/:T", Worker::handlePostMultiGet);
+        put("/jar/:H", Worker::handlePutJar);
+
+        put("/data/:T", writeRoute(Worker::handlePutTableData));
+        put("/batch/:T", writeRoute(Worker::handlePutBatch));
+        put("/data/:T/:R/:C", writeRoute(Worker::handlePutData));
+        put("/increment/:T/:R/:C", writeRoute(Worker::handlePutIncrement));
+        put("/append/:T/:R/:C", writeRoute(Worker::handlePutAppend));
+        put("/cas/:T/:R/:C", writeRoute(Worker::handlePutCompareAndSet));
+        put("/delete/:T", writeRoute(Worker::handlePutDelete));
+        put("/rename/:T", writeRoute(Worker::handlePutRename));
+        put("/config/:T", writeRoute(Worker::handlePutConfig));
+        put("/ttl/:T", writeRoute(Worker::handlePutTableTtl));
+        put("/expire/:T/:R", writeRoute(Worker::handlePutExpire));
+        put("/snapshot/:T", writeRoute(Worker::handlePutSnapshot));
+        put("/release/:T/:S", Worker::handlePutRelease);
+        put("/index/:T", Worker::handlePutIndex);
+        put("/unindex/:T", Worker::handlePutUnindex);
+        get("/index/:T", Worker::handleGetIndex);
+
+        get("/ranges/load", Worker::handleGetRangeLoad);
+        get("/ranges/median", Worker::handleGetRangeMedian);
+        get("/ranges/rows", Worker::handleGetRangeRows);
+        put("/ranges", Worker::handlePutRanges);
+        post("/ranges/migrate", Worker::handlePostMigrate);
+        post("/ranges/abort", Worker::handlePostAbortMigration);
+        post("/ranges/drop", Worker::handlePostDropRange);
+        post("/ranges/replicate", Worker::handlePostReplicate);
+    }
+
+    private static void printUsageAndExit() {
+        System.out.println("usage: cis5550.kvs.Worker <port> <path> <ip:port> [--read-only] [--row-cache-mb=<size>] "
+                + "[--memory-budget-mb=<size>] [--durability=none|group:<ms>|fsync]");
+        System.exit(1);
+    }
 
-        put("/data/:T", Worker::handlePutTableData);
-        put("/data/:T/:R/:C", Worker::handlePutData);
-        put("/delete/:T", Worker::handlePutDelete);
-        put("/rename/:T", Worker::handlePutRename);
+    /*
+     * A read-only worker serves memory-mapped snapshots of its tables, so anything that would modify them is refused.
+     * Writes run under the range write lock, so a range migration can wait for them to finish.
+     */
+    private static Route writeRoute(Route route) {
+        return (req, res) -> {
+            if (readOnly) {
+                res.status(403, "Forbidden");
+                return "Worker is running in read-only mode";
+            }
+            ranges.writeLock().lock();
+            try {
+                return route.handle(req, res);
+            } finally {
+                replicator.reset();
+                ranges.writeLock().unlock();
+            }
+        };
+    }
+
+    /* The client's range map is out of date; it is expected to fetch the current one and try again */
+    private static String misdirected(Response res) {
+        RangeMap map = ranges.map();
+        res.status(MISDIRECTED, "Misdirected Request");
+        return "Key is not served by this worker (range map version " + (map != null ? map.version() : 0) + ")";
     }
 
     private static String handlePutData(Request req, Response res) {
         String tableName = req.params("T");
         String rowKey = req.params("R");
         String colKey = req.params("C");
+        if (!ranges.acceptsWrite(rowKey)) {
+            return misdirected(res);
+        }
         byte[] data = req.bodyAsBytes();
 
         createTableIfNecessary(tableName);
+        putColumn(tableName, rowKey, colKey, data);
 
-        synchronized (tables) {
-            Row row = getRow(tableName, rowKey);
-            if (row == null) {
-                row = new Row(rowKey);
-            }
-            row.put(colKey, data);
-            putRow(tableName, row);
+        return acknowledge(tableName, res, "OK");
+    }
+
+    /* Adds ?delta= (default 1) to a column that holds a decimal number, or is missing, and returns the new value */
+    private static String handlePutIncrement(Request req, Response res) {
+        String tableName = req.params("T");
+        String rowKey = req.params("R");
+        String colKey = req.params("C");
+        if (!ranges.acceptsWrite(rowKey)) {
+            return misdirected(res);
         }
 
-        return "OK";
+        long delta;
+        try {
+            delta = req.queryParams("delta") != null ? Long.parseLong(req.queryParams("delta")) : 1;
+        } catch (NumberFormatException e) {
+            res.status(400, "Bad Request");
+            return "Invalid delta: " + req.queryParams("delta");
+        }
+
+        createTableIfNecessary(tableName);
+        try {
+            byte[] value = updateColumn(tableName, rowKey, colKey, current -> {
+                long count = current != null ? Long.parseLong(new String(current, StandardCharsets.UTF_8).trim()) : 0;
+                return String.valueOf(count + delta).getBytes(StandardCharsets.UTF_8);
+            });
+            return acknowledge(tableName, res, new String(value, StandardCharsets.UTF_8));
+        } catch (NumberFormatException e) {
+            res.status(400, "Bad Request");
+            return "Column '" + colKey + "' does not hold a number";
+        }
     }
 
-    private static String handlePutTableData(Request req, Response res) throws Exception {
+    /* Appends the body to a column; ?separator= goes between the old and the new bytes unless the column was empty */
+    private static String handlePutAppend(Request req, Response res) {
         String tableName = req.params("T");
-        byte[] data = req.bodyAsBytes();
+        String rowKey = req.params("R");
+        String colKey = req.params("C");
+        if (!ranges.acceptsWrite(rowKey)) {
+            return misdirected(res);
+        }
+        byte[] data = req.bodyAsBytes() != null ? req.bodyAsBytes() : new byte[0];
+        byte[] separator = req.queryParams("separator") != null
+                ? req.queryParams("separator").getBytes(StandardCharsets.UTF_8)
+                : new byte[0];
 
         createTableIfNecessary(tableName);
-
-        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
-        while (true) {
-            Row row = Row.readFrom(inputStream);
-            if (row == null) {
-                return "OK";
+        updateColumn(tableName, rowKey, colKey, current -> {
+            if (current == null || current.length == 0) {
+                return data;
             }
-            putRow(tableName, row);
-        }
+            byte[] appended = Arrays.copyOf(current, current.length + separator.length + data.length);
+            System.arraycopy(separator, 0, appended, current.length, separator.length);
+            System.arraycopy(data, 0, appended, current.length + separator.length, data.length);
+            return appended;
+        });
+
+        return acknowledge(tableName, res, "OK");
     }
 
-    private static String handleGetData(Request req, Response res) {
+    /*
+     * The body is a row with a 'value' column and, unless the column is expected not to exist yet, an 'expected'
+     * column; the value is only written if the column currently holds exactly the expected bytes.
+     */
+    private static String handlePutCompareAndSet(Request req, Response res) {
         String tableName = req.params("T");
         String rowKey = req.params("R");
         String colKey = req.params("C");
+        if (!ranges.acceptsWrite(rowKey)) {
+            return misdirected(res);
+        }
 
-        Row row = getRow(tableName, rowKey);
-        if (!(row != null && row.columns().contains(colKey))) {
-            String errMsg = "Not Found: Queried resource does not exist";
-            res.status(404, errMsg);
-            res.type("text/plain");
-            return errMsg;
+        Row body;
+        try {
+            body = Row.fromBytes(req.bodyAsBytes());
+        } catch (Exception e) {
+            body = null;
+        }
+        if (body == null || body.getBytes("value") == null) {
+            res.status(400, "Bad Request");
+            return "Malformed compare-and-set request";
         }
+        byte[] expected = body.getBytes("expected");
+        byte[] value = body.getBytes("value");
 
-        res.type("application/octet-stream");
-        res.bodyAsBytes(row.getBytes(colKey));
+        createTableIfNecessary(tableName);
+        boolean[] swapped = new boolean[1];
+        updateColumn(tableName, rowKey, colKey, current -> {
+            swapped[0] = Arrays.equals(current, expected);
+            return swapped[0] ? value : null;
+        });
 
-        return null;
+        if (!swapped[0]) {
+            res.status(409, "Conflict");
+            return "Column '" + colKey + "' does not hold the expected value";
+        }
+        return acknowledge(tableName, res, "OK");
     }
 
-    private static String handleGetTable(Request req, Response res) {
-        res.type("text/html");
-        StringBuilder doc = new StringBuilder("<html><body>");
-
-        doc.append("<h1>Table List</h1>");
-        doc.append("<table border=\"1\">");
-        doc.append("<tr><th>Table Name</th><th>Number of Keys</th></tr>");
-
-        TreeSet<String> orderedTableNames = new TreeSet<>(tables.keySet());
-        File[] files = new File(path).listFiles();
-        int fileCount = files != null ? files.length : 0;
+    /* With ?ttl=, the rows expire that many seconds from now; see handlePutExpire() */
+    private static String handlePutTableData(Request req, Response res) throws Exception {
+        String tableName = req.params("T");
+        byte[] data = req.bodyAsBytes();
+        byte[] deadline = null;
+        if (req.queryParams("ttl") != null) {
+            deadline = deadlineAfter(req.queryParams("ttl"));
+            if (deadline == null) {
+                res.status(400, "Bad Request");
+                return "ttl must be a positive number of seconds";
+            }
+        }
 
-        for (int i = 0; i < fileCount; ++i) {
-            File file = files[i];
-            String fileName = file.getName();
-            if (file.isDirectory() && isPersistentTable(fileName)) {
-                orderedTableNames.add(fileName);
+        // all rows are checked before any is written, since the client sends the whole body again after a 421
+        List<Row> rows = new ArrayList<>();
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(data);
+        for (Row row = Row.readFrom(inputStream); row != null; row = Row.readFrom(inputStream)) {
+            if (!ranges.acceptsWrite(row.key())) {
+                return misdirected(res);
             }
+            rows.add(row);
         }
 
-        for (String tableName : orderedTableNames) {
-            int keyCount = getTableSize(tableName);
-            doc.append("<tr>");
-            doc.append("<td><a href=\"/view/").append(tableName).append("\">").append(tableName).append("</a></td>");
-            doc.append("<td>").append(keyCount).append("</td>");
-            doc.append("</tr>");
+        createTableIfNecessary(tableName);
+        for (Row row : rows) {
+            if (deadline != null) {
+                row.put(KVSClient.EXPIRES_COLUMN, deadline);
+            }
+            putRow(tableName, row);
         }
+        return acknowledge(tableName, res, "OK");
+    }
 
-        doc.append("</table>");
-        doc.append("</body></html>");
+    /*
+     * Has the row expire ?seconds= from now. The deadline is kept in the row itself, in KVSClient.EXPIRES_COLUMN, so
+     * it moves and gets replicated along with the row. Column writes keep it, but writing the whole row again without
+     * ?ttl= replaces it along with everything else. Expired rows are deleted by sweepExpired(), so they can still be
+     * read for a little while after their deadline.
+     */
+    private static String handlePutExpire(Request req, Response res) {
+        String tableName = req.params("T");
+        String rowKey = req.params("R");
+        if (!ranges.acceptsWrite(rowKey)) {
+            return misdirected(res);
+        }
+        byte[] deadline = deadlineAfter(req.queryParams("seconds"));
+        if (deadline == null) {
+            res.status(400, "Bad Request");
+            return "seconds must be a positive number";
+        }
+        if (!tableExists(tableName) || !rowExists(tableName, rowKey)) {
+            res.status(404, "Not found");
+            return "Row '" + rowKey + "' not found in table '" + tableName + "'";
+        }
 
-        return doc.toString();
+        putColumn(tableName, rowKey, KVSClient.EXPIRES_COLUMN, deadline);
+        return acknowledge(tableName, res, "OK");
     }
 
-    private static String handleGetView(Request req, Response res) {
+    /*
+     * Drops the table ?seconds= from now, unless its TTL is set again before then; seconds=0 removes the TTL. A
+     * persistent table keeps its TTL in its configuration, so that it survives restarts and goes along when its
+     * ranges move. An in-memory table's TTL is only kept in memory, and can be set before the table exists on this
+     * worker. Renaming a table removes its TTL, so a Flame job's output outlives the job once it is saved.
+     */
+    private static String handlePutTableTtl(Request req, Response res) {
         String tableName = req.params("T");
-        String startRowKey = req.queryParams("fromRow");
+        long seconds;
+        try {
+            seconds = Long.parseLong(req.queryParams("seconds"));
+        } catch (NumberFormatException e) {
+            seconds = -1;
+        }
+        if (seconds < 0) {
+            res.status(400, "Bad Request");
+            return "seconds must be a number that is not negative";
+        }
 
-        ConcurrentMap<String, Row> rows = new ConcurrentHashMap<>();
-        if (isPersistentTable(tableName)) {
-            File[] files = new File(path + "/" + tableName).listFiles();
-            if (files != null) {
-                for (File file : files) {
-                    String rowKey = file.getName();
-                    rows.put(rowKey, getRow(tableName, rowKey));
-                }
+        long deadline = seconds > 0 ? System.currentTimeMillis() + seconds * 1000 : 0;
+        SegmentStore store = isPersistentTable(tableName) ? persistentTables.get(tableName) : null;
+        if (store != null) {
+            try {
+                store.configure(Map.of(TableConfig.EXPIRES_AT, String.valueOf(deadline)));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to set the TTL of table '" + tableName + "'", e);
             }
-        } else {
-            rows = tables.get(tableName);
         }
+        setTableDeadline(tableName, deadline);
+        return "OK";
+    }
 
-        List<String> sortedRowKeys = new ArrayList<>(rows.keySet());
-        sortedRowKeys.sort(Comparator.naturalOrder());
-
-        List<String> paginatedSortedRowKeys = new ArrayList<>();
-        String nextRowKey = null;
-        if (startRowKey != null) {
-            for (String rowKey : sortedRowKeys) {
-                if (rowKey.compareTo(startRowKey) < 0) {
-                    continue;
-                }
-                if (paginatedSortedRowKeys.size() == DEFAULT_PAGE_SIZE) {
-                    nextRowKey = rowKey;
-                    break;
-                }
-                paginatedSortedRowKeys.add(rowKey);
-            }
-        } else if (sortedRowKeys.size() > DEFAULT_PAGE_SIZE) {
-            paginatedSortedRowKeys = sortedRowKeys.subList(0, DEFAULT_PAGE_SIZE);
-            nextRowKey = sortedRowKeys.get(DEFAULT_PAGE_SIZE);
+    private static void setTableDeadline(String tableName, long deadline) {
+        if (deadline > 0) {
+            tableDeadlines.put(tableName, deadline);
         } else {
-            paginatedSortedRowKeys = sortedRowKeys;
+            tableDeadlines.remove(tableName);
         }
+    }
 
-        TreeSet<String> sortedColKeys = new TreeSet<>();
-        for (String rowKey : paginatedSortedRowKeys) {
-            Row row = getRow(tableName, rowKey);
-            Set<String> colKeys = row != null ? row.columns() : null;
-            sortedColKeys.addAll(colKeys);
+    /* The deadline the given number of seconds from now, or null if that is not a positive number */
+    private static byte[] deadlineAfter(String seconds) {
+        try {
+            long parsed = Long.parseLong(seconds);
+            return parsed > 0 ? formatDeadline(System.currentTimeMillis() + parsed * 1000).getBytes(StandardCharsets.UTF_8) : null;
+        } catch (NumberFormatException e) {
+            return null;
         }
+    }
 
-        StringBuilder doc = new StringBuilder();
-
-        doc.append("<html><body>");
-        doc.append("<h1>").append(tableName).append("</h1>");
+    /* Deadlines are zero-padded, so that they sort in the expiry index the way the numbers do */
+    private static String formatDeadline(long deadline) {
+        return String.format("%013d", deadline);
+    }
 
-        doc.append("<table border=\"1\">");
+    /*
+     * Applies a batch encoded by KVSClient.putRows() and only answers once the whole batch is on disk. A batch with a
+     * single row this worker does not serve is refused as a whole, except for the batches of a range migration
+     * (?migration=true), whose rows arrive before the range map gives them to this worker, and the writes that an
+     * owner forwards to its followers (?replica=true). With ?resync=true, replica rows that the worker already has
+     * are skipped: they were forwarded after the copy of the range that the batch belongs to was taken. With
+     * ?merge=true, as sent by KVSClient's write buffer, the columns of each row are merged into the row as it is
+     * stored (see mergeRow()), so the columns that the row already has and the batch does not are kept.
+     */
+    private static String handlePutBatch(Request req, Response res) {
+        String tableName = req.params("T");
 
-        doc.append("<tr>");
-        doc.append("<th>Row</th>");
-        for (String colKey : sortedColKeys) {
-            doc.append("<th>").append(colKey).append("</th>");
+        List<Row> rows;
+        try {
+            rows = KVSClient.decodeBatch(req.bodyAsBytes());
+        } catch (Exception e) {
+            res.status(400, "Bad Request");
+            return "Malformed batch: " + e.getMessage();
         }
-        doc.append("</tr>");
-
-        for (String rowKey : paginatedSortedRowKeys) {
-            Row row = getRow(tableName, rowKey);
-            doc.append("<tr>");
-            doc.append("<td>").append(rowKey).append("</td>");
-            for (String colKeyHeader : sortedColKeys) {
-                String data = row.get(colKeyHeader);
-                doc.append("<td>").append(data != null ? data : "").append("</td>");
+        boolean replica = "true".equals(req.queryParams("replica"));
+        boolean copied = replica || "true".equals(req.queryParams("migration"));
+        if (!copied) {
+            for (Row row : rows) {
+                if (!ranges.acceptsWrite(row.key())) {
+                    return misdirected(res);
+                }
             }
-            doc.append("</tr>");
         }
 
-        doc.append("</table>");
+        createTableIfNecessary(tableName);
+        boolean resync = replica && "true".equals(req.queryParams("resync"));
+        boolean merge = !copied && "true".equals(req.queryParams("merge"));
+        for (Row row : rows) {
+            if (merge) {
+                mergeRow(tableName, row);
+                continue;
+            }
+            if (!resync) {
+                putRow(tableName, row, !copied);
+                continue;
+            }
+            // under the row's lock, so that a write forwarded at the same time cannot be overwritten by the copy
+            synchronized (rowLocks.lockFor(tableName, row.key())) {
+                if (!rowExists(tableName, row.key())) {
+                    putRow(tableName, row, false);
+                }
+            }
+        }
 
-        if (nextRowKey != null) {
-            doc.append("<a href=\"/view/").append(tableName).append("?fromRow=")
-                    .append(nextRowKey).append("\">Next</a>");
+        // batches of persistent rows are synced before they are acknowledged even if --durability does not ask for it;
+        // forwarded writes are as durable as the single writes they mostly are
+        if (isPersistentTable(tableName) && durability.mode() == Durability.Mode.NONE && (!replica || resync)) {
+            try {
+                openPersistentTable(tableName).sync();
+            } catch (IOException e) {
+                logger.error("Failed to sync batch for table '" + tableName + "'", e);
+                res.status(500, "Internal Server Error");
+                return "Failed to sync batch";
+            }
         }
 
-        doc.append("</body></html>");
+        return acknowledge(tableName, res, "OK");
+    }
 
-        res.type("text/html");
-        return doc.toString();
+    /*
+     * Answers a write once it is as durable as --durability promises and a quorum of the followers of its range has
+     * it, or with a 500 if either fails.
+     */
+    private static String acknowledge(String tableName, Response res, String body) {
+        SegmentStore store = isPersistentTable(tableName) ? persistentTables.get(tableName) : memoryTableLogs.get(tableName);
+        if (store == null) {
+            return body;
+        }
+        try {
+            durability.await(store);
+        } catch (IOException e) {
+            logger.error("Failed to make a write to table '" + tableName + "' durable", e);
+            res.status(500, "Internal Server Error");
+            return "Failed to make write durable";
+        }
+        if (!replicator.awaitQuorum()) {
+            logger.warn("A write to table '" + tableName + "' did not reach a quorum of followers in time");
+            res.status(500, "Internal Server Error");
+            return "Failed to replicate write";
+        }
+        return body;
     }
 
-    private static String handleGetRowData(Request req, Response res) {
+    private static String handleGetData(Request req, Response res) {
         String tableName = req.params("T");
         String rowKey = req.params("R");
+        String colKey = req.params("C");
+        if (!ranges.serves(rowKey)) {
+            return misdirected(res);
+        }
 
-        Row row = getRow(tableName, rowKey);
-        if (row == null) {
+        byte[] data;
+        try {
+            SegmentStore snapshot = requestedSnapshot(req, tableName);
+            data = snapshot != null ? snapshot.getColumn(rowKey, colKey) : getColumn(tableName, rowKey, colKey);
+        } catch (NoSuchElementException e) {
+            return snapshotNotFound(res);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read row from disk", e);
+        }
+        if (data == null) {
             String errMsg = "Not Found: Queried resource does not exist";
             res.status(404, errMsg);
             res.type("text/plain");
             return errMsg;
         }
 
-        res.bodyAsBytes(row.toByteArray());
+        res.type("application/octet-stream");
+        res.bodyAsBytes(data);
 
         return null;
     }
 
-    private static String handleGetTableData(Request req, Response res) {
+    /* Answers whether a row exists without reading it, so that a probe for a large row costs as little as one for a missing row */
+    private static String handleGetExists(Request req, Response res) {
         String tableName = req.params("T");
-        String startRow = req.queryParams("startRow");
-        String endRow = req.queryParams("endRowExclusive");
-
-        res.type("text/plain");
+        String rowKey = req.params("R");
+        if (!ranges.serves(rowKey)) {
+            return misdirected(res);
+        }
 
+        boolean exists;
         try {
-            if (isPersistentTable(tableName)) {
-                File[] files = new File(path + "/" + tableName).listFiles();
-                for (File file : files) {
-                    String rowKey = file.getName();
-                    boolean isStartRowKeyInRange = startRow == null
-                            || rowKey.compareTo(startRow) >= 0;
-                    boolean isEndRowKeyInRange = endRow == null || rowKey.compareTo(endRow) < 0;
-                    if (!isStartRowKeyInRange || !isEndRowKeyInRange) {
-                        continue;
-                    }
-                    Row row = getRow(tableName, rowKey);
-                    byte[] entry = row.toByteArray();
-                    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                    outputStream.write(entry);
-                    outputStream.write(LF);
-                    byte[] data = outputStream.toByteArray();
-                    res.write(data);
-                }
-                res.write(LF);
-                return null;
-            }
-
-            Map<String, Row> table = tables.get(tableName);
-            for (String rowKey : table.keySet()) {
-                boolean isStartRowKeyInRange = startRow == null || rowKey.compareTo(startRow) >= 0;
-                boolean isEndRowKeyInRange = endRow == null || rowKey.compareTo(endRow) < 0;
-                if (!isStartRowKeyInRange || !isEndRowKeyInRange) {
-                    continue;
-                }
-                Row row = getRow(tableName, rowKey);
-                byte[] entry = row.toByteArray();
-                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                outputStream.write(entry);
-                outputStream.write(LF);
-                byte[] data = outputStream.toByteArray();
-                res.write(data);
-            }
-            res.write(LF);
-        } catch (Exception e) {
-            String errMsg = "Not Found: Queried resource does not exist";
-            res.status(404, errMsg);
-            res.type("text/plain");
-            return errMsg;
+            SegmentStore snapshot = requestedSnapshot(req, tableName);
+            exists = snapshot != null ? snapshot.contains(rowKey) : rowExists(tableName, rowKey);
+        } catch (NoSuchElementException e) {
+            return snapshotNotFound(res);
         }
-
-        return null;
-    }
-
-    private static String handleGetRowCount(Request req, Response res) {
-        String tableName = req.params("T");
-
-        int tableSize = getTableSize(tableName);
-        if (tableSize == 0) {
-            res.status(404, "Not found");
-            return "Not found";
+        if (!exists) {
+            res.status(404, "Not Found");
+            return "Not Found";
         }
-        return "" + tableSize;
+        return "OK";
     }
 
-    private static String handlePutRename(Request req, Response res) throws IOException {
-        String oldTableName = req.params("T");
-        String newTableName = new String(req.bodyAsBytes());
-
-        if (isPersistentTable(oldTableName) && !isPersistentTable(newTableName)) {
-            res.status(400, "Cannot convert a table from persistent to in-memory");
-            return "Cannot convert a table from persistent to in-memory";
+    /*
+     * The row cache, then one line per table with its size, and for persistent tables the effectiveness of their Bloom
+     * filter, for in-memory tables how much of them has been spilled to disk; last, the memory that the in-memory
+     * tables take up, against the budget
+     */
+    private static String handleGetStats(Request req, Response res) {
+        StringBuilder stats = new StringBuilder();
+        long lookups = rowCache.hits() + rowCache.misses();
+        stats.append("rowCache")
+                .append(" rows=").append(rowCache.size())
+                .append(" bytes=").append(rowCache.sizeInBytes())
+                .append(" capacity=").append(rowCache.capacityInBytes())
+                .append(" hits=").append(rowCache.hits())
+                .append(" misses=").append(rowCache.misses())
+                .append(" evictions=").append(rowCache.evictions())
+                .append(String.format(" hitRate=%.4f", lookups > 0 ? (double) rowCache.hits() / lookups : 0))
+                .append("\n");
+        for (String tableName : new TreeSet<>(persistentTables.keySet())) {
+            SegmentStore store = persistentTables.get(tableName);
+            BloomFilter bloomFilter = store.bloomFilter();
+            stats.append(tableName)
+                    .append(" rows=").append(store.size())
+                    .append(" bytes=").append(store.liveBytes())
+                    .append(" bloom.bits=").append(bloomFilter.numBits())
+                    .append(" bloom.hashes=").append(bloomFilter.numHashes())
+                    .append(" bloom.definitelyAbsent=").append(store.definitelyAbsentLookups())
+                    .append(" bloom.falsePositives=").append(store.falsePositiveLookups())
+                    .append(String.format(" bloom.falsePositiveRate=%.4f", store.falsePositiveRate()))
+                    .append(String.format(" bloom.expectedFalsePositiveRate=%.4f", bloomFilter.expectedFalsePositiveRate()))
+                    .append("\n");
         }
-
-        if (isPersistentTable(oldTableName)) {
-            Files.move(FileSystems.getDefault().getPath(path, oldTableName), FileSystems.getDefault().getPath(path, newTableName));
+        long inMemory = 0;
+        int spills = 0;
+        long spilledBytes = 0;
+        for (String tableName : new TreeSet<>(tables.keySet())) {
+            MemoryTable table = tables.get(tableName);
+            if (table != null) {
+                stats.append(tableName)
+                        .append(" rows=").append(table.rowCount())
+                        .append(" bytes=").append(table.totalBytes())
+                        .append(" inMemoryBytes=").append(table.sizeInBytes())
+                        .append(" spills=").append(table.spills())
+                        .append(" spilledBytes=").append(table.spilledBytes())
+                        .append("\n");
+                inMemory += table.sizeInBytes();
+                spills += table.spills();
+                spilledBytes += table.spilledBytes();
+            }
         }
+        stats.append("memoryTables")
+                .append(" inMemoryBytes=").append(inMemory)
+                .append(" budget=").append(memoryBudgetInBytes)
+                .append(" spills=").append(spills)
+                .append(" spilledBytes=").append(spilledBytes)
+                .append("\n");
+        return stats.toString();
+    }
 
-        if (tables.get(oldTableName) == null) {
+    /*
+     * The size of a table on this worker, as rows=, bytes=, minKey= and maxKey= lines, with the keys URL-encoded and
+     * left out if the table is empty here, and an expiresAt= line if it has a TTL. The figures cover every row the
+     * worker holds, including those of ranges it only follows. With ?samples=N, up to N keys spread evenly over the
+     * table follow as sample= lines, e.g. for picking the points at which to split it; unlike the other figures, these
+     * take a pass over the table's keys.
+     */
+    private static String handleGetTableStats(Request req, Response res) {
+        String tableName = req.params("T");
+        int samples = countParam(req, "samples");
+        if (samples < 0) {
+            res.status(400, "Bad Request");
+            return "Invalid samples: " + req.queryParams("samples");
+        }
+        if (!tableExists(tableName)) {
             res.status(404, "Not found");
-            return "Table '" + oldTableName + "' not found";
+            return "Table '" + tableName + "' not found";
         }
 
-        if (tables.get(newTableName) != null) {
-            res.status(409, "Conflict");
-            return "Table '" + newTableName + "' already exists!";
+        NavigableSet<String> keys = keysInRange(tableName, "", null);
+        int rows = getTableSize(tableName);
+        StringBuilder stats = new StringBuilder();
+        stats.append("rows=").append(rows).append("\n");
+        stats.append("bytes=").append(getTableBytes(tableName)).append("\n");
+        try {
+            stats.append("minKey=").append(URLEncoder.encode(keys.first(), StandardCharsets.UTF_8)).append("\n");
+            stats.append("maxKey=").append(URLEncoder.encode(keys.last(), StandardCharsets.UTF_8)).append("\n");
+        } catch (NoSuchElementException e) {
+            // the table is empty on this worker
+        }
+        Long deadline = tableDeadlines.get(tableName);
+        if (deadline != null) {
+            stats.append("expiresAt=").append(deadline).append("\n");
         }
 
-        ConcurrentMap<String, Row> oldTable = tables.get(oldTableName);
-        tables.put(newTableName, oldTable);
-        tables.remove(oldTableName);
-        if (isPersistentTable(newTableName)) {
-            (new File(path + File.separator + KeyEncoder.encode(newTableName))).mkdirs();
-            for (String rowKey : oldTable.keySet()) {
-                putRow(newTableName, oldTable.get(rowKey));
+        if (samples > 0 && rows > 0) {
+            double step = Math.max(1.0, (double) rows / samples);
+            double next = step / 2;
+            int position = 0;
+            for (String key : keys) {
+                if (position++ >= next) {
+                    stats.append("sample=").append(URLEncoder.encode(key, StandardCharsets.UTF_8)).append("\n");
+                    next += step;
+                }
             }
         }
+        res.type("text/plain");
+        return stats.toString();
+    }
 
-        return "OK";
+    /* A query parameter that counts something: 0 if it is missing, or -1 if it is not a number that is not negative */
+    private static int countParam(Request req, String name) {
+        String value = req.queryParams(name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            int count = Integer.parseInt(value);
+            return count >= 0 ? count : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
-    private static String handlePutDelete(Request req, Response res) {
+    /*
+     * Takes a snapshot of a persistent table under the ID given as ?id=, which reads can then name with ?snapshot=.
+     * The snapshot shares its files with the table (see SegmentStore.snapshot()), so it takes no time or space to
+     * speak of, and its directory, which the answer names, can be backed up while the table keeps changing. Each
+     * worker snapshots its own rows; clients take a snapshot on every worker with KVSClient.snapshot().
+     */
+    private static String handlePutSnapshot(Request req, Response res) throws IOException {
         String tableName = req.params("T");
+        String id = req.queryParams("id");
+        if (!isPersistentTable(tableName)) {
+            res.status(400, "Bad Request");
+            return "Only persistent tables can be snapshotted";
+        }
+        if (id == null || !id.matches(SNAPSHOT_ID_PATTERN)) {
+            res.status(400, "Bad Request");
+            return "Snapshot IDs consist of letters, digits, - and _";
+        }
 
-        if (isPersistentTable(tableName)) {
-            tables.remove(tableName);
-
-            Path dir = Paths.get(path, tableName);
-            if (!Files.exists(dir)) {
-                res.status(404, "Not found");
-                return "Not found";
-            }
-            try {
-                Files.walk(dir)
-                        .map(Path::toFile)
-                        .forEach(File::delete);
-
-                if (!dir.toFile().exists() || dir.toFile().delete()) {
-                    res.status(200, "OK");
-                    return "OK";
-                } else {
-                    res.status(500, "Internal Server Error");
-                    return "Error deleting table directory";
-                }
-            } catch (IOException e) {
-                res.status(500, "Internal Server Error");
-                return "Error deleting table directory";
-            }
+        File dir = snapshotDir(tableName, id);
+        if (dir.exists()) {
+            res.status(409, "Conflict");
+            return "Snapshot '" + id + "' of table '" + tableName + "' already exists";
+        }
+        File incomplete = new File(dir.getParentFile(), dir.getName() + ".tmp");
+        if (incomplete.exists()) {
+            // left over from a snapshot that was interrupted by a crash
+            deleteRecursively(incomplete);
         }
+        dir.getParentFile().mkdirs();
+        openPersistentTable(tableName).snapshot(dir);
+        logger.info("Took snapshot '" + id + "' of table '" + tableName + "' in " + dir);
+        res.type("text/plain");
+        return dir.getAbsolutePath();
+    }
 
-        if (tables.containsKey(tableName)) {
-            tables.remove(tableName);
-            res.status(200, "OK");
-            return "OK";
-        } else {
+    /* Deletes a snapshot; the segments it shares with the table stay, and those that only it still had go away */
+    private static String handlePutRelease(Request req, Response res) throws IOException {
+        String id = req.params("S");
+        File dir = snapshotDir(req.params("T"), id);
+        if (!id.matches(SNAPSHOT_ID_PATTERN) || !dir.isDirectory()) {
             res.status(404, "Not found");
-            return "Not found";
+            return "Snapshot '" + id + "' of table '" + req.params("T") + "' not found";
+        }
+        SegmentStore snapshot = openSnapshots.remove(dir);
+        if (snapshot != null) {
+            snapshot.close();
         }
+        moveToTrash(dir);
+        return "OK";
     }
 
-    private static synchronized void putRow(String tableName, Row row) {
-        if (isPersistentTable(tableName)) {
-            String encodedTableName = KeyEncoder.encode(tableName);
-            String encodedRowKey = KeyEncoder.encode(row.key);
-            new File(path + "/" + encodedTableName).mkdirs();
-            File rowFile = new File(path + "/" + tableName + "/" + encodedRowKey);
+    /* The snapshot that the request reads from with ?snapshot=, or null if it reads the live table */
+    private static SegmentStore requestedSnapshot(Request req, String tableName) {
+        String id = req.queryParams("snapshot");
+        if (id == null) {
+            return null;
+        }
+        File dir = snapshotDir(tableName, id);
+        if (!isPersistentTable(tableName) || !id.matches(SNAPSHOT_ID_PATTERN) || !dir.isDirectory()) {
+            throw new NoSuchElementException("Snapshot '" + id + "' of table '" + tableName + "' not found");
+        }
+        return openSnapshots.computeIfAbsent(dir, snapshotDir -> {
             try {
-                FileOutputStream outputStream = new FileOutputStream(rowFile);
-                outputStream.write(row.toByteArray());
-                outputStream.close();
+                return SegmentStore.openReadOnly(snapshotDir);
             } catch (IOException e) {
-                throw new RuntimeException(e);
+                throw new RuntimeException("Failed to open snapshot " + snapshotDir, e);
             }
-            return;
-        }
+        });
+    }
 
-        tables.get(tableName).put(row.key, row);
+    private static File snapshotDir(String tableName, String id) {
+        return new File(new File(new File(path, SNAPSHOT_DIRECTORY), KeyEncoder.encode(tableName)), id);
     }
 
-    private static synchronized Row getRow(String tableName, String rowKey) {
-        if (isPersistentTable(tableName)) {
-            String encodedRowKey = KeyEncoder.encode(rowKey);
-            Path rowPath = Paths.get(path, tableName, encodedRowKey);
-            if (!Files.exists(rowPath)) {
-                return null;
-            }
-            try (FileInputStream fis = new FileInputStream(rowPath.toFile())) {
-                return Row.readFrom(fis);
-            } catch (Exception e) {
-                System.err.println("Failed to read row from disk: " + e.getMessage());
+    /* Reads of a snapshot that does not exist, or no longer does, fail with 410, so they cannot be mistaken for reads of a missing row */
+    private static String snapshotNotFound(Response res) {
+        res.status(410, "Gone");
+        res.type("text/plain");
+        return "Snapshot not found";
+    }
+
+    /*
+     * Creates an index over ?column= of a persistent table (see ColumnIndex), and fills it from the rows the table
+     * already has on this worker; from then on, every write to the table keeps it up to date. Creating an index
+     * that exists already does nothing.
+     */
+    private static String handlePutIndex(Request req, Response res) throws IOException {
+        String tableName = req.params("T");
+        String column = req.queryParams("column");
+        if (readOnly) {
+            res.status(403, "Forbidden");
+            return "Worker is running in read-only mode";
+        }
+        if (!isPersistentTable(tableName) || column == null) {
+            res.status(400, "Bad Request");
+            return "Only columns of persistent tables can be indexed";
+        }
+
+        createTableIfNecessary(tableName);
+        SegmentStore store = persistentTables.get(tableName);
+        ColumnIndex index;
+        synchronized (columnIndexes) {
+            Map<String, ColumnIndex> indexes = columnIndexes.computeIfAbsent(tableName, name -> new ConcurrentHashMap<>());
+            if (indexes.containsKey(column)) {
+                return "OK";
+            }
+            index = ColumnIndex.open(store.directory(), column, false);
+            indexes.put(column, index);
+        }
+        // writes that started before the index existed have to finish before the rows are read, or they could be missed
+        ranges.awaitWritesInFlight();
+
+        int indexed = 0;
+        Iterator<Row> rows = store.scan(null, null);
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            index.add(row.key(), row.getBytes(column));
+            indexed++;
+        }
+        logger.info("Indexed column '" + column + "' of " + indexed + " rows of table '" + tableName + "'");
+        return "OK";
+    }
+
+    private static String handlePutUnindex(Request req, Response res) throws IOException {
+        String tableName = req.params("T");
+        String column = req.queryParams("column");
+        if (readOnly) {
+            res.status(403, "Forbidden");
+            return "Worker is running in read-only mode";
+        }
+
+        ColumnIndex index;
+        synchronized (columnIndexes) {
+            Map<String, ColumnIndex> indexes = columnIndexes.get(tableName);
+            index = indexes != null && column != null ? indexes.remove(column) : null;
+        }
+        if (index == null) {
+            res.status(404, "Not found");
+            return "No index of column '" + column + "' in table '" + tableName + "'";
+        }
+        ranges.awaitWritesInFlight();
+        index.close();
+        moveToTrash(index.directory());
+        return "OK";
+    }
+
+    /*
+     * The rows of this worker whose ?column= equals ?value=, or lies in [?from=, ?to=) if no value is given (compared
+     * as strings, with either bound optional), as a batch like that of POST /mget/:T, in the order of their values;
+     * ?columns= and ?limit= apply as for scans. Only rows whose range this worker owns are returned, so that a client
+     * asking every worker gets each row once.
+     */
+    private static String handleGetIndex(Request req, Response res) throws IOException {
+        String tableName = req.params("T");
+        String column = req.queryParams("column");
+        String value = req.queryParams("value");
+        String from = req.queryParams("from") != null ? req.queryParams("from") : "";
+        String to = req.queryParams("to");
+        int limit = countParam(req, "limit");
+        if (limit < 0) {
+            res.status(400, "Bad Request");
+            return "Invalid limit: " + req.queryParams("limit");
+        }
+
+        Map<String, ColumnIndex> indexes = columnIndexes.get(tableName);
+        ColumnIndex index = indexes != null && column != null ? indexes.get(column) : null;
+        if (index == null) {
+            res.status(404, "Not found");
+            return "No index of column '" + column + "' in table '" + tableName + "'";
+        }
+
+        List<String> rowKeys = value != null ? index.rowKeys(value, null)
+                : index.rowKeys(from, to != null ? to : String.valueOf(Character.MAX_VALUE));
+        List<String> columns = requestedColumns(req);
+        boolean compressed = acceptsCompressedRows(req);
+        List<Row> rows = new ArrayList<>();
+        for (String rowKey : rowKeys) {
+            if (limit > 0 && rows.size() >= limit) {
+                break;
+            }
+            if (!ranges.owns(rowKey)) {
+                continue;
+            }
+            Row row = getRow(tableName, rowKey);
+            byte[] current = row != null ? row.getBytes(column) : null;
+            // the index may hold entries that are stale; see ColumnIndex
+            String currentValue = current != null ? new String(current, StandardCharsets.UTF_8) : null;
+            if (currentValue == null || (value != null ? !currentValue.equals(value)
+                    : currentValue.compareTo(from) < 0 || (to != null && currentValue.compareTo(to) >= 0))) {
+                continue;
+            }
+            row = columns != null ? row.project(columns) : row;
+            rows.add(compressed ? row : row.uncompressed());
+        }
+
+        res.type("application/octet-stream");
+        res.bodyAsBytes(KVSClient.encodeBatch(rows));
+        return null;
+    }
+
+    /* Returns the settings of a persistent table (see TableConfig) in the java.util.Properties format */
+    private static String handleGetConfig(Request req, Response res) throws IOException {
+        SegmentStore store = persistentTables.get(req.params("T"));
+        if (store == null) {
+            res.status(404, "Not found");
+            return "Not found";
+        }
+
+        StringBuilder config = new StringBuilder();
+        for (String name : new TreeSet<>(store.config().properties().stringPropertyNames())) {
+            config.append(name).append("=").append(store.config().properties().getProperty(name)).append("\n");
+        }
+        res.type("text/plain");
+        return config.toString();
+    }
+
+    /* Changes the settings given as query parameters, e.g. ?compression=deflate, creating the table if necessary */
+    private static String handlePutConfig(Request req, Response res) {
+        String tableName = req.params("T");
+        if (!isPersistentTable(tableName)) {
+            res.status(400, "Bad Request");
+            return "Only persistent tables can be configured";
+        }
+
+        Map<String, String> changes = new HashMap<>();
+        for (String name : req.queryParams()) {
+            changes.put(name, req.queryParams(name));
+        }
+
+        createTableIfNecessary(tableName);
+        try {
+            persistentTables.get(tableName).configure(changes);
+            setTableDeadline(tableName, persistentTables.get(tableName).config().expiresAt());
+        } catch (IllegalArgumentException e) {
+            res.status(400, "Bad Request");
+            return e.getMessage();
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to configure table '" + tableName + "'", e);
+        }
+        return "OK";
+    }
+
+    private static String handleGetTable(Request req, Response res) {
+        res.type("text/html");
+        StringBuilder doc = new StringBuilder("<html><body>");
+
+        doc.append("<h1>Table List</h1>");
+        doc.append("<table border=\"1\">");
+        doc.append("<tr><th>Table Name</th><th>Number of Keys</th><th>Bytes</th></tr>");
+
+        TreeSet<String> orderedTableNames = new TreeSet<>(tables.keySet());
+        orderedTableNames.addAll(persistentTables.keySet());
+
+        for (String tableName : orderedTableNames) {
+            int keyCount = getTableSize(tableName);
+            doc.append("<tr>");
+            doc.append("<td><a href=\"/view/").append(tableName).append("\">").append(tableName).append("</a></td>");
+            doc.append("<td>").append(keyCount).append("</td>");
+            doc.append("<td>").append(getTableBytes(tableName)).append("</td>");
+            doc.append("</tr>");
+        }
+
+        doc.append("</table>");
+        doc.append("</body></html>");
+
+        return doc.toString();
+    }
+
+    /* Shows DEFAULT_PAGE_SIZE rows from ?fromRow= on, optionally only those whose keys start with ?prefix= */
+    private static String handleGetView(Request req, Response res) {
+        String tableName = req.params("T");
+        String startRowKey = req.queryParams("fromRow");
+        String prefix = req.queryParams("prefix");
+        String endRowKey = null;
+        if (prefix != null) {
+            startRowKey = startRowKey == null || startRowKey.compareTo(prefix) < 0 ? prefix : startRowKey;
+            endRowKey = KVSClient.prefixEnd(prefix);
+        }
+
+        Iterator<Row> rows;
+        try {
+            rows = scanRows(tableName, startRowKey, endRowKey);
+        } catch (NoSuchElementException e) {
+            res.status(404, "Not found");
+            return "Table '" + tableName + "' not found";
+        }
+
+        List<Row> page = new ArrayList<>();
+        String nextRowKey = null;
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            if (page.size() == DEFAULT_PAGE_SIZE) {
+                nextRowKey = row.key();
+                break;
+            }
+            page.add(row);
+        }
+
+        TreeSet<String> sortedColKeys = new TreeSet<>();
+        for (Row row : page) {
+            sortedColKeys.addAll(row.columns());
+        }
+
+        StringBuilder doc = new StringBuilder();
+
+        doc.append("<html><body>");
+        doc.append("<h1>").append(tableName).append("</h1>");
+
+        doc.append("<table border=\"1\">");
+
+        doc.append("<tr>");
+        doc.append("<th>Row</th>");
+        for (String colKey : sortedColKeys) {
+            doc.append("<th>").append(colKey).append("</th>");
+        }
+        doc.append("</tr>");
+
+        for (Row row : page) {
+            doc.append("<tr>");
+            doc.append("<td>").append(row.key()).append("</td>");
+            for (String colKeyHeader : sortedColKeys) {
+                String data = row.get(colKeyHeader);
+                doc.append("<td>").append(data != null ? data : "").append("</td>");
+            }
+            doc.append("</tr>");
+        }
+
+        doc.append("</table>");
+
+        if (nextRowKey != null) {
+            doc.append("<a href=\"/view/").append(tableName).append("?fromRow=")
+                    .append(URLEncoder.encode(nextRowKey, StandardCharsets.UTF_8));
+            if (prefix != null) {
+                doc.append("&prefix=").append(URLEncoder.encode(prefix, StandardCharsets.UTF_8));
+            }
+            doc.append("\">Next</a>");
+        }
+
+        doc.append("</body></html>");
+
+        res.type("text/html");
+        return doc.toString();
+    }
+
+    private static String handleGetRowData(Request req, Response res) {
+        String tableName = req.params("T");
+        String rowKey = req.params("R");
+        if (!ranges.serves(rowKey)) {
+            return misdirected(res);
+        }
+
+        boolean binary = isBinaryFormat(req);
+        boolean compressed = acceptsCompressedRows(req);
+        List<String> columns = requestedColumns(req);
+
+        byte[] data;
+        try {
+            SegmentStore snapshot = requestedSnapshot(req, tableName);
+            data = snapshot != null ? snapshot.getRowBytes(rowKey) : getRowBytes(tableName, rowKey);
+        } catch (NoSuchElementException e) {
+            return snapshotNotFound(res);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to read row from disk", e);
+        }
+        if (data == null) {
+            String errMsg = "Not Found: Queried resource does not exist";
+            res.status(404, errMsg);
+            res.type("text/plain");
+            return errMsg;
+        }
+
+        // stored rows are passed through untouched when they are already in the requested shape
+        boolean storedAsBinary = data.length > 0 && data[0] == Row.BINARY_MAGIC;
+        boolean storedCompressed = storedAsBinary && data.length > 1 && data[1] == Row.BINARY_VERSION_COMPRESSED;
+        if (columns != null || binary != storedAsBinary || (storedCompressed && !compressed)) {
+            try {
+                data = encodeRow(Row.fromBytes(data), binary, compressed, columns);
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to decode row '" + rowKey + "'", e);
+            }
+        }
+
+        res.bodyAsBytes(data);
+
+        return null;
+    }
+
+    private static String handleGetTableData(Request req, Response res) throws Exception {
+        return streamRows(req, res, null);
+    }
+
+    /*
+     * Like GET /data/:T, but the body is a serialized RowFilter and only rows it accepts are returned. The filter sees
+     * every column, even when columns= limits what is sent back. Classes that the worker does not have itself are
+     * loaded from the JAR named by jar=, which must have been uploaded with PUT /jar/:H first.
+     */
+    private static String handlePostScan(Request req, Response res) throws Exception {
+        String jarHash = req.queryParams("jar");
+        File jar = null;
+        if (jarHash != null) {
+            jar = jarFile(jarHash);
+            if (!jar.exists()) {
+                res.status(400, "Bad Request");
+                return "Unknown JAR " + jarHash;
+            }
+        }
+
+        Object filter = req.bodyAsBytes() != null ? Serializer.byteArrayToObject(req.bodyAsBytes(), jar) : null;
+        if (!(filter instanceof RowFilter)) {
+            res.status(400, "Bad Request");
+            return "Request body is not a serialized RowFilter";
+        }
+
+        return streamRows(req, res, (RowFilter) filter);
+    }
+
+    /*
+     * The body is a batch of empty rows that name the wanted keys, as encoded by KVSClient.multiGet(); the answer is
+     * a batch of the rows that exist, restricted to ?columns= if given.
+     */
+    private static String handlePostMultiGet(Request req, Response res) throws IOException {
+        String tableName = req.params("T");
+
+        List<Row> keys;
+        try {
+            keys = KVSClient.decodeBatch(req.bodyAsBytes());
+        } catch (Exception e) {
+            res.status(400, "Bad Request");
+            return "Malformed key batch: " + e.getMessage();
+        }
+        for (Row key : keys) {
+            if (!ranges.serves(key.key())) {
+                return misdirected(res);
+            }
+        }
+
+        SegmentStore snapshot;
+        try {
+            snapshot = requestedSnapshot(req, tableName);
+        } catch (NoSuchElementException e) {
+            return snapshotNotFound(res);
+        }
+        List<String> columns = requestedColumns(req);
+        boolean compressed = acceptsCompressedRows(req);
+        List<Row> rows = new ArrayList<>(keys.size());
+        for (Row key : keys) {
+            Row row = snapshot != null ? snapshot.get(key.key()) : getRow(tableName, key.key());
+            if (row != null) {
+                row = columns != null ? row.project(columns) : row;
+                rows.add(compressed ? row : row.uncompressed());
+            }
+        }
+
+        res.type("application/octet-stream");
+        res.bodyAsBytes(KVSClient.encodeBatch(rows));
+
+        return null;
+    }
+
+    private static String handleGetJar(Request req, Response res) {
+        if (!jarFile(req.params("H")).exists()) {
+            res.status(404, "Not found");
+            return "Not found";
+        }
+        return "OK";
+    }
+
+    /* JARs are stored under the hash of their contents, so an upload can never replace a JAR with different classes */
+    private static String handlePutJar(Request req, Response res) throws IOException {
+        String jarHash = req.params("H");
+        byte[] data = req.bodyAsBytes() != null ? req.bodyAsBytes() : new byte[0];
+        if (!jarHash.equals(Hasher.hash(new String(data, StandardCharsets.ISO_8859_1)))) {
+            res.status(400, "Bad Request");
+            return "JAR does not match hash " + jarHash;
+        }
+
+        File jar = jarFile(jarHash);
+        if (!jar.exists()) {
+            jar.getParentFile().mkdirs();
+            File temp = File.createTempFile("upload", ".tmp", jar.getParentFile());
+            Files.write(temp.toPath(), data);
+            Files.move(temp.toPath(), jar.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+        return "OK";
+    }
+
+    private static File jarFile(String jarHash) {
+        // hashes only contain lowercase letters, so this cannot escape the JAR directory
+        return new File(new File(path, JAR_DIRECTORY), jarHash.replaceAll("[^a-z]", "") + ".jar");
+    }
+
+    /*
+     * Sends the rows from startRow= (inclusive) to endRowExclusive=, narrowed down to the keys that start with prefix=
+     * if given. The scan seeks to its first row directly, and with limit=N it stops after N rows (that pass the filter).
+     */
+    private static String streamRows(Request req, Response res, RowFilter filter) throws Exception {
+        String tableName = req.params("T");
+        String startRow = req.queryParams("startRow");
+        String endRow = req.queryParams("endRowExclusive");
+        String prefix = req.queryParams("prefix");
+        int limit = countParam(req, "limit");
+        if (limit < 0) {
+            res.status(400, "Bad Request");
+            return "Invalid limit: " + req.queryParams("limit");
+        }
+        boolean binary = isBinaryFormat(req);
+        boolean compressed = acceptsCompressedRows(req);
+        List<String> columns = requestedColumns(req);
+
+        if (!ranges.servesRange(startRow != null ? startRow : "", endRow)) {
+            return misdirected(res);
+        }
+        if (prefix != null) {
+            startRow = startRow == null || startRow.compareTo(prefix) < 0 ? prefix : startRow;
+            String prefixEnd = KVSClient.prefixEnd(prefix);
+            endRow = endRow == null || (prefixEnd != null && prefixEnd.compareTo(endRow) < 0) ? prefixEnd : endRow;
+        }
+
+        res.type(binary ? "application/octet-stream" : "text/plain");
+
+        SegmentStore snapshot;
+        try {
+            snapshot = requestedSnapshot(req, tableName);
+        } catch (NoSuchElementException e) {
+            return snapshotNotFound(res);
+        }
+
+        Iterator<Row> rows;
+        try {
+            rows = snapshot != null ? snapshot.scan(startRow, endRow) : scanRows(tableName, startRow, endRow);
+        } catch (NoSuchElementException e) {
+            String errMsg = "Not Found: Queried resource does not exist";
+            res.status(404, errMsg);
+            res.type("text/plain");
+            return errMsg;
+        }
+
+        // the response is streamed in chunks; a failure part-way through drops the connection instead of ending the
+        // body early, so the client cannot mistake a truncated scan for a complete one
+        int sent = 0;
+        while (rows.hasNext() && (limit <= 0 || sent < limit)) {
+            Row row = rows.next();
+            if (filter != null && !filter.test(row)) {
+                continue;
+            }
+            sent++;
+            res.write(encodeRow(row, binary, compressed, columns));
+            if (!binary) {
+                res.write(LF);
+            }
+        }
+        res.write(LF);
+
+        return null;
+    }
+
+    /*
+     * format=bin selects the binary row format; binary rows are self-delimiting, so a binary scan is just the rows
+     * back to back, followed by the same terminating LF as a text scan. columns=a,b,c limits the columns returned.
+     */
+    private static boolean isBinaryFormat(Request req) {
+        return "bin".equals(req.queryParams("format"));
+    }
+
+    /*
+     * compressed=true tells the worker that the client can read binary rows with compressed columns, so rows of tables
+     * that store them compressed are sent as they are; otherwise they are inflated first.
+     */
+    private static boolean acceptsCompressedRows(Request req) {
+        return "true".equals(req.queryParams("compressed"));
+    }
+
+    private static List<String> requestedColumns(Request req) {
+        String columns = req.queryParams("columns");
+        return columns != null ? Arrays.asList(columns.split(",")) : null;
+    }
+
+    private static byte[] encodeRow(Row row, boolean binary, boolean compressed, List<String> columns) {
+        if (columns != null) {
+            row = row.project(columns);
+        }
+        if (!binary) {
+            return row.toByteArray();
+        }
+        return compressed ? row.toBinary() : row.uncompressed().toBinary();
+    }
+
+    /* One "start<TAB>rows<TAB>requests" line for each range this worker owns, for the coordinator's rebalancer */
+    private static String handleGetRangeLoad(Request req, Response res) {
+        RangeMap map = ranges.map();
+        StringBuilder load = new StringBuilder();
+        if (map != null) {
+            for (RangeMap.Range range : map.rangesOf(ranges.workerId())) {
+                long rows = 0;
+                for (String tableName : allTableNames()) {
+                    rows += keysInRange(tableName, range.start, range.end).size();
+                }
+                load.append(URLEncoder.encode(range.start, StandardCharsets.UTF_8)).append("\t").append(rows)
+                        .append("\t").append(ranges.takeRequestCount(range.start)).append("\n");
+            }
+        }
+        res.type("text/plain");
+        return load.toString();
+    }
+
+    /* The middle key of the largest table in [start, end), where a range that has grown too large can be split */
+    private static String handleGetRangeMedian(Request req, Response res) {
+        String start = req.queryParams("start") != null ? req.queryParams("start") : "";
+        String end = req.queryParams("end");
+
+        NavigableSet<String> largest = Collections.emptyNavigableSet();
+        for (String tableName : allTableNames()) {
+            NavigableSet<String> keys = keysInRange(tableName, start, end);
+            if (keys.size() > largest.size()) {
+                largest = keys;
+            }
+        }
+
+        int middle = largest.size() / 2;
+        for (String key : largest) {
+            if (middle-- == 0 && !key.equals(start)) {
+                res.type("text/plain");
+                return key;
+            }
+        }
+        res.status(404, "Not found");
+        return "Range is too small to split";
+    }
+
+    /* The number of persistent rows in [start, end), in all tables */
+    private static String handleGetRangeRows(Request req, Response res) {
+        String start = req.queryParams("start") != null ? req.queryParams("start") : "";
+        String end = req.queryParams("end");
+
+        long rows = 0;
+        for (String tableName : persistentTables.keySet()) {
+            rows += keysInRange(tableName, start, end).size();
+        }
+        res.type("text/plain");
+        return String.valueOf(rows);
+    }
+
+    private static String handlePutRanges(Request req, Response res) {
+        try {
+            ranges.install(RangeMap.parse(new String(req.bodyAsBytes(), StandardCharsets.UTF_8)));
+        } catch (IllegalArgumentException e) {
+            res.status(400, "Bad Request");
+            return e.getMessage();
+        }
+        return "OK";
+    }
+
+    /*
+     * Copies every row in the range [start, end) of this worker to the worker at ?target=, in all tables. Writes to
+     * the range continue during the copy; then the range is fenced (writes are refused as misdirected) and the rows
+     * written in the meantime are copied again. The fence stays up until the coordinator publishes a range map that
+     * gives the range to the target, or aborts the migration.
+     */
+    private static String handlePostMigrate(Request req, Response res) {
+        if (readOnly) {
+            res.status(403, "Forbidden");
+            return "Worker is running in read-only mode";
+        }
+        String start = req.queryParams("start") != null ? req.queryParams("start") : "";
+        String end = req.queryParams("end");
+        String target = req.queryParams("target");
+
+        RangeMap map = ranges.map();
+        RangeMap.Range range = map != null ? map.rangeStartingAt(start) : null;
+        if (target == null || range == null || !range.workerId.equals(ranges.workerId()) || !Objects.equals(range.end, end)) {
+            res.status(409, "Conflict");
+            return "This worker does not own the range";
+        }
+
+        RangeOwnership.Migration migration;
+        try {
+            migration = ranges.startMigration(range);
+        } catch (IllegalStateException e) {
+            res.status(409, "Conflict");
+            return e.getMessage();
+        }
+
+        try {
+            for (String tableName : allTableNames()) {
+                copyRows(tableName, scanRows(tableName, start, end), target, "migration=true");
+            }
+
+            ranges.fence(migration);
+            for (Map.Entry<String, Set<String>> written : migration.writtenKeys.entrySet()) {
+                String tableName = written.getKey();
+                List<Row> rows = new ArrayList<>();
+                for (String rowKey : written.getValue()) {
+                    Row row = getRow(tableName, rowKey);
+                    if (row != null) {
+                        rows.add(row);
+                    }
+                }
+                copyRows(tableName, rows.iterator(), target, "migration=true");
+            }
+            ranges.endMigration(false);
+            return "OK";
+        } catch (Exception e) {
+            logger.error("Failed to migrate range starting at '" + start + "' to " + target, e);
+            ranges.endMigration(true);
+            res.status(500, "Internal Server Error");
+            return "Migration failed: " + e.getMessage();
+        }
+    }
+
+    private static String handlePostAbortMigration(Request req, Response res) {
+        ranges.endMigration(true);
+        return "OK";
+    }
+
+    /*
+     * Deletes the rows in [start, end) that this worker no longer owns, e.g. once a migrated range has moved away;
+     * persistent rows are kept while the worker follows their range. With ?resync=true, it deletes all persistent rows
+     * in the range instead, since the owner is about to copy the range to this worker again.
+     */
+    private static String handlePostDropRange(Request req, Response res) throws IOException {
+        if (readOnly) {
+            res.status(403, "Forbidden");
+            return "Worker is running in read-only mode";
+        }
+        String start = req.queryParams("start") != null ? req.queryParams("start") : "";
+        String end = req.queryParams("end");
+        boolean resync = "true".equals(req.queryParams("resync"));
+
+        int dropped = 0;
+        for (String tableName : allTableNames()) {
+            if (resync && !isPersistentTable(tableName)) {
+                continue;
+            }
+            boolean persistent = isPersistentTable(tableName);
+            for (String rowKey : keysInRange(tableName, start, end)) {
+                if (!resync && (persistent ? ranges.replicates(rowKey) : ranges.owns(rowKey))) {
+                    continue;
+                }
+                synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                    if (isPersistentTable(tableName)) {
+                        deletePersistentRow(tableName, persistentTables.get(tableName), rowKey);
+                    } else {
+                        deleteMemoryRow(tableName, tables.get(tableName), rowKey);
+                    }
+                }
+                dropped++;
+            }
+        }
+        logger.info("Dropped " + dropped + " rows in the range starting at '" + start + "'");
+        return "OK";
+    }
+
+    /*
+     * Brings a new follower of one of this worker's ranges up to date: the follower drops what it has of the range,
+     * then gets a copy of the range's persistent rows. The follower is already in the range map, so writes that the
+     * copy misses are forwarded to it; the copy skips rows that the follower has received that way, which are newer.
+     */
+    private static String handlePostReplicate(Request req, Response res) {
+        String start = req.queryParams("start") != null ? req.queryParams("start") : "";
+        String end = req.queryParams("end");
+        String target = req.queryParams("target");
+
+        RangeMap map = ranges.map();
+        RangeMap.Range range = map != null ? map.rangeStartingAt(start) : null;
+        if (target == null || range == null || !range.workerId.equals(ranges.workerId()) || !Objects.equals(range.end, end)
+                || range.followers.stream().noneMatch(follower -> follower.address.equals(target))) {
+            res.status(409, "Conflict");
+            return "This worker does not own the range, or " + target + " does not follow it";
+        }
+
+        try {
+            String params = "start=" + URLEncoder.encode(start, StandardCharsets.UTF_8)
+                    + (end != null ? "&end=" + URLEncoder.encode(end, StandardCharsets.UTF_8) : "");
+            HTTP.Response response = HTTP.doRequest("POST", "http://" + target + "/ranges/drop?" + params + "&resync=true", null);
+            if (response.statusCode() != 200) {
+                throw new IOException("Dropping the old copy failed: " + new String(response.body()));
+            }
+            for (String tableName : allTableNames()) {
+                if (isPersistentTable(tableName)) {
+                    copyRows(tableName, scanRows(tableName, start, end), target, "replica=true&resync=true");
+                }
+            }
+            return "OK";
+        } catch (Exception e) {
+            logger.error("Failed to copy the range starting at '" + start + "' to " + target, e);
+            res.status(500, "Internal Server Error");
+            return "Replication failed: " + e.getMessage();
+        }
+    }
+
+    private static void copyRows(String tableName, Iterator<Row> rows, String target, String batchParams) throws IOException {
+        SegmentStore store = persistentTables.get(tableName);
+        if (store != null && !store.config().properties().isEmpty()) {
+            StringBuilder params = new StringBuilder();
+            for (String name : store.config().properties().stringPropertyNames()) {
+                params.append(params.length() == 0 ? "?" : "&").append(URLEncoder.encode(name, StandardCharsets.UTF_8))
+                        .append("=").append(URLEncoder.encode(store.config().properties().getProperty(name), StandardCharsets.UTF_8));
+            }
+            HTTP.Response response = HTTP.doRequest("PUT", "http://" + target + "/config/" + tableName + params, null);
+            if (response.statusCode() != 200) {
+                throw new IOException("Configuring table '" + tableName + "' on " + target + " failed: " + new String(response.body()));
+            }
+        }
+
+        List<Row> batch = new ArrayList<>(MIGRATION_BATCH_ROWS);
+        while (rows.hasNext() || !batch.isEmpty()) {
+            if (rows.hasNext()) {
+                batch.add(rows.next());
+                if (batch.size() < MIGRATION_BATCH_ROWS && rows.hasNext()) {
+                    continue;
+                }
+            }
+            HTTP.Response response = HTTP.doRequest("PUT", "http://" + target + "/batch/" + tableName + "?" + batchParams, KVSClient.encodeBatch(batch));
+            if (response.statusCode() != 200) {
+                throw new IOException("Copying rows of table '" + tableName + "' to " + target + " failed: " + new String(response.body()));
+            }
+            batch.clear();
+        }
+    }
+
+    private static Set<String> allTableNames() {
+        Set<String> tableNames = new TreeSet<>(tables.keySet());
+        tableNames.addAll(persistentTables.keySet());
+        return tableNames;
+    }
+
+    /* The keys of the table in [start, end), or from start on if end is null; see MemoryTable.keys() */
+    private static NavigableSet<String> keysInRange(String tableName, String start, String end) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            return store != null ? store.keys(start, end) : Collections.emptyNavigableSet();
+        }
+        MemoryTable table = tables.get(tableName);
+        return table != null ? table.keys(start, end) : Collections.emptyNavigableSet();
+    }
+
+    /* A worker that follows ranges only counts the rows it owns, so that the counts of all workers add up */
+    private static String handleGetRowCount(Request req, Response res) {
+        String tableName = req.params("T");
+
+        int tableSize = getTableSize(tableName);
+        RangeMap map = ranges.map();
+        if (tableSize > 0 && isPersistentTable(tableName) && ranges.followsAny()) {
+            tableSize = 0;
+            for (RangeMap.Range range : map.rangesOf(ranges.workerId())) {
+                tableSize += keysInRange(tableName, range.start, range.end).size();
+            }
+        }
+        if (tableSize == 0) {
+            res.status(404, "Not found");
+            return "Not found";
+        }
+        return "" + tableSize;
+    }
+
+    private static String handlePutRename(Request req, Response res) throws IOException {
+        String oldTableName = req.params("T");
+        String newTableName = new String(req.bodyAsBytes());
+
+        if (isPersistentTable(oldTableName) && !isPersistentTable(newTableName)) {
+            res.status(400, "Cannot convert a table from persistent to in-memory");
+            return "Cannot convert a table from persistent to in-memory";
+        }
+
+        if (!tableExists(oldTableName)) {
+            res.status(404, "Not found");
+            return "Table '" + oldTableName + "' not found";
+        }
+
+        if (tableExists(newTableName)) {
+            res.status(409, "Conflict");
+            return "Table '" + newTableName + "' already exists!";
+        }
+
+        setTableDeadline(oldTableName, 0);
+        if (isPersistentTable(oldTableName)) {
+            SegmentStore renamed = persistentTables.get(oldTableName);
+            if (renamed.config().expiresAt() != 0) {
+                renamed.configure(Map.of(TableConfig.EXPIRES_AT, "0"));
+            }
+            // the indexes live in the table's directory, and are opened again from where it ends up
+            closeColumnIndexes(oldTableName);
+            SegmentStore store = persistentTables.remove(oldTableName);
+            store.moveTo(new File(path, KeyEncoder.encode(newTableName)));
+            persistentTables.put(newTableName, store);
+            openColumnIndexes(newTableName);
+            rowCache.invalidateTable(oldTableName);
+            return "OK";
+        }
+
+        MemoryTable oldTable = tables.get(oldTableName);
+        SegmentStore spill;
+        // waits for a spill of the table that is under way
+        synchronized (oldTable) {
+            tables.remove(oldTableName);
+            spill = oldTable.spill();
+        }
+        SegmentStore log = memoryTableLogs.remove(oldTableName);
+        if (isPersistentTable(newTableName) && log != null) {
+            // the log holds exactly the rows of the table in the same format, so it simply becomes the new table
+            log.sync();
+            log.moveTo(new File(path, KeyEncoder.encode(newTableName)));
+            persistentTables.put(newTableName, log);
+        } else if (isPersistentTable(newTableName)) {
+            // without a log, the rows only exist in memory and have to be written out once
+            SegmentStore store = openPersistentTable(newTableName);
+            Iterator<Row> rows = oldTable.rows(null, null);
+            while (rows.hasNext()) {
+                store.put(rows.next());
+            }
+            store.sync();
+        } else {
+            if (log != null) {
+                log.moveTo(memoryTableLogDir(newTableName));
+                memoryTableLogs.put(newTableName, log);
+            }
+            if (spill != null) {
+                spill.moveTo(spillDir(newTableName));
+            }
+            tables.put(newTableName, oldTable);
+        }
+        if (spill != null && isPersistentTable(newTableName)) {
+            spill.close();
+            moveToTrash(spill.directory());
+        }
+
+        if (tablesWithExpiringRows.remove(oldTableName)) {
+            if (isPersistentTable(newTableName)) {
+                // the rows did not go through putPersistentRow(), so their deadlines still need indexing
+                SegmentStore store = persistentTables.get(newTableName);
+                Iterator<Row> rows = store.scan(null, null);
+                while (rows.hasNext()) {
+                    Row row = rows.next();
+                    if (row.getBytes(KVSClient.EXPIRES_COLUMN) != null) {
+                        expiryIndexFor(newTableName, store).add(row.key(), row.getBytes(KVSClient.EXPIRES_COLUMN));
+                    }
+                }
+            } else {
+                tablesWithExpiringRows.add(newTableName);
+            }
+        }
+        return "OK";
+    }
+
+    private static String handlePutDelete(Request req, Response res) {
+        String tableName = req.params("T");
+
+        try {
+            if (!dropTable(tableName)) {
+                res.status(404, "Not found");
+                return "Not found";
+            }
+        } catch (IOException e) {
+            logger.error("Failed to drop table '" + tableName + "'", e);
+            res.status(500, "Internal Server Error");
+            return "Error deleting table directory";
+        }
+        res.status(200, "OK");
+        return "OK";
+    }
+
+    /* Returns false if the table does not exist; callers hold the range write lock */
+    private static boolean dropTable(String tableName) throws IOException {
+        tableDeadlines.remove(tableName);
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.remove(tableName);
+            if (store == null) {
+                return false;
+            }
+            rowCache.invalidateTable(tableName);
+            closeColumnIndexes(tableName);
+            store.close();
+            moveToTrash(store.directory());
+            return true;
+        }
+
+        MemoryTable table = tables.get(tableName);
+        if (table == null) {
+            return false;
+        }
+        SegmentStore spill;
+        // waits for a spill of the table that is under way
+        synchronized (table) {
+            if (!tables.remove(tableName, table)) {
+                return false;
+            }
+            spill = table.spill();
+        }
+        tablesWithExpiringRows.remove(tableName);
+        if (spill != null) {
+            spill.close();
+            moveToTrash(spill.directory());
+        }
+        SegmentStore log = memoryTableLogs.remove(tableName);
+        if (log != null) {
+            try {
+                deleteMemoryTableLog(log);
+            } catch (IOException e) {
+                logger.error("Failed to delete the write-ahead log of table '" + tableName + "'", e);
+            }
+        }
+        return true;
+    }
+
+    private static void putColumn(String tableName, String rowKey, String colKey, byte[] data) {
+        updateColumn(tableName, rowKey, colKey, current -> data);
+    }
+
+    /*
+     * Sets a column to update.apply(current value), where the current value is null if the column does not exist
+     * yet, and returns the value the column holds afterwards; if the update returns null, the row is left alone.
+     * In-memory rows are replaced copy-on-write inside the table map's compute(), which applies updates to a key
+     * atomically (but may call the update more than once, so it must not have side effects beyond its result);
+     * persistent rows, and rows of in-memory tables with a write-ahead log or a spill store, are read, modified and
+     * written while holding the row's lock stripe. Either way, concurrent readers see the old or the new row, never one that is
+     * half updated.
+     */
+    private static byte[] updateColumn(String tableName, String rowKey, String colKey, UnaryOperator<byte[]> update) {
+        ranges.noteWrite(tableName, rowKey);
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = openPersistentTable(tableName);
+            synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                try {
+                    byte[] rowBytes = readPersistentRow(tableName, store, rowKey);
+                    Row row = rowBytes != null ? Row.fromBytes(rowBytes) : null;
+                    byte[] current = row != null ? row.getBytes(colKey) : null;
+                    byte[] updatedValue = update.apply(current);
+                    if (updatedValue == null) {
+                        return current;
+                    }
+                    // the indexes need the values the row had before
+                    Row previous = row != null && columnIndexes.containsKey(tableName) ? row.clone() : row;
+                    if (row == null) {
+                        row = new Row(rowKey);
+                    }
+                    row.put(colKey, updatedValue);
+                    putPersistentRow(tableName, store, previous, row);
+                    replicator.forward(tableName, row);
+                    return updatedValue;
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to write row to disk", e);
+                }
+            }
+        }
+
+        if (colKey.equals(KVSClient.EXPIRES_COLUMN)) {
+            tablesWithExpiringRows.add(tableName);
+        }
+        MemoryTable table = tables.get(tableName);
+        SegmentStore log = memoryTableLogs.get(tableName);
+        if (log != null || table.spill() != null) {
+            // rows of a logged table are only written under their lock stripe, so the log gets them in table order,
+            // and so are those of a spilled table, so a row cannot be spilled while it is being updated
+            synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                Row row = table.row(rowKey);
+                byte[] current = row != null ? row.getBytes(colKey) : null;
+                byte[] updatedValue = update.apply(current);
+                if (updatedValue == null) {
+                    return current;
+                }
+                Row updated = row != null ? row.clone() : new Row(rowKey);
+                updated.put(colKey, updatedValue);
+                if (log != null) {
+                    appendToLog(log, updated);
+                }
+                putMemoryRow(table, updated);
+                return updatedValue;
+            }
+        }
+
+        byte[][] result = new byte[1][];
+        table.compute(rowKey, (key, row) -> {
+            byte[] current = row != null ? row.getBytes(colKey) : null;
+            byte[] updatedValue = update.apply(current);
+            result[0] = updatedValue != null ? updatedValue : current;
+            if (updatedValue == null) {
+                return row;
+            }
+            Row updated = row != null ? row.clone() : new Row(key);
+            updated.put(colKey, updatedValue);
+            return updated;
+        });
+        return result[0];
+    }
+
+    /*
+     * Writes the columns of a row into the stored row with the same key, whose other columns are kept. That is what a
+     * putColumn() of each column would do, but the row is read, written, logged and forwarded once, under one hold of
+     * its lock stripe, or in one compute() for in-memory tables without a log or a spill store.
+     */
+    private static void mergeRow(String tableName, Row columns) {
+        String rowKey = columns.key();
+        ranges.noteWrite(tableName, rowKey);
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = openPersistentTable(tableName);
+            synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                try {
+                    byte[] rowBytes = readPersistentRow(tableName, store, rowKey);
+                    Row previous = rowBytes != null ? Row.fromBytes(rowBytes) : null;
+                    Row row = merged(previous, columns);
+                    putPersistentRow(tableName, store, previous, row);
+                    replicator.forward(tableName, row);
+                } catch (Exception e) {
+                    throw new RuntimeException("Failed to write row to disk", e);
+                }
+            }
+            return;
+        }
+
+        if (columns.getBytes(KVSClient.EXPIRES_COLUMN) != null) {
+            tablesWithExpiringRows.add(tableName);
+        }
+        MemoryTable table = tables.get(tableName);
+        SegmentStore log = memoryTableLogs.get(tableName);
+        if (log != null || table.spill() != null) {
+            synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                Row updated = merged(table.row(rowKey), columns);
+                if (log != null) {
+                    appendToLog(log, updated);
+                }
+                putMemoryRow(table, updated);
+            }
+            return;
+        }
+        table.compute(rowKey, (key, row) -> merged(row, columns));
+    }
+
+    /* The row with the columns of the other one added or replaced; the row itself, which readers may hold, is left alone */
+    private static Row merged(Row row, Row columns) {
+        if (row == null) {
+            return columns;
+        }
+        Row updated = row.clone();
+        for (String column : columns.columns()) {
+            updated.put(column, columns.getBytes(column));
+        }
+        return updated;
+    }
+
+    private static void putRow(String tableName, Row row) {
+        putRow(tableName, row, true);
+    }
+
+    /* forward is false for rows that were copied here by another worker, which the followers get from their owner */
+    private static void putRow(String tableName, Row row, boolean forward) {
+        ranges.noteWrite(tableName, row.key());
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = openPersistentTable(tableName);
+            // taken so that a whole-row write cannot be lost under a concurrent column update of the same row
+            synchronized (rowLocks.lockFor(tableName, row.key())) {
+                try {
+                    Row previous = columnIndexes.containsKey(tableName) ? getRow(tableName, row.key()) : null;
+                    putPersistentRow(tableName, store, previous, row);
+                    if (forward) {
+                        replicator.forward(tableName, row);
+                    }
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to write row to disk", e);
+                }
+            }
+            return;
+        }
+
+        if (row.getBytes(KVSClient.EXPIRES_COLUMN) != null) {
+            tablesWithExpiringRows.add(tableName);
+        }
+        MemoryTable table = tables.get(tableName);
+        SegmentStore log = memoryTableLogs.get(tableName);
+        if (log == null && table.spill() == null) {
+            table.put(row.key(), row);
+            return;
+        }
+        synchronized (rowLocks.lockFor(tableName, row.key())) {
+            if (log != null) {
+                appendToLog(log, row);
+            }
+            putMemoryRow(table, row);
+        }
+    }
+
+    /*
+     * Puts a row into the memory of a table that may have been spilled, and then deletes the spilled copy, so that
+     * readers, which look in memory first, always find one of the two. Callers hold the row's lock.
+     */
+    private static void putMemoryRow(MemoryTable table, Row row) {
+        table.put(row.key(), row);
+        SegmentStore spill = table.spill();
+        if (spill != null) {
+            try {
+                spill.delete(row.key());
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to delete the spilled copy of row '" + row.key() + "'", e);
+            }
+        }
+    }
+
+    /* Deletes a row of an in-memory table wherever it is; callers hold the row's lock */
+    private static void deleteMemoryRow(String tableName, MemoryTable table, String rowKey) throws IOException {
+        SegmentStore log = memoryTableLogs.get(tableName);
+        if (log != null) {
+            log.delete(rowKey);
+        }
+        table.remove(rowKey);
+        SegmentStore spill = table.spill();
+        if (spill != null) {
+            spill.delete(rowKey);
+        }
+    }
+
+    /*
+     * Writes a row of a persistent table and updates the table's indexes, whose entries for previous (the row as it
+     * was, or null) only need to be correct if the table has any; see ColumnIndex for the order. Callers hold the
+     * row's lock.
+     */
+    private static void putPersistentRow(String tableName, SegmentStore store, Row previous, Row row) throws IOException {
+        Collection<ColumnIndex> indexes = indexesOf(tableName);
+        for (ColumnIndex index : indexes) {
+            byte[] value = row.getBytes(index.column());
+            if (value != null && (previous == null || !Arrays.equals(value, previous.getBytes(index.column())))) {
+                index.add(row.key(), value);
+            }
+        }
+        byte[] deadline = row.getBytes(KVSClient.EXPIRES_COLUMN);
+        if (deadline != null) {
+            // entries of earlier deadlines are left for the sweep, which checks each row's current one
+            expiryIndexFor(tableName, store).add(row.key(), deadline);
+        }
+        store.put(row);
+        rowCache.invalidate(tableName, row.key());
+        if (previous != null) {
+            for (ColumnIndex index : indexes) {
+                byte[] value = previous.getBytes(index.column());
+                if (value != null && !Arrays.equals(value, row.getBytes(index.column()))) {
+                    index.remove(row.key(), value);
+                }
+            }
+        }
+    }
+
+    /* Deletes a row of a persistent table together with its index entries; callers hold the row's lock */
+    private static void deletePersistentRow(String tableName, SegmentStore store, String rowKey) throws IOException {
+        Collection<ColumnIndex> indexes = indexesOf(tableName);
+        Row previous = indexes.isEmpty() ? null : getRow(tableName, rowKey);
+        store.delete(rowKey);
+        rowCache.invalidate(tableName, rowKey);
+        if (previous != null) {
+            for (ColumnIndex index : indexes) {
+                index.remove(rowKey, previous.getBytes(index.column()));
+            }
+        }
+    }
+
+    private static Collection<ColumnIndex> indexesOf(String tableName) {
+        Map<String, ColumnIndex> indexes = columnIndexes.get(tableName);
+        return indexes != null ? indexes.values() : Collections.emptyList();
+    }
+
+    private static void openColumnIndexes(String tableName) {
+        SegmentStore store = persistentTables.get(tableName);
+        for (String column : ColumnIndex.indexedColumns(store.directory())) {
+            try {
+                columnIndexes.computeIfAbsent(tableName, name -> new ConcurrentHashMap<>())
+                        .put(column, ColumnIndex.open(store.directory(), column, readOnly));
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the index of column '" + column + "' of table '" + tableName + "'", e);
+            }
+        }
+        if (new File(store.directory(), EXPIRY_INDEX_DIRECTORY).isDirectory()) {
+            expiryIndexFor(tableName, store);
+        }
+    }
+
+    private static void closeColumnIndexes(String tableName) throws IOException {
+        Map<String, ColumnIndex> indexes = columnIndexes.remove(tableName);
+        if (indexes != null) {
+            for (ColumnIndex index : indexes.values()) {
+                index.close();
+            }
+        }
+        ColumnIndex expiryIndex = expiryIndexes.remove(tableName);
+        if (expiryIndex != null) {
+            expiryIndex.close();
+        }
+    }
+
+    /*
+     * The index of the deadlines in KVSClient.EXPIRES_COLUMN, which a persistent table gets with its first expiring
+     * row. It is kept apart from the indexes that clients create, so that writes to the table do not have to read the
+     * previous row for it.
+     */
+    private static ColumnIndex expiryIndexFor(String tableName, SegmentStore store) {
+        return expiryIndexes.computeIfAbsent(tableName, name -> {
+            try {
+                return ColumnIndex.openAt(new File(store.directory(), EXPIRY_INDEX_DIRECTORY), KVSClient.EXPIRES_COLUMN, readOnly);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open the expiry index of table '" + name + "'", e);
+            }
+        });
+    }
+
+    /*
+     * Drops the tables whose TTL has run out, and deletes the rows whose deadline has passed. Every worker sweeps
+     * all the rows it has, including those it only follows, since deletes are not forwarded to followers; as the
+     * deadline is part of the row, all copies expire together.
+     */
+    private static void sweepExpired() {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, Long> deadline : tableDeadlines.entrySet()) {
+            if (deadline.getValue() <= now) {
+                expireTable(deadline.getKey(), deadline.getValue());
+            }
+        }
+        for (String tableName : expiryIndexes.keySet()) {
+            try {
+                sweepPersistentRows(tableName, now);
+            } catch (Exception e) {
+                logger.error("Failed to delete the expired rows of table '" + tableName + "'", e);
+            }
+        }
+        for (String tableName : tablesWithExpiringRows) {
+            sweepMemoryRows(tableName, formatDeadline(now));
+        }
+    }
+
+    /*
+     * Excludes all writes while the table is dropped: a write that is in flight has already created the table, and
+     * would fail if its store or log were closed, or the table removed, under it
+     */
+    private static void expireTable(String tableName, long deadline) {
+        ranges.exclusiveWriteLock().lock();
+        try {
+            // the TTL may have been set again in the meantime
+            if (tableDeadlines.remove(tableName, deadline) && dropTable(tableName)) {
+                logger.info("Dropped table '" + tableName + "', whose TTL ran out");
+            }
+        } catch (IOException e) {
+            logger.error("Failed to drop expired table '" + tableName + "'", e);
+        } finally {
+            ranges.exclusiveWriteLock().unlock();
+        }
+    }
+
+    private static void sweepPersistentRows(String tableName, long now) throws IOException {
+        ColumnIndex index = expiryIndexes.get(tableName);
+        SegmentStore store = persistentTables.get(tableName);
+        if (index == null || store == null) {
+            return;
+        }
+        String cutoff = formatDeadline(now);
+        int deleted = 0;
+        for (Map.Entry<String, String> entry : index.entries("", formatDeadline(now + 1))) {
+            String rowKey = entry.getValue();
+            ranges.writeLock().lock();
+            try {
+                synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                    Row row = getRow(tableName, rowKey);
+                    if (row != null && isExpired(row, cutoff)) {
+                        deletePersistentRow(tableName, store, rowKey);
+                        deleted++;
+                    }
+                    // the entry is either the row's current deadline, which has passed, or one it no longer has
+                    index.remove(rowKey, entry.getKey().getBytes(StandardCharsets.UTF_8));
+                }
+            } finally {
+                ranges.writeLock().unlock();
+            }
+        }
+        if (deleted > 0) {
+            logger.info("Deleted " + deleted + " expired rows of table '" + tableName + "'");
+        }
+    }
+
+    private static void sweepMemoryRows(String tableName, String cutoff) {
+        MemoryTable table = tables.get(tableName);
+        if (table == null) {
+            return;
+        }
+        int deleted = 0;
+        Iterator<Row> rows = table.rows(null, null);
+        while (rows.hasNext()) {
+            Row row = rows.next();
+            if (!isExpired(row, cutoff)) {
+                continue;
+            }
+            ranges.writeLock().lock();
+            try {
+                if (memoryTableLogs.containsKey(tableName) || table.spill() != null) {
+                    synchronized (rowLocks.lockFor(tableName, row.key())) {
+                        Row current = table.row(row.key());
+                        if (current != null && isExpired(current, cutoff)) {
+                            deleteMemoryRow(tableName, table, row.key());
+                            deleted++;
+                        }
+                    }
+                } else if (table.compute(row.key(), (key, current) -> current != null && isExpired(current, cutoff) ? null : current) == null) {
+                    deleted++;
+                }
+            } catch (IOException e) {
+                logger.error("Failed to delete expired row '" + row.key() + "' of table '" + tableName + "'", e);
+            } finally {
+                ranges.writeLock().unlock();
+            }
+        }
+        if (deleted > 0) {
+            logger.info("Deleted " + deleted + " expired rows of table '" + tableName + "'");
+        }
+    }
+
+    private static boolean isExpired(Row row, String cutoff) {
+        String deadline = row.get(KVSClient.EXPIRES_COLUMN);
+        return deadline != null && deadline.compareTo(cutoff) <= 0;
+    }
+
+    private static void appendToLog(SegmentStore log, Row row) {
+        try {
+            log.put(row);
+        } catch (IOException e) {
+            throw new RuntimeException("Failed to write to the write-ahead log", e);
+        }
+    }
+
+    private static Row getRow(String tableName, String rowKey) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            if (store == null) {
+                return null;
+            }
+            try {
+                byte[] rowBytes = readPersistentRow(tableName, store, rowKey);
+                return rowBytes != null ? Row.fromBytes(rowBytes) : null;
+            } catch (Exception e) {
+                System.err.println("Failed to read row from disk: " + e.getMessage());
+                throw new RuntimeException("Failed to read row from disk", e);
+            }
+        }
+
+        MemoryTable table = tables.get(tableName);
+        return table != null ? table.row(rowKey) : null;
+    }
+
+    private static byte[] getRowBytes(String tableName, String rowKey) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            if (store == null) {
+                return null;
+            }
+            try {
+                return readPersistentRow(tableName, store, rowKey);
+            } catch (IOException e) {
                 throw new RuntimeException("Failed to read row from disk", e);
             }
         }
 
-        ConcurrentMap<String, Row> table = tables.get(tableName);
-        return table != null ? table.get(rowKey) : null;
+        Row row = getRow(tableName, rowKey);
+        return row != null ? row.toBinary() : null;
+    }
+
+    private static byte[] getColumn(String tableName, String rowKey, String colKey) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            if (store == null) {
+                return null;
+            }
+            try {
+                if (store.isReadOnly()) {
+                    return store.getColumn(rowKey, colKey);
+                }
+                byte[] rowBytes = readPersistentRow(tableName, store, rowKey);
+                return rowBytes != null ? Row.readColumn(ByteBuffer.wrap(rowBytes), colKey) : null;
+            } catch (Exception e) {
+                throw new RuntimeException("Failed to read column from disk", e);
+            }
+        }
+
+        Row row = getRow(tableName, rowKey);
+        return row != null ? row.getBytes(colKey) : null;
+    }
+
+    /*
+     * Reads a persistent row through the row cache, without taking the row's lock. A miss fills the cache unless
+     * the row has been invalidated since before it was read from disk (see RowCache), so a fill can never put back
+     * a row that a concurrent write has just replaced. Read-only tables bypass the cache: their segments are
+     * memory-mapped, so the page cache already keeps their hot rows in memory.
+     */
+    private static byte[] readPersistentRow(String tableName, SegmentStore store, String rowKey) throws IOException {
+        if (store.isReadOnly()) {
+            return store.getRowBytes(rowKey);
+        }
+
+        byte[] rowBytes = rowCache.get(tableName, rowKey);
+        if (rowBytes != null) {
+            return rowBytes;
+        }
+        long invalidations = rowCache.invalidations(tableName, rowKey);
+        rowBytes = store.getRowBytes(rowKey);
+        if (rowBytes != null) {
+            rowCache.putUnlessInvalidated(tableName, rowKey, rowBytes, invalidations);
+        }
+        return rowBytes;
+    }
+
+    private static boolean rowExists(String tableName, String rowKey) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            return store != null && store.contains(rowKey);
+        }
+
+        MemoryTable table = tables.get(tableName);
+        return table != null && table.hasRow(rowKey);
+    }
+
+    private static Iterator<Row> scanRows(String tableName, String startRow, String endRow) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            if (store == null) {
+                throw new NoSuchElementException("Table '" + tableName + "' not found");
+            }
+            return store.scan(startRow, endRow);
+        }
+
+        MemoryTable table = tables.get(tableName);
+        if (table == null) {
+            throw new NoSuchElementException("Table '" + tableName + "' not found");
+        }
+        return table.rows(startRow, endRow);
+    }
+
+    private static void createTableIfNecessary(String tableName) {
+        if (isPersistentTable(tableName)) {
+            openPersistentTable(tableName);
+            return;
+        }
+
+        // the log has to exist before the table, or a write could slip into the table without being logged
+        if (durability.mode() != Durability.Mode.NONE && !readOnly) {
+            memoryTableLogs.computeIfAbsent(tableName, name -> {
+                try {
+                    return SegmentStore.open(memoryTableLogDir(name));
+                } catch (IOException e) {
+                    throw new RuntimeException("Failed to open the write-ahead log of table '" + name + "'", e);
+                }
+            });
+        }
+        tables.computeIfAbsent(tableName, name -> new MemoryTable());
+    }
+
+    private static File memoryTableLogDir(String tableName) {
+        return new File(new File(path, MEMORY_TABLE_LOG_DIRECTORY), KeyEncoder.encode(tableName));
+    }
+
+    private static File spillDir(String tableName) {
+        return new File(new File(path, SPILL_DIRECTORY), KeyEncoder.encode(tableName));
+    }
+
+    /* Spilled rows belong to in-memory tables, which do not survive a restart; those with a log are replayed from it */
+    private static void discardSpills() throws IOException {
+        File spills = new File(path, SPILL_DIRECTORY);
+        if (spills.exists()) {
+            moveToTrash(spills);
+        }
+    }
+
+    /*
+     * Spills in-memory tables, the largest first, when their rows take up more memory than the budget, until the rows
+     * that are left take up no more than SPILL_LOW_WATER_MARK of it.
+     */
+    private static void spillIfOverBudget() {
+        Map<String, Long> sizes = new HashMap<>();
+        long inMemory = 0;
+        for (Map.Entry<String, MemoryTable> table : tables.entrySet()) {
+            sizes.put(table.getKey(), table.getValue().sizeInBytes());
+            inMemory += table.getValue().sizeInBytes();
+        }
+        if (inMemory <= memoryBudgetInBytes) {
+            return;
+        }
+
+        List<String> largestFirst = new ArrayList<>(sizes.keySet());
+        largestFirst.sort(Comparator.comparing(sizes::get).reversed());
+        for (String tableName : largestFirst) {
+            if (inMemory <= memoryBudgetInBytes * SPILL_LOW_WATER_MARK) {
+                break;
+            }
+            MemoryTable table = tables.get(tableName);
+            if (table == null) {
+                continue;
+            }
+            try {
+                inMemory -= spillTable(tableName, table);
+            } catch (Exception e) {
+                logger.error("Failed to spill table '" + tableName + "'", e);
+            }
+        }
+    }
+
+    /*
+     * Moves the rows that an in-memory table has in memory to its spill store, and returns how many bytes they took
+     * up. The rows are written in key order, so each spill adds a sorted run to the store, which its compaction later
+     * merges with the earlier ones. Once a table has a spill store, all writes to it take the row locks, like those
+     * to a logged table; writes that started before it had one are waited for. Renaming or dropping the table waits
+     * until the spill is done.
+     */
+    private static long spillTable(String tableName, MemoryTable table) throws IOException {
+        boolean firstSpill = false;
+        synchronized (table) {
+            if (tables.get(tableName) != table) {
+                return 0;
+            }
+            if (table.spill() == null) {
+                table.spillTo(SegmentStore.open(spillDir(tableName)));
+                firstSpill = true;
+            }
+        }
+        if (firstSpill) {
+            ranges.awaitWritesInFlight();
+        }
+
+        long spilledBytes = 0;
+        int spilledRows = 0;
+        synchronized (table) {
+            if (tables.get(tableName) != table) {
+                return 0;
+            }
+            SegmentStore store = table.spill();
+            for (String rowKey : table.keySet()) {
+                synchronized (rowLocks.lockFor(tableName, rowKey)) {
+                    Row row = table.get(rowKey);
+                    if (row == null) {
+                        continue;
+                    }
+                    store.put(row);
+                    table.remove(rowKey);
+                    spilledBytes += row.sizeInBytes();
+                    spilledRows++;
+                }
+            }
+        }
+        table.spilled(spilledBytes);
+        logger.info("Spilled " + spilledRows + " rows (" + spilledBytes + " bytes) of table '" + tableName + "' to disk");
+        return spilledBytes;
+    }
+
+    private static void deleteMemoryTableLog(SegmentStore log) throws IOException {
+        log.close();
+        moveToTrash(log.directory());
+    }
+
+    /*
+     * Drops a directory by renaming it into the trash, which takes constant time however much it holds; the files are
+     * deleted later by the reclaimer. Anything still in the trash after a crash is deleted on the next start.
+     */
+    private static void moveToTrash(File dir) throws IOException {
+        File trash = new File(path, TRASH_DIRECTORY);
+        if (!trash.exists() && !trash.mkdirs()) {
+            throw new IOException("Cannot create " + trash);
+        }
+        File target = new File(trash, dir.getName() + "." + System.nanoTime());
+        Files.move(dir.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        reclaimer.execute(() -> deleteRecursively(target));
+    }
+
+    private static void emptyTrash() {
+        File[] dropped = new File(path, TRASH_DIRECTORY).listFiles();
+        if (dropped != null) {
+            for (File dir : dropped) {
+                reclaimer.execute(() -> deleteRecursively(dir));
+            }
+        }
+    }
+
+    private static void deleteRecursively(File dir) {
+        try (var paths = Files.walk(dir.toPath())) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        } catch (IOException e) {
+            logger.error("Failed to reclaim " + dir, e);
+        }
+    }
+
+    /*
+     * Reloads the in-memory tables from their write-ahead logs. The logs are kept if this worker logs in-memory tables
+     * as well; a worker running with --durability=none only loads them once and then deletes them, since the tables
+     * would otherwise silently diverge from their logs.
+     */
+    private static void replayMemoryTableLogs() throws IOException {
+        File[] logDirs = new File(path, MEMORY_TABLE_LOG_DIRECTORY).listFiles(File::isDirectory);
+        if (logDirs == null) {
+            return;
+        }
+
+        for (File logDir : logDirs) {
+            String tableName = KeyEncoder.decode(logDir.getName());
+            SegmentStore log = readOnly ? SegmentStore.openReadOnly(logDir) : SegmentStore.open(logDir);
+            MemoryTable table = new MemoryTable();
+            Iterator<Row> rows = log.scan(null, null);
+            while (rows.hasNext()) {
+                Row row = rows.next();
+                table.put(row.key(), row);
+                if (row.getBytes(KVSClient.EXPIRES_COLUMN) != null) {
+                    tablesWithExpiringRows.add(tableName);
+                }
+            }
+            tables.put(tableName, table);
+            logger.info("Replayed " + table.size() + " rows of table '" + tableName + "' from its write-ahead log");
+
+            if (readOnly) {
+                log.close();
+            } else if (durability.mode() != Durability.Mode.NONE) {
+                memoryTableLogs.put(tableName, log);
+            } else {
+                deleteMemoryTableLog(log);
+            }
+        }
+    }
+
+    private static SegmentStore openPersistentTable(String tableName) {
+        return persistentTables.computeIfAbsent(tableName, name -> {
+            try {
+                File dir = new File(path, KeyEncoder.encode(name));
+                return readOnly ? SegmentStore.openReadOnly(dir) : SegmentStore.open(dir);
+            } catch (IOException e) {
+                throw new RuntimeException("Failed to open table '" + name + "'", e);
+            }
+        });
     }
 
-    private static synchronized void createTableIfNecessary(String tableName) {
-        if (tables.get(tableName) == null) {
-            tables.put(tableName, new ConcurrentHashMap<>());
+    private static void openPersistentTables() {
+        File[] tableDirs = new File(path).listFiles(File::isDirectory);
+        if (tableDirs == null) {
+            return;
+        }
 
-            if (isPersistentTable(tableName)) {
-                String encodedTableName = KeyEncoder.encode(tableName);
-                new File(path + File.separator + encodedTableName).mkdirs();
+        for (File tableDir : tableDirs) {
+            String tableName = KeyEncoder.decode(tableDir.getName());
+            if (!isPersistentTable(tableName)) {
+                continue;
             }
+            if (SegmentMigrator.hasLegacyRowFiles(tableDir)) {
+                logger.warn("Table '" + tableName + "' still has one-file-per-row data that will not be served; "
+                        + "stop the worker and run cis5550.kvs.SegmentMigrator " + path + " " + tableName);
+            }
+            setTableDeadline(tableName, openPersistentTable(tableName).config().expiresAt());
+            openColumnIndexes(tableName);
         }
     }
 
+    private static boolean tableExists(String tableName) {
+        return isPersistentTable(tableName) ? persistentTables.containsKey(tableName) : tables.containsKey(tableName);
+    }
+
     private static boolean isPersistentTable(String tableName) {
         return tableName.startsWith("pt-");
     }
 
     private static int getTableSize(String tableName) {
         if (isPersistentTable(tableName)) {
-            String encodedTableName = KeyEncoder.encode(tableName);
-            File persistentTables = new File(path + File.separator + encodedTableName);
-            File[] persistentTableFiles = persistentTables.listFiles();
-            boolean hasPersistentTables = persistentTables.exists() && persistentTableFiles != null;
-            return hasPersistentTables ? persistentTableFiles.length : 0;
+            SegmentStore store = persistentTables.get(tableName);
+            return store != null ? store.size() : 0;
+        }
+
+        MemoryTable table = tables.get(tableName);
+        return table != null ? table.rowCount() : 0;
+    }
+
+    private static long getTableBytes(String tableName) {
+        if (isPersistentTable(tableName)) {
+            SegmentStore store = persistentTables.get(tableName);
+            return store != null ? store.liveBytes() : 0;
         }
 
-        ConcurrentMap<String, Row> table = tables.get(tableName);
-        return table != null ? table.size() : 0;
+        MemoryTable table = tables.get(tableName);
+        return table != null ? table.totalBytes() : 0;
     }
 
     private static String getWorkerId() {
@@ -0,0 +1,338 @@
+package cis5550.kvs;
+
+import cis5550.tools.Logger;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * The put()s of a KVSClient in buffered mode (see KVSClient.bufferWrites()). Writes are collected per worker that
+ * owns their row, and a later write to the same column of the same row replaces the earlier one. A worker's writes
+ * are sent as one batch per table (PUT /batch/T?merge=true, which keeps the other columns of each row) once they add
+ * up to batchBytes, or once the oldest of them has waited for lingerInMs. Up to PIPELINE_DEPTH batches can be on their
+ * way to each worker; put() blocks while the worker that owns its row has that many.
+ *
+ * Batches to the same worker may be applied in any order, so a batch with a row that an earlier batch still in flight
+ * also has is held back until that one has been answered, and the later value of a column always wins. A batch that
+ * a worker refuses with 421 keeps its rows in flight until they have been sent again with a fresh range map.
+ *
+ * A buffered write is only known to have been written once flush() or close() returns, and then as durably as a
+ * single put would be; if any batch failed since the last flush, they throw. Reads through the client do not see
+ * writes that have not been flushed, and other writes are not ordered with the buffered ones. The values passed to
+ * put() must not be changed afterwards.
+ */
+class WriteBuffer {
+
+    private static final Logger logger = Logger.getLogger(WriteBuffer.class);
+    static final int DEFAULT_BATCH_BYTES = 256 * 1024;
+    static final long DEFAULT_LINGER_IN_MS = 50;
+    static final int PIPELINE_DEPTH = 4;
+
+    private static final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "kvs-write-linger");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /* The writes to one worker that have not been sent yet, by table and row key */
+    private static class WorkerWrites {
+        final Map<String, Map<String, Row>> rowsByTable = new HashMap<>();
+        final long firstWriteAt = System.currentTimeMillis();
+        int bytes;
+    }
+
+    /* The rows of one table that go to one worker in a single request */
+    private static class Batch {
+        final String address;
+        final String tableName;
+        final List<Row> rows;
+        final int attempt;
+        KVSClient.Routing routing;
+
+        Batch(String address, String tableName, List<Row> rows, int attempt) {
+            this.address = address;
+            this.tableName = tableName;
+            this.rows = rows;
+            this.attempt = attempt;
+        }
+    }
+
+    private final AsyncKVSClient sender;
+    private final int batchBytes;
+    private final long lingerInMs;
+    private final ScheduledFuture<?> lingerTask;
+    private final Map<String, WorkerWrites> unsent = new HashMap<>();
+    // the row keys of the batches that have been sent and not yet answered, by table
+    private final Map<String, Set<String>> rowsInFlight = new HashMap<>();
+    // batches with a row that is still in flight, in the order in which they were put together
+    private final Deque<Batch> heldBack = new ArrayDeque<>();
+    // the batches in flight or held back, in total and by the worker they are for
+    private int batchesInFlight;
+    private final Map<String, Integer> batchesInFlightByWorker = new HashMap<>();
+    private IOException failure;
+
+    WriteBuffer(KVSClient client, int batchBytes, long lingerInMs) {
+        this.sender = new AsyncKVSClient(client, PIPELINE_DEPTH);
+        this.batchBytes = batchBytes;
+        this.lingerInMs = lingerInMs;
+        this.lingerTask = timer.scheduleWithFixedDelay(this::sendLingering, lingerInMs, lingerInMs, TimeUnit.MILLISECONDS);
+    }
+
+    void put(String tableName, String rowKey, String column, byte[] value) throws IOException {
+        String address = sender.routing().addressForKey(rowKey);
+        List<Batch> ready;
+        synchronized (this) {
+            throwFailure();
+            while (batchesInFlightByWorker.getOrDefault(address, 0) >= PIPELINE_DEPTH) {
+                awaitBatch();
+            }
+            WorkerWrites writes = unsent.computeIfAbsent(address, newAddress -> new WorkerWrites());
+            Row row = writes.rowsByTable.computeIfAbsent(tableName, newTable -> new LinkedHashMap<>())
+                    .computeIfAbsent(rowKey, Row::new);
+            byte[] previous = row.getBytes(column);
+            row.put(column, value);
+            writes.bytes += previous != null ? value.length - previous.length : rowKey.length() + column.length() + value.length;
+            if (writes.bytes < batchBytes) {
+                return;
+            }
+            ready = seal(address, unsent.remove(address));
+        }
+        ready.forEach(this::sendBatch);
+    }
+
+    /* Sends all buffered writes and waits until the workers have acknowledged every batch */
+    void flush() throws IOException {
+        List<Batch> ready = new ArrayList<>();
+        synchronized (this) {
+            unsent.forEach((address, writes) -> ready.addAll(seal(address, writes)));
+            unsent.clear();
+        }
+        ready.forEach(this::sendBatch);
+        synchronized (this) {
+            while (batchesInFlight > 0) {
+                awaitBatch();
+            }
+            throwFailure();
+        }
+    }
+
+    void close() throws IOException {
+        lingerTask.cancel(false);
+        try {
+            flush();
+        } finally {
+            sender.close();
+        }
+    }
+
+    private void sendLingering() {
+        long cutoff = System.currentTimeMillis() - lingerInMs;
+        List<Batch> ready = new ArrayList<>();
+        synchronized (this) {
+            for (Iterator<Map.Entry<String, WorkerWrites>> it = unsent.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<String, WorkerWrites> writes = it.next();
+                if (writes.getValue().firstWriteAt <= cutoff) {
+                    ready.addAll(seal(writes.getKey(), writes.getValue()));
+                    it.remove();
+                }
+            }
+        }
+        ready.forEach(this::sendBatch);
+    }
+
+    /*
+     * Turns a worker's writes into batches, one per table, and returns those that can be sent at once; the others are
+     * held back. Callers hold the lock, which they must release before sending, since a batch can complete on the
+     * sending thread.
+     */
+    private List<Batch> seal(String address, WorkerWrites writes) {
+        List<Batch> ready = new ArrayList<>();
+        for (Map.Entry<String, Map<String, Row>> table : writes.rowsByTable.entrySet()) {
+            Batch batch = new Batch(address, table.getKey(), new ArrayList<>(table.getValue().values()), 1);
+            started(batch);
+            if (overlapsAny(batch, heldBack) || overlapsRowsInFlight(batch)) {
+                heldBack.add(batch);
+            } else {
+                markRowsInFlight(batch);
+                ready.add(batch);
+            }
+        }
+        return ready;
+    }
+
+    /* Callers hold the lock */
+    private void started(Batch batch) {
+        batchesInFlight++;
+        batchesInFlightByWorker.merge(batch.address, 1, Integer::sum);
+    }
+
+    private void sendBatch(Batch batch) {
+        byte[] encoded;
+        try {
+            batch.routing = sender.routing();
+            encoded = KVSClient.encodeBatch(batch.rows);
+        } catch (IOException e) {
+            failed(e);
+            answered(batch, true);
+            return;
+        }
+        sender.send(batch.address, "PUT", "/batch/" + batch.tableName + "?merge=true", encoded).whenComplete((res, e) -> {
+            if (e != null) {
+                failed(new IOException("Batch PUT to " + batch.address + " failed", e));
+            } else if (res.statusCode() == KVSClient.MISDIRECTED && batch.attempt < KVSClient.MAX_ROUTING_ATTEMPTS) {
+                // waits off the callback thread, like AsyncKVSClient does before it retries
+                timer.schedule(() -> resend(batch), Math.min(50L << batch.attempt, 1000), TimeUnit.MILLISECONDS);
+                return;
+            } else if (res.statusCode() == KVSClient.MISDIRECTED) {
+                failed(new IOException("Batch PUT kept being misdirected; " + batch.rows.size() + " rows were not written"));
+            } else if (!new String(res.body()).equals("OK")) {
+                failed(new IOException("Batch PUT to " + batch.address + " returned something other than OK: " + new String(res.body())));
+            }
+            answered(batch, true);
+        });
+    }
+
+    /* The range map has changed since the batch was put together; its rows go out again, split up with the new map */
+    private void resend(Batch batch) {
+        KVSClient.Routing routing;
+        try {
+            routing = sender.refreshRouting(batch.routing);
+        } catch (Exception e) {
+            failed(e instanceof IOException ? (IOException) e : new IOException("Failed to fetch the range map", e));
+            answered(batch, true);
+            return;
+        }
+        Map<String, List<Row>> rowsByWorker = new LinkedHashMap<>();
+        for (Row row : batch.rows) {
+            rowsByWorker.computeIfAbsent(routing.addressForKey(row.key()), newAddress -> new ArrayList<>()).add(row);
+        }
+        List<Batch> retries = new ArrayList<>();
+        synchronized (this) {
+            rowsByWorker.forEach((address, rows) -> {
+                Batch retry = new Batch(address, batch.tableName, rows, batch.attempt + 1);
+                started(retry);
+                retries.add(retry);
+            });
+        }
+        // the rows stay in flight; the retries release them
+        answered(batch, false);
+        retries.forEach(this::sendBatch);
+    }
+
+    /*
+     * Counts out a batch that has been answered, releasing its rows unless they are being sent again, and sends the
+     * held-back batches that no longer have a row in flight, in order
+     */
+    private void answered(Batch batch, boolean releaseRows) {
+        List<Batch> ready = new ArrayList<>();
+        synchronized (this) {
+            batchesInFlight--;
+            batchesInFlightByWorker.merge(batch.address, -1, (count, decrement) -> count + decrement > 0 ? count + decrement : null);
+            if (releaseRows) {
+                Set<String> rows = rowsInFlight.get(batch.tableName);
+                for (Row row : batch.rows) {
+                    rows.remove(row.key());
+                }
+                if (rows.isEmpty()) {
+                    rowsInFlight.remove(batch.tableName);
+                }
+            }
+            List<Batch> stillHeld = new ArrayList<>();
+            for (Iterator<Batch> it = heldBack.iterator(); it.hasNext(); ) {
+                Batch held = it.next();
+                // a batch may not overtake an earlier one with the same row, even if neither can be sent yet
+                if (overlapsRowsInFlight(held) || overlapsAny(held, stillHeld)) {
+                    stillHeld.add(held);
+                    continue;
+                }
+                it.remove();
+                markRowsInFlight(held);
+                ready.add(held);
+            }
+            notifyAll();
+        }
+        ready.forEach(this::sendBatch);
+    }
+
+    /* Callers hold the lock */
+    private boolean overlapsRowsInFlight(Batch batch) {
+        Set<String> rows = rowsInFlight.get(batch.tableName);
+        if (rows == null) {
+            return false;
+        }
+        for (Row row : batch.rows) {
+            if (rows.contains(row.key())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean overlapsAny(Batch batch, Iterable<Batch> others) {
+        Set<String> keys = null;
+        for (Batch other : others) {
+            if (!other.tableName.equals(batch.tableName)) {
+                continue;
+            }
+            if (keys == null) {
+                keys = new HashSet<>();
+                for (Row row : batch.rows) {
+                    keys.add(row.key());
+                }
+            }
+            for (Row row : other.rows) {
+                if (keys.contains(row.key())) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /* Callers hold the lock */
+    private void markRowsInFlight(Batch batch) {
+        Set<String> rows = rowsInFlight.computeIfAbsent(batch.tableName, newTable -> new HashSet<>());
+        for (Row row : batch.rows) {
+            rows.add(row.key());
+        }
+    }
+
+    private synchronized void failed(IOException e) {
+        logger.error("Buffered write failed", e);
+        if (failure == null) {
+            failure = e;
+        }
+    }
+
+    /* Reports the first failure since the last one was reported; callers hold the lock */
+    private void throwFailure() throws IOException {
+        IOException reported = failure;
+        failure = null;
+        if (reported != null) {
+            throw reported;
+        }
+    }
+
+    /* Callers hold the lock */
+    private void awaitBatch() throws IOException {
+        try {
+            wait();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for buffered writes", e);
+        }
+    }
+}
@@ -34,6 +34,10 @@ public class ResultFactory {
 
     private static final String SEPARATOR = "URLSEPARATOR";
 
+    private static final List<String> PAGE_COLUMNS = List.of("page", "title", "description");
+
+    private static final List<String> TFIDF_COLUMNS = List.of("value", "acc");
+
     private static final Set<String> BLACKLIST = new HashSet<>(List.of("mejaxcxqvoacwgtakmvisgwibgrezkzovkagoayc"));
 
     private static boolean isValidTerm(String term) {
@@ -91,12 +95,19 @@ public class ResultFactory {
             List<SearchResults.Result> output = results.get(Math.floorDiv(offset, STEP));
 
 
+            // Fetch the crawled pages of the whole result page at once
+            List<String> rowKeys = new ArrayList<>();
+            for (SearchResults.Result result : output) {
+                rowKeys.add(result.getRowKey());
+            }
+            Map<String, Row> pages = kvsClient.multiGet("pt-crawl", rowKeys, PAGE_COLUMNS);
+
             // Update result details
             for (SearchResults.Result result : output) {
                 String url = result.getUrl();
-                String rowKey = result.getRowKey();
-                updateSnippet(rowKey, result);
-                updateTitle(rowKey, result);
+                Row page = pages.get(result.getRowKey());
+                updateSnippet(page, result);
+                updateTitle(page, result);
                 updateHostName(url, result);
                 updateUrl(url, result);
             }
@@ -148,8 +159,8 @@ public class ResultFactory {
     }
 
 
-    private static void updateTitle(String rowKey, SearchResults.Result result) throws IOException {
-        byte[] titleBytes = kvsClient.get("pt-crawl", rowKey, "title");
+    private static void updateTitle(Row page, SearchResults.Result result) {
+        byte[] titleBytes = page != null ? page.getBytes("title") : null;
         String title;
         if (titleBytes != null && titleBytes.length != 0) {
             title = new String(titleBytes,  StandardCharsets.UTF_8);
@@ -163,9 +174,9 @@ public class ResultFactory {
         result.setTitle("No Title");
     }
 
-    private static void updateSnippet(String rowKey, SearchResults.Result result) throws IOException {
+    private static void updateSnippet(Row page, SearchResults.Result result) {
         // Attempt to get the 'description' bytes first
-        byte[] contentBytes = kvsClient.get("pt-crawl", rowKey, "page");
+        byte[] contentBytes = page != null ? page.getBytes("page") : null;
 
         // If page content is empty then no need to parse for snippet
         if (contentBytes == null || contentBytes.length == 0) {
@@ -179,7 +190,7 @@ public class ResultFactory {
 
         // Fallback to 'description' if terms not found in snippet
         if (!sg.isTermFound()) {
-            contentBytes = kvsClient.get("pt-crawl", rowKey, "description");
+            contentBytes = page.getBytes("description");
             if (!(contentBytes == null || contentBytes.length == 0)) {
                 content = new String(contentBytes, StandardCharsets.UTF_8);
                 int len = Math.min(SNIPPET_LEN, content.length());
@@ -260,12 +271,11 @@ public class ResultFactory {
             String stemmed = stemmer.toString();
             words[i] = stemmed;
         }
+        // Fetch the index entries of all query terms at once
+        Map<String, Row> index = kvsClient.multiGet("pt-TFIDF", Arrays.asList(words), TFIDF_COLUMNS);
         ArrayList<String> ans = new ArrayList<>();
         for(int j = 0; j < words.length; j++){
-            byte[] urlWithTFIDFByte = kvsClient.get("pt-TFIDF", words[j], "value");
-            if (urlWithTFIDFByte == null) {
-                urlWithTFIDFByte = kvsClient.get("pt-TFIDF", words[j], "acc");
-            }
+            byte[] urlWithTFIDFByte = getIndexEntry(index, words[j]);
             String urlWithTFIDF = null;
             if (urlWithTFIDFByte != null){
                 urlWithTFIDF = new String(urlWithTFIDFByte, StandardCharsets.UTF_8);
@@ -273,10 +283,7 @@ public class ResultFactory {
                 byte[] urlWithTFIDFByteSecond;
                 String urlWithTFIDFSecond = null;
                 if(words.length>(j+1)) {
-                    urlWithTFIDFByteSecond = kvsClient.get("pt-TFIDF", words[j+1], "value");
-                    if (urlWithTFIDFByteSecond == null) {
-                        urlWithTFIDFByteSecond = kvsClient.get("pt-TFIDF", words[j+1], "acc");
-                    }
+                    urlWithTFIDFByteSecond = getIndexEntry(index, words[j+1]);
                     if(urlWithTFIDFByteSecond!=null){
                         urlWithTFIDFSecond = new String(urlWithTFIDFByteSecond, StandardCharsets.UTF_8);
                     }
@@ -346,4 +353,12 @@ public class ResultFactory {
         }
         return urlAndRank;
     }
+
+    private static byte[] getIndexEntry(Map<String, Row> index, String word) {
+        Row row = index.get(word);
+        if (row == null) {
+            return null;
+        }
+        return row.getBytes("value") != null ? row.getBytes("value") : row.getBytes("acc");
+    }
 }
@@ -0,0 +1,110 @@
+package cis5550.test;
+
+import cis5550.kvs.KVSClient;
+import cis5550.kvs.Row;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Hammers a running KVS with a mix of reads and single-column increments from an increasing number of threads, and
+ * checks that no increment was lost. The increments go through the worker's /increment route, so they take the same
+ * path as any other column update there: the row locks, the write-ahead log or spill store of in-memory tables, and
+ * the indexes and replication of persistent ones. Each run uses a fresh table, which is deleted afterwards.
+ *
+ * usage: cis5550.test.KVSStressTest <coordinator> [opsPerThread] [rows] [writePercent]
+ */
+public class KVSStressTest {
+
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8};
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Syntax: KVSStressTest <coordinator> [opsPerThread] [rows] [writePercent]");
+            System.exit(1);
+        }
+        String coordinator = args[0];
+        int opsPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+        int rows = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+        int writePercent = args.length > 3 ? Integer.parseInt(args[3]) : 20;
+
+        System.out.println("cores=" + Runtime.getRuntime().availableProcessors() + " opsPerThread=" + opsPerThread
+                + " rows=" + rows + " writes=" + writePercent + "%");
+        System.out.printf("%-12s %8s %14s%n", "table", "threads", "ops/s");
+
+        for (String prefix : new String[]{"stress", "pt-stress"}) {
+            for (int threads : THREAD_COUNTS) {
+                String tableName = prefix + "-" + System.nanoTime();
+                double throughput = run(coordinator, tableName, threads, opsPerThread, rows, writePercent);
+                System.out.printf("%-12s %8d %14.0f%n", prefix, threads, throughput);
+            }
+        }
+    }
+
+    private static double run(String coordinator, String tableName, int threadCount, int opsPerThread, int rows,
+                              int writePercent) throws Exception {
+        AtomicLong increments = new AtomicLong();
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount);
+        List<Future<Integer>> results = new ArrayList<>();
+        long start = System.nanoTime();
+        for (int t = 0; t < threadCount; t++) {
+            // one client per thread, since a KVSClient is not meant to be shared
+            KVSClient kvs = new KVSClient(coordinator);
+            results.add(pool.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for (int i = 0; i < opsPerThread; i++) {
+                    String rowKey = "row" + random.nextInt(rows);
+                    if (random.nextInt(100) < writePercent) {
+                        kvs.increment(tableName, rowKey, "count", 1);
+                        increments.incrementAndGet();
+                    } else {
+                        kvs.get(tableName, rowKey, "count");
+                    }
+                }
+                return opsPerThread;
+            }));
+        }
+
+        // every thread has to finish before the table can be checked, even if one of them failed
+        long completedOps = 0;
+        Exception failure = null;
+        for (Future<Integer> result : results) {
+            try {
+                completedOps += result.get();
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        if (failure != null) {
+            throw new IllegalStateException("A thread of the run on '" + tableName + "' failed", failure);
+        }
+
+        KVSClient kvs = new KVSClient(coordinator);
+        long total = 0;
+        Iterator<Row> scan = kvs.scan(tableName);
+        while (scan.hasNext()) {
+            String count = scan.next().get("count");
+            if (count != null) {
+                total += Long.parseLong(count);
+            }
+        }
+        kvs.delete(tableName);
+        if (total != increments.get()) {
+            throw new IllegalStateException("Lost updates in '" + tableName + "': expected " + increments.get()
+                    + " increments, found " + total);
+        }
+
+        return completedOps / (elapsed / 1e9);
+    }
+}
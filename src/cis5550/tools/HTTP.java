@@ -3,13 +3,15 @@ package cis5550.tools;
 import cis5550.jobs.Indexer;
 
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.net.*;
 import java.io.*;
 import javax.net.ssl.*;
 import java.security.*;
 import java.security.cert.X509Certificate;
 
-// This class is NOT thread-safe! If you have more than one thread, each thread should get its own instance.
+// doRequest() may be called from several threads at once; they share the cache of open connections, but never a
+// connection while a request is using it.
 
 public class HTTP {
   public static class Response {
@@ -36,7 +38,7 @@ public class HTTP {
     }
   }
 
-  static Map<String,Vector<Socket>> cachedConnections;
+  static final Map<String,Vector<Socket>> cachedConnections = new ConcurrentHashMap<String,Vector<Socket>>();
     private static final Logger logger = Logger.getLogger(HTTP.class);
 
   static Socket openSocket(String protocol, String host, int port) {
@@ -56,7 +58,11 @@ public class HTTP {
         } catch (KeyManagementException kme) {
         }
       } else if (protocol.equals("http")) {
-        return new Socket(host, port);
+        Socket sock = new Socket(host, port);
+        // the headers and the body of a request are written separately; without this, the body would wait for the
+        // server's delayed ACK of the headers
+        sock.setTcpNoDelay(true);
+        return sock;
       }
     } catch (Exception e) {
       e.printStackTrace();
@@ -94,10 +100,11 @@ public class HTTP {
     while (true) {
       boolean usingCached = false;
       Socket sock = null;
-      if ((cachedConnections != null) && (cachedConnections.get(serverID) != null)) {
-        synchronized(cachedConnections) {
-          if (cachedConnections.get(serverID).size() > 0)
-            sock = cachedConnections.get(serverID).remove(0);
+      Vector<Socket> cached = cachedConnections.get(serverID);
+      if (cached != null) {
+        synchronized(cached) {
+          if (cached.size() > 0)
+            sock = cached.remove(0);
         }
         if (sock != null)
           usingCached = true;
@@ -197,13 +204,7 @@ public class HTTP {
         throw new IOException("Connection to "+host+":"+port+" failed while reading the response ("+e+")");
       }
 
-      if (cachedConnections == null) 
-        cachedConnections = new HashMap<String,Vector<Socket>>();
-      synchronized(cachedConnections) {
-        if (cachedConnections.get(serverID) == null)
-          cachedConnections.put(serverID, new Vector<Socket>());
-        cachedConnections.get(serverID).add(sock);
-      }
+      cachedConnections.computeIfAbsent(serverID, id -> new Vector<Socket>()).add(sock);
       return new Response(buffer.toByteArray(), headers, statusCode);
     }
   }
@@ -1,6 +1,9 @@
 package cis5550.tools;
 
+import java.util.Collection;
+import java.util.NavigableSet;
 import java.util.Random;
+import java.util.TreeSet;
 import java.util.Vector;
 
 public class Partitioner {
@@ -38,12 +41,14 @@ public class Partitioner {
 
   Vector<String> flameWorkers;
   Vector<Partition> partitions;
+  TreeSet<String> splitCandidates;
   boolean alreadyAssigned;
   int keyRangesPerWorker;
 
   public Partitioner() {
     partitions = new Vector<Partition>();
     flameWorkers = new Vector<String>();
+    splitCandidates = new TreeSet<String>();
     alreadyAssigned = false;
     keyRangesPerWorker = 1;
   }
@@ -56,6 +61,11 @@ public class Partitioner {
   	partitions.add(new Partition(kvsWorker, fromKeyOrNull, toKeyOrNull));
   }
 
+  /* Keys that the data is known to contain, e.g. samples from the KVS; partitions are split at these where possible */
+  public void addSplitCandidates(Collection<String> keys) {
+    splitCandidates.addAll(keys);
+  }
+
   public void addFlameWorker(String worker) {
   	flameWorkers.add(worker);
   }
@@ -72,11 +82,8 @@ public class Partitioner {
        will be idle. */
 
     while (partitions.size() < flameWorkers.size()) {
-      Partition p = partitions.elementAt(rand.nextInt(partitions.size()));
-      String split;
-      do {
-        split = rand.ints(97,123).limit(5).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
-      } while (((p.fromKey != null) && (split.compareTo(p.fromKey)<=0)) || ((p.toKeyExclusive != null) && (split.compareTo(p.toKeyExclusive) >= 0)));
+      Partition p = pickPartitionToSplit(null, rand);
+      String split = pickSplitKey(p, rand);
       partitions.add(new Partition(p.kvsWorker, split, p.toKeyExclusive));
       p.toKeyExclusive = split;
     }
@@ -112,15 +119,8 @@ public class Partitioner {
       if (toSplit < 0)
         break;
 
-      Partition p = null;
-      do {
-        p = partitions.elementAt(rand.nextInt(partitions.size()));
-      } while (!p.assignedFlameWorker.equals(flameWorkers.elementAt(toSplit)));
-
-      String split;
-      do {
-        split = rand.ints(97,123).limit(5).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
-      } while (((p.fromKey != null) && (split.compareTo(p.fromKey)<=0)) || ((p.toKeyExclusive != null) && (split.compareTo(p.toKeyExclusive) >= 0)));
+      Partition p = pickPartitionToSplit(flameWorkers.elementAt(toSplit), rand);
+      String split = pickSplitKey(p, rand);
       partitions.add(new Partition(p.kvsWorker, split, p.toKeyExclusive, p.assignedFlameWorker));
       p.toKeyExclusive = split;
       numAssigned[toSplit] ++;
@@ -132,6 +132,56 @@ public class Partitioner {
     return partitions;
   }
 
+  /* The candidates that lie strictly inside the partition, so that splitting at any of them leaves both halves non-empty */
+  Collection<String> candidatesIn(Partition p) {
+    NavigableSet<String> inside = splitCandidates;
+    if (p.fromKey != null)
+      inside = inside.tailSet(p.fromKey, false);
+    if (p.toKeyExclusive != null)
+      inside = inside.headSet(p.toKeyExclusive, false);
+    return inside;
+  }
+
+  /* Among the partitions of the given Flame worker (or all of them, if null), the one with the most split candidates, or a random one if none has any */
+  Partition pickPartitionToSplit(String flameWorkerOrNull, Random rand) {
+    Partition best = null;
+    int bestCandidates = 0;
+    for (Partition p : partitions) {
+      if ((flameWorkerOrNull != null) && !p.assignedFlameWorker.equals(flameWorkerOrNull))
+        continue;
+      int numCandidates = candidatesIn(p).size();
+      if (numCandidates > bestCandidates) {
+        best = p;
+        bestCandidates = numCandidates;
+      }
+    }
+    if (best != null)
+      return best;
+
+    Partition p = null;
+    do {
+      p = partitions.elementAt(rand.nextInt(partitions.size()));
+    } while ((flameWorkerOrNull != null) && !p.assignedFlameWorker.equals(flameWorkerOrNull));
+    return p;
+  }
+
+  /* The median split candidate inside the partition, so that both halves get about as many keys; a random key if there is none */
+  String pickSplitKey(Partition p, Random rand) {
+    Collection<String> inside = candidatesIn(p);
+    if (!inside.isEmpty()) {
+      int middle = inside.size() / 2;
+      for (String key : inside)
+        if (middle-- == 0)
+          return key;
+    }
+
+    String split;
+    do {
+      split = rand.ints(97,123).limit(5).collect(StringBuilder::new, StringBuilder::appendCodePoint, StringBuilder::append).toString();
+    } while (((p.fromKey != null) && (split.compareTo(p.fromKey)<=0)) || ((p.toKeyExclusive != null) && (split.compareTo(p.toKeyExclusive) >= 0)));
+    return split;
+  }
+
   public static void main(String args[]) {
     Partitioner p = new Partitioner();
     p.setKeyRangesPerWorker(3);
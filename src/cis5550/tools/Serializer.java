@@ -32,6 +32,8 @@ public class Serializer {
           } catch (ClassNotFoundException cnfe) {
             if (newCL != null) 
               return newCL.loadClass(desc.getName());
+            if (oldCL != null)
+              return oldCL.loadClass(desc.getName());
           }
           return null;
         }
@@ -32,9 +32,10 @@ public interface Response {
   // This method can be used to send data directly to the connection, without buffering it
   // in an object in memory. The first time write() is called, it should 'commit' the 
   // response by sending out the status code/reason phrase and any headers that have been
-  // set so far. Your server should 1) add a 'Connection: close' header, and it should 
-  // 2) NOT add a Content-Length header in this case. Then, and in any subsequent calls, 
-  // it should simply write the provided bytes directly to the connection.
+  // set so far. Your server should 1) add a 'Transfer-Encoding: chunked' header, and it
+  // should 2) NOT add a Content-Length header in this case. Then, and in any subsequent calls,
+  // it should send the provided bytes as (buffered) chunks; the server ends the response
+  // with the last chunk once the route returns, and the connection can be kept alive.
   void write(byte[] b) throws Exception;
 
   // EXTRA CREDIT ONLY - please see the handout for details. If you are not doing the extra
@@ -1,5 +1,7 @@
 package cis5550.webserver;
 
+import cis5550.webserver.http.ChunkedOutputStream;
+
 import java.io.BufferedWriter;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
@@ -8,6 +10,8 @@ import java.nio.charset.StandardCharsets;
 import java.util.*;
 
 public class ResponseImpl implements Response {
+    private static final int SEND_BUFFER_SIZE = 64 * 1024;
+
     private int statusCode = 200;
     private String reasonPhrase = "OK";
     private boolean writeCalled = false;
@@ -15,6 +19,7 @@ public class ResponseImpl implements Response {
     private byte[] body;
     private Map<String, ArrayList<String>> headerMap = new HashMap<>();
     private OutputStream outputStream;
+    private ChunkedOutputStream chunkedOutputStream;
 
     public ResponseImpl(OutputStream outputStream) {
         this.outputStream = outputStream;
@@ -87,8 +92,13 @@ public class ResponseImpl implements Response {
     @Override
     public void write(byte[] b) throws Exception {
         this.commit();
-        outputStream.write(b);
-        outputStream.flush();
+        chunkedOutputStream.write(b);
+    }
+
+    /* Ends a response that was streamed with write(); the connection can then be reused for the next request */
+    public void finish() throws Exception {
+        this.commit();
+        chunkedOutputStream.finish();
     }
 
     @Override
@@ -111,7 +121,7 @@ public class ResponseImpl implements Response {
         if (!writeCalled) {
             PrintWriter writer = new PrintWriter(new OutputStreamWriter(outputStream, StandardCharsets.UTF_8), false);
             writer.print("HTTP/1.1 " + this.statusCode + " " + this.reasonPhrase + "\r\n");
-            header("Connection", "close");
+            header("Transfer-Encoding", "chunked");
             for (Map.Entry<String, ArrayList<String>> headers : this.headerMap.entrySet()) {
                 String headerKey = headers.getKey();
                 for (String headerVal : headers.getValue()) {
@@ -120,6 +130,7 @@ public class ResponseImpl implements Response {
             }
             writer.print("\r\n");
             writer.flush();
+            chunkedOutputStream = new ChunkedOutputStream(outputStream, SEND_BUFFER_SIZE);
             writeCalled = true;
         }
     }
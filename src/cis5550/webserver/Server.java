@@ -85,6 +85,9 @@ public class Server {
             ThreadPool threadPool = new ThreadPool(30, NUM_WORKERS);
             while (serverRunning) {
                 Socket clientSocket = serverSocket.accept();
+                // responses go out as headers and body in two writes; with Nagle's algorithm, the body would wait for
+                // the client's delayed ACK of the headers, about 40 ms on every request over a kept-alive connection
+                clientSocket.setTcpNoDelay(true);
                 HttpRequest httpRequest = new HttpRequest(clientSocket, routeManager, sessionMap, this);
                 threadPool.addRequest(httpRequest);
             }
@@ -0,0 +1,99 @@
+package cis5550.webserver.http;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/*
+ * Frames a response body as HTTP/1.1 chunks. Writes are collected in a fixed-size buffer that goes out as one chunk
+ * whenever it fills up, so a streaming route never holds more than one buffer of its response in memory, and it
+ * blocks on the socket (instead of piling up data) when the client reads more slowly than the route produces.
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+    private static final byte[] CRLF = "\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    // room for the chunk size line in front of the data, and for the CRLF plus the last chunk behind it
+    private static final int HEADER_SPACE = 10;
+    private static final int TRAILER_SPACE = CRLF.length + LAST_CHUNK.length;
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final int capacity;
+    private int count;
+    private boolean finished;
+
+    public ChunkedOutputStream(OutputStream out, int bufferSize) {
+        this.out = out;
+        this.capacity = bufferSize;
+        this.buffer = new byte[HEADER_SPACE + bufferSize + TRAILER_SPACE];
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == capacity) {
+            writeBufferedChunk(false);
+        }
+        buffer[HEADER_SPACE + count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == capacity) {
+                writeBufferedChunk(false);
+            }
+            int n = Math.min(len, capacity - count);
+            System.arraycopy(b, off, buffer, HEADER_SPACE + count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    @Override
+    public void flush() throws IOException {
+        writeBufferedChunk(false);
+        out.flush();
+    }
+
+    /* Sends whatever is still buffered and the terminating zero-length chunk; the connection itself stays open */
+    public void finish() throws IOException {
+        if (finished) {
+            return;
+        }
+        writeBufferedChunk(true);
+        out.flush();
+        finished = true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        finish();
+    }
+
+    /* Sends the buffer as a single write, so that a chunk never goes out as several small TCP segments */
+    private void writeBufferedChunk(boolean last) throws IOException {
+        if (finished) {
+            throw new IOException("Response has already been finished");
+        }
+
+        int start = HEADER_SPACE;
+        int end = HEADER_SPACE + count;
+        if (count > 0) {
+            byte[] size = (Integer.toHexString(count) + "\r\n").getBytes(StandardCharsets.US_ASCII);
+            start -= size.length;
+            System.arraycopy(size, 0, buffer, start, size.length);
+            System.arraycopy(CRLF, 0, buffer, end, CRLF.length);
+            end += CRLF.length;
+        }
+        if (last) {
+            System.arraycopy(LAST_CHUNK, 0, buffer, end, LAST_CHUNK.length);
+            end += LAST_CHUNK.length;
+        }
+        if (end > start) {
+            out.write(buffer, start, end - start);
+        }
+        count = 0;
+    }
+}
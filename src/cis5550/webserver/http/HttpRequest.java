@@ -196,8 +196,16 @@ public class HttpRequest {
                     clientSocket.getOutputStream().write(responseBody);
                     clientSocket.getOutputStream().flush();
                 }
+            } else {
+                response.finish();
             }
         } catch (Exception e) {
+            if (response.isWriteCalled()) {
+                // part of the body is already out; dropping the connection without the last chunk tells the client
+                logger.error("Route failed after streaming part of its response", e);
+                setKeepAlive(false);
+                return;
+            }
             errorResponse.setStatus(500);
             errorResponse.writeHeaders(clientSocket.getOutputStream());
             setKeepAlive(false);